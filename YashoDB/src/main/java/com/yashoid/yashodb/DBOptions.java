@@ -0,0 +1,310 @@
+package com.yashoid.yashodb;
+
+public class DBOptions {
+
+    public enum CachePolicy { LRU, CLOCK }
+
+    /**
+     * FULL: Every single write reaches the device before returning.
+     * COMMIT: Every insert, set or remove reaches the device before returning. Concurrent
+     * operations share their syncs.
+     * PERIODIC: Writes are synced in the background every sync interval.
+     * NONE: Writes are left to the operating system until the database is closed.
+     */
+    public enum Durability { FULL, COMMIT, PERIODIC, NONE }
+
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final long DEFAULT_CACHE_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+    public static final long DEFAULT_CHECKPOINT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_QUERY_SPILL_THRESHOLD = 1024 * 1024;
+    public static final long DEFAULT_SORT_THRESHOLD = 256 * 1024;
+
+    private int mPageSize = DEFAULT_PAGE_SIZE;
+    private long mCacheSize = DEFAULT_CACHE_SIZE;
+    private CachePolicy mCachePolicy = CachePolicy.CLOCK;
+    private boolean mMemoryMapped = false;
+    private Durability mDurability = Durability.FULL;
+    private long mSyncInterval = DEFAULT_SYNC_INTERVAL;
+    private boolean mWriteAheadLog = false;
+    private long mCheckpointSize = DEFAULT_CHECKPOINT_SIZE;
+    private int mKeyDirectoryCount = 0;
+    private boolean mReuseFreeSpace = false;
+    private float mCompactionThreshold = 0;
+    private long mCompactionRate = 0;
+    private long mQuerySpillThreshold = DEFAULT_QUERY_SPILL_THRESHOLD;
+    private int mScanThreads = 1;
+    private long mSortThreshold = DEFAULT_SORT_THRESHOLD;
+    private int mQueryCacheSize = 0;
+
+    public DBOptions() {
+
+    }
+
+    /**
+     * @param pageSize Size of the pages kept in memory. Must be a power of two.
+     */
+    public DBOptions setPageSize(int pageSize) {
+        if (pageSize < 512 || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("Page size must be a power of two and at least 512 bytes.");
+        }
+
+        mPageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param cacheSize Maximum number of bytes to keep in the page cache.
+     */
+    public DBOptions setCacheSize(long cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size can not be negative.");
+        }
+
+        mCacheSize = cacheSize;
+        return this;
+    }
+
+    public DBOptions setCachePolicy(CachePolicy cachePolicy) {
+        if (cachePolicy == null) {
+            throw new IllegalArgumentException("Cache policy can not be null.");
+        }
+
+        mCachePolicy = cachePolicy;
+        return this;
+    }
+
+    /**
+     * @param memoryMapped If true the database file is read through memory mappings instead of the
+     *                     page cache. Best suited for read heavy workloads.
+     */
+    public DBOptions setMemoryMapped(boolean memoryMapped) {
+        mMemoryMapped = memoryMapped;
+        return this;
+    }
+
+    public DBOptions setDurability(Durability durability) {
+        if (durability == null) {
+            throw new IllegalArgumentException("Durability can not be null.");
+        }
+
+        mDurability = durability;
+        return this;
+    }
+
+    /**
+     * @param syncInterval Milliseconds between background syncs when durability is PERIODIC.
+     */
+    public DBOptions setSyncInterval(long syncInterval) {
+        if (syncInterval <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive.");
+        }
+
+        mSyncInterval = syncInterval;
+        return this;
+    }
+
+    /**
+     * @param writeAheadLog If true every operation is first appended to a log next to the database
+     *                      file and the database file is only updated at checkpoints. Operations
+     *                      interrupted by a crash are then either applied completely or not at all.
+     *                      Can not be combined with the memory mapped mode.
+     */
+    public DBOptions setWriteAheadLog(boolean writeAheadLog) {
+        mWriteAheadLog = writeAheadLog;
+        return this;
+    }
+
+    /**
+     * @param checkpointSize Size the write ahead log can grow to before it is applied to the
+     *                       database file.
+     */
+    public DBOptions setCheckpointSize(long checkpointSize) {
+        if (checkpointSize <= 0) {
+            throw new IllegalArgumentException("Checkpoint size must be positive.");
+        }
+
+        mCheckpointSize = checkpointSize;
+        return this;
+    }
+
+    /**
+     * @param keyDirectoryCount Number of recently used objects to keep a directory of keys for. With
+     *                          a directory a key is found without reading the other keys of the
+     *                          object. 0 disables key directories.
+     */
+    public DBOptions setKeyDirectoryCount(int keyDirectoryCount) {
+        if (keyDirectoryCount < 0) {
+            throw new IllegalArgumentException("Key directory count can not be negative.");
+        }
+
+        mKeyDirectoryCount = keyDirectoryCount;
+        return this;
+    }
+
+    /**
+     * @param reuseFreeSpace If true the space of removed members of the root collection and of
+     *                       values replaced directly on them is reused for values set later, and
+     *                       values are replaced in place when the new value is a number, boolean,
+     *                       string or null that fits where the old one was. Values replaced on
+     *                       nested objects and keys removed from objects are not reclaimed until
+     *                       the database is compacted. Instances obtained from a removed member or
+     *                       for a replaced value must not be used after the removal or the
+     *                       replacement. Without the write ahead log a crash during a replacement
+     *                       in place can leave a mix of the old and the new value.
+     */
+    public DBOptions setReuseFreeSpace(boolean reuseFreeSpace) {
+        mReuseFreeSpace = reuseFreeSpace;
+        return this;
+    }
+
+    /**
+     * @param compactionThreshold Share of the database file taken by removed or replaced data at
+     *                            which a background compaction is started. 0 disables automatic
+     *                            compaction.
+     */
+    public DBOptions setCompactionThreshold(float compactionThreshold) {
+        if (compactionThreshold < 0 || compactionThreshold >= 1) {
+            throw new IllegalArgumentException("Compaction threshold must be at least 0 and less than 1.");
+        }
+
+        mCompactionThreshold = compactionThreshold;
+        return this;
+    }
+
+    /**
+     * @param compactionRate Maximum number of bytes per second a background compaction writes. 0
+     *                       means no limit.
+     */
+    public DBOptions setCompactionRate(long compactionRate) {
+        if (compactionRate < 0) {
+            throw new IllegalArgumentException("Compaction rate can not be negative.");
+        }
+
+        mCompactionRate = compactionRate;
+        return this;
+    }
+
+    /**
+     * @param querySpillThreshold Number of matches a query keeps in memory. The matches of bigger
+     *                            queries are moved to a memory mapped file next to the database
+     *                            file that is deleted when the query is closed.
+     */
+    public DBOptions setQuerySpillThreshold(long querySpillThreshold) {
+        if (querySpillThreshold < 0) {
+            throw new IllegalArgumentException("Query spill threshold can not be negative.");
+        }
+
+        mQuerySpillThreshold = querySpillThreshold;
+        return this;
+    }
+
+    /**
+     * @param scanThreads Number of threads that scan a big collection together for a query. Each
+     *                    reads the database file through its own handle. 1 scans on the calling
+     *                    thread only.
+     */
+    public DBOptions setScanThreads(int scanThreads) {
+        if (scanThreads < 1) {
+            throw new IllegalArgumentException("Scan threads must be at least 1.");
+        }
+
+        mScanThreads = scanThreads;
+        return this;
+    }
+
+    /**
+     * @param sortThreshold Number of members an ordered query sorts in memory. Bigger results are
+     *                      sorted in runs of this size that are written to files next to the
+     *                      database file and merged. Also the number of groups an aggregation
+     *                      keeps in memory before spilling them the same way.
+     */
+    public DBOptions setSortThreshold(long sortThreshold) {
+        if (sortThreshold < 1) {
+            throw new IllegalArgumentException("Sort threshold must be at least 1.");
+        }
+
+        mSortThreshold = sortThreshold;
+        return this;
+    }
+
+    /**
+     * @param queryCacheSize Number of selections on the root collection whose results are kept so
+     *                       that running them again scans nothing. The results are brought up to
+     *                       date as members change or dropped if that is not possible. 0 keeps
+     *                       none.
+     */
+    public DBOptions setQueryCacheSize(int queryCacheSize) {
+        if (queryCacheSize < 0) {
+            throw new IllegalArgumentException("Query cache size can not be negative.");
+        }
+
+        mQueryCacheSize = queryCacheSize;
+        return this;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    public long getCacheSize() {
+        return mCacheSize;
+    }
+
+    public CachePolicy getCachePolicy() {
+        return mCachePolicy;
+    }
+
+    public boolean isMemoryMapped() {
+        return mMemoryMapped;
+    }
+
+    public Durability getDurability() {
+        return mDurability;
+    }
+
+    public long getSyncInterval() {
+        return mSyncInterval;
+    }
+
+    public boolean isWriteAheadLog() {
+        return mWriteAheadLog;
+    }
+
+    public long getCheckpointSize() {
+        return mCheckpointSize;
+    }
+
+    public int getKeyDirectoryCount() {
+        return mKeyDirectoryCount;
+    }
+
+    public boolean isReuseFreeSpace() {
+        return mReuseFreeSpace;
+    }
+
+    public float getCompactionThreshold() {
+        return mCompactionThreshold;
+    }
+
+    public long getCompactionRate() {
+        return mCompactionRate;
+    }
+
+    public long getQuerySpillThreshold() {
+        return mQuerySpillThreshold;
+    }
+
+    public int getScanThreads() {
+        return mScanThreads;
+    }
+
+    public long getSortThreshold() {
+        return mSortThreshold;
+    }
+
+    public int getQueryCacheSize() {
+        return mQueryCacheSize;
+    }
+
+}
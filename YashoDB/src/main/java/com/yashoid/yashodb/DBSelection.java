@@ -1,16 +1,84 @@
 package com.yashoid.yashodb;
 
-import java.io.IOException;
+import com.yashoid.yashodb.exception.DBUseException;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class DBSelection {
 
+    public enum Order { ASCENDING, DESCENDING }
+
     private YashoDB mDb;
 
-    private boolean mOnlyOne;
+    private long mSkip = 0;
+    private long mLimit;
+
+    private Projection mProjection = null;
+
+    private List<String> mOrderPaths = new ArrayList<>();
+    private List<Order> mOrders = new ArrayList<>();
 
     DBSelection(YashoDB db, boolean onlyOne) {
         mDb = db;
-        mOnlyOne = onlyOne;
+        mLimit = onlyOne ? 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Leaves out the first given number of selected members.
+     */
+    public DBSelection skip(long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Skip count can not be negative.");
+        }
+
+        mSkip = count;
+        return this;
+    }
+
+    /**
+     * Selects at most the given number of members. The scan stops as soon as they are found.
+     */
+    public DBSelection limit(long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Limit can not be negative.");
+        }
+
+        mLimit = count;
+        return this;
+    }
+
+    public DBSelection orderBy(String path) {
+        return orderBy(path, Order.ASCENDING);
+    }
+
+    /**
+     * Orders the selected members by the value of the dotted key path. Members with equal values
+     * are ordered by the paths given in the following calls and then keep their order in the
+     * collection. Skip and limit apply to the ordered members.
+     */
+    public DBSelection orderBy(String path, Order order) {
+        mOrderPaths.add(path);
+        mOrders.add(order);
+        return this;
+    }
+
+    /**
+     * Only the given dotted key paths of the selected members are read when they are turned into
+     * YashON. The rest are skipped without being decoded.
+     */
+    public DBSelection include(String... paths) {
+        mProjection = Projection.include(paths);
+        return this;
+    }
+
+    /**
+     * The given dotted key paths of the selected members are skipped without being decoded when
+     * they are turned into YashON.
+     */
+    public DBSelection exclude(String... paths) {
+        mProjection = Projection.exclude(paths);
+        return this;
     }
 
     public Selection selection() {
@@ -68,7 +136,7 @@ public class DBSelection {
         private Selection setFilter(Filter filter) {
             mFilter = filter;
 
-            if (mCloseTarget != null && mCloseTarget.mFilter instanceof Filter.WithinFilter) {
+            if (mCloseTarget != null && takesOneFilter(mCloseTarget.mFilter)) {
                 return close();
             }
 
@@ -85,12 +153,35 @@ public class DBSelection {
             return new Selection(this);
         }
 
+        /**
+         * Members must pass all of the filters that follow, separated by with() and ended by
+         * close().
+         */
         public Selection and() {
             mFilter = new Filter.AndFilter();
 
             return new Selection(this);
         }
 
+        /**
+         * Members must pass at least one of the filters that follow, separated by with() and ended
+         * by close().
+         */
+        public Selection or() {
+            mFilter = new Filter.OrFilter();
+
+            return new Selection(this);
+        }
+
+        /**
+         * Members must not pass the filter that follows.
+         */
+        public Selection not() {
+            mFilter = new Filter.NotFilter();
+
+            return new Selection(this);
+        }
+
         public Selection with() {
             mCloseTarget.append(mFilter);
 
@@ -104,47 +195,254 @@ public class DBSelection {
 
             mAppended = true;
 
-            if (mCloseTarget.mCloseTarget != null &&
-                    mCloseTarget.mCloseTarget.mFilter instanceof Filter.WithinFilter) {
+            if (mCloseTarget.mCloseTarget != null && takesOneFilter(mCloseTarget.mCloseTarget.mFilter)) {
                 return mCloseTarget.close();
             }
 
             return mCloseTarget;
         }
 
+        private boolean takesOneFilter(Filter filter) {
+            return filter instanceof Filter.WithinFilter || filter instanceof Filter.NotFilter;
+        }
+
         private void append(Filter filter) {
             ((Filter.AppendableFilter) mFilter).append(filter);
         }
 
         public YashoDB commit() {
+            String[] paths = null;
+            boolean[] descending = null;
+
+            if (!mOrderPaths.isEmpty()) {
+                paths = mOrderPaths.toArray(new String[mOrderPaths.size()]);
+                descending = new boolean[paths.length];
+
+                for (int i = 0; i < descending.length; i++) {
+                    descending[i] = mOrders.get(i) == Order.DESCENDING;
+                }
+            }
+
+            return commit(paths, descending, mLimit);
+        }
+
+        private YashoDB commit(String[] paths, boolean[] descending, long limit) {
             if (mCloseTarget != null) {
                 if (!mAppended) {
                     mCloseTarget.append(mFilter);
                 }
 
-                return mCloseTarget.commit();
+                return mCloseTarget.commit(paths, descending, limit);
+            }
+
+            return new YashoDB(mDb, mDb.select(mFilter, mSkip, limit, paths, descending), mProjection);
+        }
+
+        /**
+         * Commits the selection keeping only the first count members in the order of the path.
+         * Memory use is bounded by the count and only the selected members are decoded. Skip
+         * leaves out the first members of the order before the count is taken and a smaller limit
+         * takes the place of the count. Can not be used once an order is set with orderBy().
+         */
+        public YashoDB top(long count, String path, Order order) {
+            if (count < 0) {
+                throw new IllegalArgumentException("Top count can not be negative.");
+            }
+
+            if (!mOrderPaths.isEmpty()) {
+                throw new DBUseException("Top can not be used on a selection that is already ordered.");
             }
 
-            Filter filter = mFilter;
+            return commit(new String[] { path }, new boolean[] { order == Order.DESCENDING }, Math.min(mLimit, count));
+        }
+
+        public YashoDB top(long count, String path) {
+            return top(count, path, Order.ASCENDING);
+        }
+
+        /**
+         * Same as {@link #commit()} but nothing is scanned until members are asked for. The filter
+         * is applied as the cursor moves forward and stops once the limit is reached, so only the
+         * members before the last one asked for are read.
+         */
+        public YashoDB.Cursor cursor() {
+            if (mCloseTarget != null) {
+                if (!mAppended) {
+                    mCloseTarget.append(mFilter);
+                }
 
-            if (mOnlyOne) {
-                filter = new Filter.OnlyOneFilter(mFilter);
+                return mCloseTarget.cursor();
             }
 
-            final QueryResult queryResult = mDb.newQueryResult(filter);
+            if (!mOrderPaths.isEmpty()) {
+                // Every member has to be seen before the first one is known.
+                return commit().cursor();
+            }
 
-            filter.setObserver(new Filter.Observer() {
+            return mDb.cursor(mFilter, mSkip, mLimit, mProjection);
+        }
 
-                @Override
-                public void accepted(long position) throws IOException {
-                    queryResult.add(position);
+        /**
+         * Number of members the selection would have, found without keeping their positions.
+         * Answered from an index without reading the members when the filter is a comparison to a
+         * number on an indexed path. Skip and limit apply and the order is ignored.
+         */
+        public long count() {
+            if (mCloseTarget != null) {
+                if (!mAppended) {
+                    mCloseTarget.append(mFilter);
                 }
 
-            });
+                return mCloseTarget.count();
+            }
+
+            return mDb.count(mFilter, mSkip, mLimit);
+        }
+
+        /**
+         * Whether the selection would have any member. The scan stops at the first one.
+         */
+        public boolean exists() {
+            if (mCloseTarget != null) {
+                if (!mAppended) {
+                    mCloseTarget.append(mFilter);
+                }
+
+                return mCloseTarget.exists();
+            }
+
+            return mDb.count(mFilter, mSkip, Math.min(mLimit, 1)) > 0;
+        }
+
+        /**
+         * Computes totals over the selected members instead of selecting them. Skip and limit
+         * apply to the members that are aggregated and the order is ignored.
+         */
+        public Aggregation aggregate() {
+            if (mCloseTarget != null) {
+                if (!mAppended) {
+                    mCloseTarget.append(mFilter);
+                }
+
+                return mCloseTarget.aggregate();
+            }
+
+            return new Aggregation(mFilter);
+        }
+
+    }
+
+    /**
+     * Totals computed while the members are scanned, from their values as they are read and
+     * without making objects of them. Each total is put in the rows under the given name. Numbers
+     * stored as strings count as numbers, as they do when ordering.
+     */
+    public class Aggregation {
+
+        private Filter mFilter;
+
+        private List<String> mGroupNames = new ArrayList<>();
+        private List<String> mGroupPaths = new ArrayList<>();
+
+        private List<String> mNames = new ArrayList<>();
+        private List<Integer> mFunctions = new ArrayList<>();
+        private List<String> mPaths = new ArrayList<>();
+
+        private Aggregation(Filter filter) {
+            mFilter = filter;
+        }
+
+        /**
+         * Makes a row for each distinct value of the dotted key path, in the order of the values.
+         * Groups are spilled to files next to the database file when there are more of them than
+         * the sort threshold.
+         *
+         * @param name Key of the value in the rows.
+         */
+        public Aggregation groupBy(String name, String path) {
+            addName(name);
+
+            mGroupNames.add(name);
+            mGroupPaths.add(path);
+            return this;
+        }
+
+        public Aggregation groupBy(String path) {
+            return groupBy(path, path);
+        }
+
+        /**
+         * Number of members.
+         */
+        public Aggregation count(String name) {
+            return add(name, QueryAggregator.COUNT, null);
+        }
+
+        /**
+         * Sum of the numbers at the path. It is a long unless a number is not integral or the sum
+         * overflows.
+         */
+        public Aggregation sum(String name, String path) {
+            return add(name, QueryAggregator.SUM, path);
+        }
+
+        /**
+         * Average of the numbers at the path or null if there are none.
+         */
+        public Aggregation average(String name, String path) {
+            return add(name, QueryAggregator.AVERAGE, path);
+        }
+
+        /**
+         * Smallest number or string at the path, numbers being smaller than strings, or null if
+         * there are none.
+         */
+        public Aggregation min(String name, String path) {
+            return add(name, QueryAggregator.MINIMUM, path);
+        }
+
+        /**
+         * Biggest number or string at the path, strings being bigger than numbers, or null if
+         * there are none.
+         */
+        public Aggregation max(String name, String path) {
+            return add(name, QueryAggregator.MAXIMUM, path);
+        }
+
+        private Aggregation add(String name, int function, String path) {
+            addName(name);
+
+            mNames.add(name);
+            mFunctions.add(function);
+            mPaths.add(path);
+            return this;
+        }
+
+        private void addName(String name) {
+            YashON.validateKey(name);
+
+            if (mGroupNames.contains(name) || mNames.contains(name)) {
+                throw new IllegalArgumentException("Name '" + name + "' is already used in the aggregation.");
+            }
+        }
+
+        /**
+         * @return The rows as YashON. There is exactly one row if nothing is grouped.
+         */
+        public YashAN commit() {
+            int[] functions = new int[mFunctions.size()];
+
+            for (int i = 0; i < functions.length; i++) {
+                functions[i] = mFunctions.get(i);
+            }
 
-            mDb.applyFilter(filter);
+            QueryAggregator aggregator = mDb.newAggregator(
+                    mGroupNames.toArray(new String[mGroupNames.size()]),
+                    mGroupPaths.toArray(new String[mGroupPaths.size()]),
+                    mNames.toArray(new String[mNames.size()]), functions,
+                    mPaths.toArray(new String[mPaths.size()]));
 
-            return new YashoDB(mDb, queryResult);
+            return mDb.aggregate(mFilter, mSkip, mLimit, aggregator);
         }
 
     }
@@ -0,0 +1,861 @@
+package com.yashoid.yashodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+
+/**
+ * B+tree over the values of a dotted key path in the members of the root collection, pointing to
+ * the offsets of the members. Entries are the encoded value followed by the member offset so that
+ * every entry is unique and equal values stay in member order.
+ *
+ * Index File Format
+ * Page 0: [4-bytes MAGIC] [1-byte CLEAN/DIRTY] [8-bytes database length] [8-bytes root page] [8-bytes page count] [8-bytes entry count] [path UTF]
+ * Leaf page: [1-byte LEAF] [3-bytes unused] [4-bytes entry count] [8-bytes next page] [8-bytes previous page] {[24-bytes key] [8-bytes member offset]}...
+ * Internal page: [1-byte INTERNAL] [3-bytes unused] [4-bytes separator count] [16-bytes unused] [8-bytes child page] {[24-bytes key] [8-bytes member offset] [8-bytes child page]}...
+ *
+ * Key Format
+ * [1-byte NULL/NUMBER/STRING] [value bytes]. Numbers are doubles with their bits arranged so that
+ * they compare as unsigned bytes. Longs too big for a double share keys with their neighbours, so
+ * range bounds are always inclusive and the filter drops the values on the bound. Strings are the
+ * first 22 bytes of their modified UTF-8 form followed by their length, or 23 if they were longer.
+ * Long strings that share a prefix share a key, so matches must be checked against the member
+ * itself.
+ */
+class FieldIndex {
+
+    static final int KEY_LENGTH = 24;
+
+    private static final int MAGIC = 0x59494432;
+
+    private static final byte CLEAN = 1;
+    private static final byte DIRTY = 0;
+
+    private static final byte TAG_NULL = 0x10;
+    private static final byte TAG_NUMBER = 0x30;
+    private static final byte TAG_STRING = 0x40;
+
+    private static final int STRING_PREFIX_LENGTH = KEY_LENGTH - 2;
+
+    private static final int PAGE_SIZE = 4096;
+
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+
+    private static final int ENTRY_LENGTH = KEY_LENGTH + 8;
+    private static final int NODE_HEADER_LENGTH = 24;
+
+    private static final int LEAF_CAPACITY = (PAGE_SIZE - NODE_HEADER_LENGTH) / ENTRY_LENGTH;
+    private static final int INTERNAL_CAPACITY = (PAGE_SIZE - NODE_HEADER_LENGTH - 8) / (ENTRY_LENGTH + 8);
+
+    private static final long[] EMPTY = new long[0];
+
+    // Longs this far from zero share keys with their neighbours.
+    private static final double MAX_EXACT_NUMBER = 1L << 53;
+
+    private String mPath;
+
+    private File mFile;
+    private DBOptions mCacheOptions;
+    private PageCache mStorage;
+
+    private long mRoot;
+    private long mPageCount;
+    private long mEntryCount;
+
+    /**
+     * Opens or creates the index file. {@link #isValid(long)} tells if its content can be used.
+     */
+    FieldIndex(File file, String path, DBOptions options) throws IOException {
+        mFile = file;
+        mPath = path;
+
+        mCacheOptions = new DBOptions()
+                .setPageSize(PAGE_SIZE)
+                .setCacheSize(options.getCacheSize())
+                .setCachePolicy(options.getCachePolicy());
+
+        mStorage = new PageCache(new FileStorage(file, "rw"), mCacheOptions, false);
+    }
+
+    String getPath() {
+        return mPath;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return true if the index was closed properly when the database had the given length.
+     */
+    boolean isValid(long databaseLength) throws IOException {
+        if (mStorage.length() < PAGE_SIZE) {
+            return false;
+        }
+
+        return mStorage.readInt(0) == MAGIC &&
+                mStorage.readByte(4) == CLEAN &&
+                mStorage.readLong(5) == databaseLength;
+    }
+
+    /**
+     * Reads the index for use. Marks it dirty until it is closed.
+     */
+    void load() throws IOException {
+        mRoot = mStorage.readLong(13);
+        mPageCount = mStorage.readLong(21);
+        mEntryCount = mStorage.readLong(29);
+
+        writeHeader(DIRTY, 0);
+    }
+
+    /**
+     * Empties the index. Marks it dirty until it is closed.
+     */
+    void clear() throws IOException {
+        mStorage.close();
+
+        FileStorage fileStorage = new FileStorage(mFile, "rw");
+        fileStorage.truncate(0);
+
+        mStorage = new PageCache(fileStorage, mCacheOptions, false);
+
+        mRoot = 1;
+        mPageCount = 2;
+        mEntryCount = 0;
+
+        byte[] root = new byte[PAGE_SIZE];
+        root[0] = LEAF;
+
+        writeNode(mRoot, root);
+
+        writeHeader(DIRTY, 0);
+    }
+
+    void close(long databaseLength) throws IOException {
+        mStorage.flush();
+
+        writeHeader(CLEAN, databaseLength);
+
+        mStorage.close();
+    }
+
+    /**
+     * Closes and removes the index file.
+     */
+    void delete() throws IOException {
+        mStorage.close();
+
+        if (!mFile.delete()) {
+            throw new IOException("Failed to remove index file '" + mFile + "'.");
+        }
+    }
+
+    private void writeHeader(byte state, long databaseLength) throws IOException {
+        byte[] path = FileAccess.encodeUTF(mPath);
+
+        byte[] header = new byte[4 + 1 + 8 + 8 + 8 + 8 + path.length];
+
+        Storage.putInt(header, 0, MAGIC);
+        header[4] = state;
+        Storage.putLong(header, 5, databaseLength);
+        Storage.putLong(header, 13, mRoot);
+        Storage.putLong(header, 21, mPageCount);
+        Storage.putLong(header, 29, mEntryCount);
+        System.arraycopy(path, 0, header, 37, path.length);
+
+        mStorage.write(0, header, 0, header.length);
+        mStorage.sync();
+    }
+
+    /**
+     * @return The key for the value or null if values like it are not indexed.
+     */
+    static byte[] toKey(Object value) throws UTFDataFormatException {
+        if (value instanceof ScratchString) {
+            value = value.toString();
+        }
+
+        if (value == null) {
+            byte[] key = new byte[KEY_LENGTH];
+            key[0] = TAG_NULL;
+            return key;
+        }
+
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+
+            return Double.isNaN(number) ? null : numberKey(number);
+        }
+
+        if (value instanceof Boolean) {
+            // Compared the same as the strings booleans used to be stored as.
+            return stringKey(value.toString());
+        }
+
+        if (!(value instanceof String)) {
+            return null;
+        }
+
+        String string = (String) value;
+
+        try {
+            double number = Double.parseDouble(string);
+
+            // NaN does not compare to anything.
+            return Double.isNaN(number) ? null : numberKey(number);
+        } catch (NumberFormatException e) { }
+
+        return stringKey(string);
+    }
+
+    private static byte[] numberKey(double number) {
+        if (number == 0) {
+            // -0.0 equals 0.0.
+            number = 0;
+        }
+
+        long bits = Double.doubleToLongBits(number);
+
+        bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+
+        byte[] key = new byte[KEY_LENGTH];
+        key[0] = TAG_NUMBER;
+        Storage.putLong(key, 1, bits);
+
+        return key;
+    }
+
+    private static byte[] stringKey(String string) throws UTFDataFormatException {
+        // Every char takes at least a byte so this is enough to fill the prefix and the marker.
+        if (string.length() > STRING_PREFIX_LENGTH + 1) {
+            string = string.substring(0, STRING_PREFIX_LENGTH + 1);
+        }
+
+        byte[] encoded = FileAccess.encodeUTF(string);
+
+        int length = encoded.length - 2;
+
+        byte[] key = new byte[KEY_LENGTH];
+        key[0] = TAG_STRING;
+
+        System.arraycopy(encoded, 2, key, 1, Math.min(length, STRING_PREFIX_LENGTH));
+
+        key[KEY_LENGTH - 1] = (byte) Math.min(length, STRING_PREFIX_LENGTH + 1);
+
+        return key;
+    }
+
+    private static byte[] boundKey(byte tag, int fill) {
+        byte[] key = new byte[KEY_LENGTH];
+        Arrays.fill(key, (byte) fill);
+        key[0] = tag;
+        return key;
+    }
+
+    /**
+     * @return Offsets of the members that may match the comparison sorted by offset or null if the
+     * index can not help with it.
+     */
+    long[] select(Object value, Filter.Operand operand) throws IOException {
+        double number;
+
+        try {
+            number = Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            // Other values are only compared for equality.
+            switch (operand) {
+                case EQ:
+                    byte[] key = stringKey(value.toString());
+                    return scan(key, key);
+                case NEQ:
+                    return null;
+                default:
+                    return EMPTY;
+            }
+        }
+
+        if (operand == Filter.Operand.NEQ) {
+            return null;
+        }
+
+        if (Double.isNaN(number)) {
+            return EMPTY;
+        }
+
+        byte[] key = numberKey(number);
+
+        switch (operand) {
+            case EQ:
+                return scan(key, key);
+            case BT:
+            case BQT:
+                return scan(key, boundKey(TAG_NUMBER, 0xFF));
+            case ST:
+            case SQT:
+                return scan(boundKey(TAG_NUMBER, 0), key);
+            default:
+                return null;
+        }
+    }
+
+    long[] selectNull() throws IOException {
+        byte[] key = toKey(null);
+
+        return scan(key, key);
+    }
+
+    /**
+     * Counts the members without reading them when the keys tell the comparison exactly. That is
+     * when the value is a number that a double holds exactly along with every long that shares
+     * its key.
+     *
+     * @return Number of members that match the comparison or -1 if the index can not tell it.
+     */
+    long count(Object value, Filter.Operand operand) throws IOException {
+        double number;
+
+        try {
+            number = Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        if (operand == Filter.Operand.NEQ || Double.isNaN(number) || Math.abs(number) >= MAX_EXACT_NUMBER) {
+            return -1;
+        }
+
+        byte[] key = numberKey(number);
+
+        switch (operand) {
+            case EQ:
+                return count(key, key);
+            case BQT:
+                return count(key, boundKey(TAG_NUMBER, 0xFF));
+            case BT:
+                // Range bounds are inclusive.
+                return count(key, boundKey(TAG_NUMBER, 0xFF)) - count(key, key);
+            case SQT:
+                return count(boundKey(TAG_NUMBER, 0), key);
+            case ST:
+                return count(boundKey(TAG_NUMBER, 0), key) - count(key, key);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return Offsets of the entries with keys from the low key to the high key, both included.
+     */
+    private long[] scan(byte[] lowKey, byte[] highKey) throws IOException {
+        byte[] entry = toEntry(lowKey, 0);
+
+        byte[] node = findLeaf(entry);
+
+        int index = lowerBound(node, entry);
+
+        long[] offsets = new long[16];
+        int size = 0;
+
+        while (true) {
+            int count = getCount(node);
+
+            for (; index < count; index++) {
+                int entryOffset = NODE_HEADER_LENGTH + index * ENTRY_LENGTH;
+
+                if (compare(node, entryOffset, highKey, 0, KEY_LENGTH) > 0) {
+                    return sorted(offsets, size);
+                }
+
+                if (size == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                }
+
+                offsets[size++] = Storage.getLong(node, entryOffset + KEY_LENGTH);
+            }
+
+            long next = Storage.getLong(node, 8);
+
+            if (next == 0) {
+                return sorted(offsets, size);
+            }
+
+            node = readNode(next);
+            index = 0;
+        }
+    }
+
+    /**
+     * @return Number of the entries with keys from the low key to the high key, both included.
+     */
+    private long count(byte[] lowKey, byte[] highKey) throws IOException {
+        byte[] entry = toEntry(lowKey, 0);
+
+        byte[] node = findLeaf(entry);
+
+        int index = lowerBound(node, entry);
+
+        long total = 0;
+
+        while (true) {
+            int count = getCount(node);
+
+            // A leaf whose last key is in range is counted without looking at its entries.
+            if (count > 0 && compare(node, NODE_HEADER_LENGTH + (count - 1) * ENTRY_LENGTH, highKey, 0, KEY_LENGTH) <= 0) {
+                total += count - index;
+            }
+            else {
+                for (; index < count; index++) {
+                    if (compare(node, NODE_HEADER_LENGTH + index * ENTRY_LENGTH, highKey, 0, KEY_LENGTH) > 0) {
+                        return total;
+                    }
+
+                    total++;
+                }
+            }
+
+            long next = Storage.getLong(node, 8);
+
+            if (next == 0) {
+                return total;
+            }
+
+            node = readNode(next);
+            index = 0;
+        }
+    }
+
+    /**
+     * @return The leaf where the entry is or would be.
+     */
+    private byte[] findLeaf(byte[] entry) throws IOException {
+        byte[] node = readNode(mRoot);
+
+        while (node[0] == INTERNAL) {
+            node = readNode(getChild(node, upperBound(node, entry)));
+        }
+
+        return node;
+    }
+
+    private static long[] sorted(long[] offsets, int size) {
+        offsets = Arrays.copyOf(offsets, size);
+
+        Arrays.sort(offsets);
+
+        return offsets;
+    }
+
+    void insert(byte[] key, long offset) throws IOException {
+        byte[] entry = toEntry(key, offset);
+
+        long[] pages = new long[16];
+        int[] childIndexes = new int[16];
+        int depth = 0;
+
+        long page = mRoot;
+        byte[] node = readNode(page);
+
+        while (node[0] == INTERNAL) {
+            int childIndex = upperBound(node, entry);
+
+            if (depth == pages.length) {
+                pages = Arrays.copyOf(pages, depth * 2);
+                childIndexes = Arrays.copyOf(childIndexes, depth * 2);
+            }
+
+            pages[depth] = page;
+            childIndexes[depth] = childIndex;
+            depth++;
+
+            page = getChild(node, childIndex);
+            node = readNode(page);
+        }
+
+        int count = getCount(node);
+        int index = lowerBound(node, entry);
+
+        if (index < count && compare(node, NODE_HEADER_LENGTH + index * ENTRY_LENGTH, entry, 0, ENTRY_LENGTH) == 0) {
+            return;
+        }
+
+        mEntryCount++;
+
+        if (count < LEAF_CAPACITY) {
+            insertLeafEntry(node, index, entry);
+            writeNode(page, node);
+            return;
+        }
+
+        // Split the leaf in two halves and put the entry in its half.
+        long rightPage = mPageCount++;
+        byte[] right = new byte[PAGE_SIZE];
+        right[0] = LEAF;
+
+        int middle = count / 2;
+
+        System.arraycopy(node, NODE_HEADER_LENGTH + middle * ENTRY_LENGTH,
+                right, NODE_HEADER_LENGTH, (count - middle) * ENTRY_LENGTH);
+
+        setCount(right, count - middle);
+        setCount(node, middle);
+
+        long next = Storage.getLong(node, 8);
+
+        Storage.putLong(right, 8, next);
+        Storage.putLong(right, 16, page);
+        Storage.putLong(node, 8, rightPage);
+
+        if (next != 0) {
+            byte[] nextNode = readNode(next);
+            Storage.putLong(nextNode, 16, rightPage);
+            writeNode(next, nextNode);
+        }
+
+        if (index <= middle) {
+            insertLeafEntry(node, index, entry);
+        }
+        else {
+            insertLeafEntry(right, index - middle, entry);
+        }
+
+        writeNode(page, node);
+        writeNode(rightPage, right);
+
+        byte[] separator = Arrays.copyOfRange(right, NODE_HEADER_LENGTH, NODE_HEADER_LENGTH + ENTRY_LENGTH);
+
+        // Push the separator up as long as the parents split too.
+        while (depth > 0) {
+            depth--;
+
+            page = pages[depth];
+            node = readNode(page);
+
+            count = getCount(node);
+            index = childIndexes[depth];
+
+            if (count < INTERNAL_CAPACITY) {
+                insertInternalEntry(node, index, separator, rightPage);
+                writeNode(page, node);
+                return;
+            }
+
+            byte[] separators = new byte[(count + 1) * ENTRY_LENGTH];
+            long[] children = new long[count + 2];
+
+            for (int i = 0, s = 0; i <= count; i++) {
+                children[i + (i > index ? 1 : 0)] = getChild(node, i);
+
+                if (i < count) {
+                    if (i == index) {
+                        s++;
+                    }
+
+                    System.arraycopy(node, separatorOffset(i), separators, s * ENTRY_LENGTH, ENTRY_LENGTH);
+                    s++;
+                }
+            }
+
+            System.arraycopy(separator, 0, separators, index * ENTRY_LENGTH, ENTRY_LENGTH);
+            children[index + 1] = rightPage;
+
+            middle = (count + 1) / 2;
+
+            byte[] left = new byte[PAGE_SIZE];
+            left[0] = INTERNAL;
+            setCount(left, middle);
+
+            for (int i = 0; i < middle; i++) {
+                System.arraycopy(separators, i * ENTRY_LENGTH, left, separatorOffset(i), ENTRY_LENGTH);
+            }
+
+            for (int i = 0; i <= middle; i++) {
+                setChild(left, i, children[i]);
+            }
+
+            long newRightPage = mPageCount++;
+
+            right = new byte[PAGE_SIZE];
+            right[0] = INTERNAL;
+            setCount(right, count - middle);
+
+            for (int i = middle + 1; i <= count; i++) {
+                System.arraycopy(separators, i * ENTRY_LENGTH, right, separatorOffset(i - middle - 1), ENTRY_LENGTH);
+            }
+
+            for (int i = middle + 1; i <= count + 1; i++) {
+                setChild(right, i - middle - 1, children[i]);
+            }
+
+            writeNode(page, left);
+            writeNode(newRightPage, right);
+
+            separator = Arrays.copyOfRange(separators, middle * ENTRY_LENGTH, (middle + 1) * ENTRY_LENGTH);
+            rightPage = newRightPage;
+        }
+
+        // The root was split.
+        long rootPage = mPageCount++;
+
+        byte[] root = new byte[PAGE_SIZE];
+        root[0] = INTERNAL;
+        setCount(root, 1);
+        setChild(root, 0, mRoot);
+        System.arraycopy(separator, 0, root, separatorOffset(0), ENTRY_LENGTH);
+        setChild(root, 1, rightPage);
+
+        writeNode(rootPage, root);
+
+        mRoot = rootPage;
+    }
+
+    /**
+     * Removes the entry. Pages are not merged when they get empty.
+     */
+    void delete(byte[] key, long offset) throws IOException {
+        byte[] entry = toEntry(key, offset);
+
+        long page = mRoot;
+        byte[] node = readNode(page);
+
+        while (node[0] == INTERNAL) {
+            page = getChild(node, upperBound(node, entry));
+            node = readNode(page);
+        }
+
+        int count = getCount(node);
+        int index = lowerBound(node, entry);
+
+        if (index == count || compare(node, NODE_HEADER_LENGTH + index * ENTRY_LENGTH, entry, 0, ENTRY_LENGTH) != 0) {
+            return;
+        }
+
+        int entryOffset = NODE_HEADER_LENGTH + index * ENTRY_LENGTH;
+
+        System.arraycopy(node, entryOffset + ENTRY_LENGTH, node, entryOffset, (count - index - 1) * ENTRY_LENGTH);
+
+        setCount(node, count - 1);
+
+        writeNode(page, node);
+
+        mEntryCount--;
+    }
+
+    /**
+     * @return Number of members in the index. Members without a value for the path, or with a
+     * value that is not indexed, are not in it.
+     */
+    long getEntryCount() {
+        return mEntryCount;
+    }
+
+    /**
+     * @return A walk over the entries in the order of their keys or in the reverse order.
+     */
+    Walk walk(boolean reverse) throws IOException {
+        return new Walk(reverse);
+    }
+
+    /**
+     * Goes through the leaf entries one at a time. Entries with equal keys come in the order of
+     * their member offsets, or in the reverse order for a reverse walk. The index must not change
+     * during the walk.
+     */
+    class Walk {
+
+        private boolean mReverse;
+
+        private byte[] mNode;
+        private int mIndex;
+
+        private Walk(boolean reverse) throws IOException {
+            mReverse = reverse;
+
+            mNode = readNode(mRoot);
+
+            while (mNode[0] == INTERNAL) {
+                mNode = readNode(getChild(mNode, reverse ? getCount(mNode) : 0));
+            }
+
+            mIndex = reverse ? getCount(mNode) : -1;
+        }
+
+        /**
+         * @return false if there are no more entries.
+         */
+        boolean next() throws IOException {
+            if (mReverse) {
+                mIndex--;
+
+                while (mIndex < 0) {
+                    long previous = Storage.getLong(mNode, 16);
+
+                    if (previous == 0) {
+                        return false;
+                    }
+
+                    mNode = readNode(previous);
+                    mIndex = getCount(mNode) - 1;
+                }
+
+                return true;
+            }
+
+            mIndex++;
+
+            while (mIndex >= getCount(mNode)) {
+                long next = Storage.getLong(mNode, 8);
+
+                if (next == 0) {
+                    return false;
+                }
+
+                mNode = readNode(next);
+                mIndex = 0;
+            }
+
+            return true;
+        }
+
+        long getOffset() {
+            return Storage.getLong(mNode, entryOffset(mIndex) + KEY_LENGTH);
+        }
+
+        /**
+         * @return Whether the current entry has the same key as the given one.
+         */
+        boolean hasKey(byte[] key) {
+            return compare(mNode, entryOffset(mIndex), key, 0, KEY_LENGTH) == 0;
+        }
+
+        byte[] getKey() {
+            return Arrays.copyOfRange(mNode, entryOffset(mIndex), entryOffset(mIndex) + KEY_LENGTH);
+        }
+
+        private int entryOffset(int index) {
+            return NODE_HEADER_LENGTH + index * ENTRY_LENGTH;
+        }
+
+    }
+
+    private static byte[] toEntry(byte[] key, long offset) {
+        byte[] entry = new byte[ENTRY_LENGTH];
+        System.arraycopy(key, 0, entry, 0, KEY_LENGTH);
+        Storage.putLong(entry, KEY_LENGTH, offset);
+        return entry;
+    }
+
+    private byte[] readNode(long page) throws IOException {
+        byte[] node = new byte[PAGE_SIZE];
+
+        mStorage.readFully(page * PAGE_SIZE, node, 0, PAGE_SIZE);
+
+        return node;
+    }
+
+    private void writeNode(long page, byte[] node) throws IOException {
+        mStorage.write(page * PAGE_SIZE, node, 0, PAGE_SIZE);
+    }
+
+    private static int getCount(byte[] node) {
+        return Storage.getInt(node, 4);
+    }
+
+    private static void setCount(byte[] node, int count) {
+        Storage.putInt(node, 4, count);
+    }
+
+    private static int separatorOffset(int index) {
+        return NODE_HEADER_LENGTH + 8 + index * (ENTRY_LENGTH + 8);
+    }
+
+    private static long getChild(byte[] node, int index) {
+        return Storage.getLong(node, index == 0 ? NODE_HEADER_LENGTH : separatorOffset(index - 1) + ENTRY_LENGTH);
+    }
+
+    private static void setChild(byte[] node, int index, long child) {
+        Storage.putLong(node, index == 0 ? NODE_HEADER_LENGTH : separatorOffset(index - 1) + ENTRY_LENGTH, child);
+    }
+
+    private static void insertLeafEntry(byte[] node, int index, byte[] entry) {
+        int count = getCount(node);
+        int entryOffset = NODE_HEADER_LENGTH + index * ENTRY_LENGTH;
+
+        System.arraycopy(node, entryOffset, node, entryOffset + ENTRY_LENGTH, (count - index) * ENTRY_LENGTH);
+        System.arraycopy(entry, 0, node, entryOffset, ENTRY_LENGTH);
+
+        setCount(node, count + 1);
+    }
+
+    /**
+     * Inserts the separator at the index with the child to its right.
+     */
+    private static void insertInternalEntry(byte[] node, int index, byte[] separator, long child) {
+        int count = getCount(node);
+        int offset = separatorOffset(index);
+
+        System.arraycopy(node, offset, node, offset + ENTRY_LENGTH + 8, (count - index) * (ENTRY_LENGTH + 8));
+        System.arraycopy(separator, 0, node, offset, ENTRY_LENGTH);
+        Storage.putLong(node, offset + ENTRY_LENGTH, child);
+
+        setCount(node, count + 1);
+    }
+
+    /**
+     * @return Index of the first leaf entry that is not less than the given entry.
+     */
+    private static int lowerBound(byte[] node, byte[] entry) {
+        int low = 0;
+        int high = getCount(node);
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (compare(node, NODE_HEADER_LENGTH + middle * ENTRY_LENGTH, entry, 0, ENTRY_LENGTH) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * @return Index of the child of an internal node that covers the given entry.
+     */
+    private static int upperBound(byte[] node, byte[] entry) {
+        int low = 0;
+        int high = getCount(node);
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (compare(node, separatorOffset(middle), entry, 0, ENTRY_LENGTH) <= 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private static int compare(byte[] b1, int offset1, byte[] b2, int offset2, int length) {
+        for (int i = 0; i < length; i++) {
+            int c1 = b1[offset1 + i] & 0xFF;
+            int c2 = b2[offset2 + i] & 0xFF;
+
+            if (c1 != c2) {
+                return c1 < c2 ? -1 : 1;
+            }
+        }
+
+        return 0;
+    }
+
+}
@@ -0,0 +1,326 @@
+package com.yashoid.yashodb;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+/**
+ * A file pointer over a {@link Storage}. Reads and writes the same way RandomAccessFile does so the
+ * on disk format stays the same, but the bytes come from whatever storage is plugged in.
+ */
+class FileAccess implements DataInput, DataOutput {
+
+    private Storage mStorage;
+
+    private long mPosition = 0;
+
+    private byte[] mBuffer = new byte[8];
+
+    FileAccess(Storage storage) {
+        mStorage = storage;
+    }
+
+    Storage getStorage() {
+        return mStorage;
+    }
+
+    void setStorage(Storage storage) {
+        mStorage = storage;
+        mPosition = 0;
+    }
+
+    void seek(long position) {
+        mPosition = position;
+    }
+
+    long getFilePointer() {
+        return mPosition;
+    }
+
+    long length() throws IOException {
+        return mStorage.length();
+    }
+
+    void close() throws IOException {
+        mStorage.close();
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        mStorage.readFully(mPosition, b, off, len);
+
+        mPosition += len;
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        long length = mStorage.length();
+
+        int skipped = (int) Math.max(0, Math.min(n, length - mPosition));
+
+        mPosition += skipped;
+
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readUnsignedByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return (byte) readUnsignedByte();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        int b = mStorage.readByte(mPosition);
+
+        mPosition++;
+
+        return b;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return (short) readUnsignedShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        readFully(mBuffer, 0, 2);
+
+        return ((mBuffer[0] & 0xFF) << 8) | (mBuffer[1] & 0xFF);
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readUnsignedShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        int i = mStorage.readInt(mPosition);
+
+        mPosition += 4;
+
+        return i;
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        long l = mStorage.readLong(mPosition);
+
+        mPosition += 8;
+
+        return l;
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        long length = mStorage.length();
+
+        if (mPosition >= length) {
+            return null;
+        }
+
+        while (mPosition < length) {
+            int c = readUnsignedByte();
+
+            if (c == '\n') {
+                break;
+            }
+
+            if (c == '\r') {
+                if (mPosition < length && mStorage.readByte(mPosition) == '\n') {
+                    mPosition++;
+                }
+
+                break;
+            }
+
+            sb.append((char) c);
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mBuffer[0] = (byte) b;
+
+        write(mBuffer, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        mStorage.write(mPosition, b, off, len);
+
+        mPosition += len;
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        mBuffer[0] = (byte) (v >>> 8);
+        mBuffer[1] = (byte) v;
+
+        write(mBuffer, 0, 2);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        writeShort(v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        Storage.putInt(mBuffer, 0, v);
+
+        write(mBuffer, 0, 4);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        Storage.putLong(mBuffer, 0, v);
+
+        write(mBuffer, 0, 8);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(String s) throws IOException {
+        int length = s.length();
+
+        byte[] bytes = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+
+        write(bytes);
+    }
+
+    @Override
+    public void writeChars(String s) throws IOException {
+        int length = s.length();
+
+        byte[] bytes = new byte[length * 2];
+
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+
+            bytes[i * 2] = (byte) (c >>> 8);
+            bytes[i * 2 + 1] = (byte) c;
+        }
+
+        write(bytes);
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        write(encodeUTF(s));
+    }
+
+    /**
+     * @return The given string in the modified UTF-8 format of {@link DataOutput#writeUTF(String)}
+     * including the two bytes length prefix.
+     */
+    static byte[] encodeUTF(String s) throws UTFDataFormatException {
+        int length = s.length();
+        int encodedLength = 0;
+
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+
+            if (c >= 1 && c <= 127) {
+                encodedLength++;
+            }
+            else if (c > 2047) {
+                encodedLength += 3;
+            }
+            else {
+                encodedLength += 2;
+            }
+        }
+
+        if (encodedLength > 65535) {
+            throw new UTFDataFormatException("Encoded string too long: " + encodedLength + " bytes");
+        }
+
+        byte[] bytes = new byte[encodedLength + 2];
+
+        bytes[0] = (byte) (encodedLength >>> 8);
+        bytes[1] = (byte) encodedLength;
+
+        int index = 2;
+
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+
+            if (c >= 1 && c <= 127) {
+                bytes[index++] = (byte) c;
+            }
+            else if (c > 2047) {
+                bytes[index++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[index++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[index++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else {
+                bytes[index++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[index++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        return bytes;
+    }
+
+}
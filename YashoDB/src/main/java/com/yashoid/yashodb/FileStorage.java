@@ -0,0 +1,121 @@
+package com.yashoid.yashodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage directly over a file. Uses positional channel reads and writes so it can be shared
+ * between threads.
+ */
+class FileStorage extends Storage {
+
+    private String mMode;
+
+    private RandomAccessFile mFileAccess;
+    private volatile FileChannel mChannel;
+
+    FileStorage(File file, String mode) throws IOException {
+        mMode = mode;
+
+        mFileAccess = new RandomAccessFile(file, mode);
+        mChannel = mFileAccess.getChannel();
+    }
+
+    FileChannel getChannel() {
+        return mChannel;
+    }
+
+    @Override
+    int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+
+        int total = 0;
+
+        while (byteBuffer.hasRemaining()) {
+            int read = mChannel.read(byteBuffer, position + total);
+
+            if (read < 0) {
+                break;
+            }
+
+            total += read;
+        }
+
+        return total == 0 && length > 0 ? -1 : total;
+    }
+
+    @Override
+    void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+
+        while (byteBuffer.hasRemaining()) {
+            position += mChannel.write(byteBuffer, position);
+        }
+    }
+
+    @Override
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+
+        while (transferred < count) {
+            long sent = mChannel.transferTo(position + transferred, count - transferred, target);
+
+            if (sent <= 0) {
+                break;
+            }
+
+            transferred += sent;
+        }
+
+        return transferred;
+    }
+
+    @Override
+    long length() throws IOException {
+        return mChannel.size();
+    }
+
+    void truncate(long length) throws IOException {
+        mChannel.truncate(length);
+    }
+
+    @Override
+    void flush() {
+
+    }
+
+    @Override
+    void sync() throws IOException {
+        FileChannel channel = mChannel;
+
+        try {
+            channel.force(true);
+        } catch (ClosedChannelException e) {
+            // The file has been replaced by one that was synced before it took its place.
+            if (channel == mChannel) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    void close() throws IOException {
+        mFileAccess.close();
+    }
+
+    @Override
+    void reopen(File file) throws IOException {
+        RandomAccessFile previous = mFileAccess;
+
+        mFileAccess = new RandomAccessFile(file, mMode);
+        mChannel = mFileAccess.getChannel();
+
+        previous.close();
+    }
+
+}
@@ -1,8 +1,14 @@
 package com.yashoid.yashodb;
 
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 interface Filter {
 
@@ -22,6 +28,11 @@ interface Filter {
      */
     String consider(String key, Object value) throws IOException;
 
+    /**
+     * @return Whether the member passes the filter. Known once consider has returned null.
+     */
+    boolean isAccepted();
+
     /**
      * All fields of the member have been reviewed and we are done with this member.
      * @param position The position of the processed member in the database.
@@ -31,6 +42,23 @@ interface Filter {
 
     void setObserver(Observer observer);
 
+    /**
+     * Adds the key paths the filter may ask for on a member.
+     */
+    void collectKeys(Collection<String> keys);
+
+    /**
+     * @return A filter that works the same as this one and has no observer so that members can be
+     * passed through both at the same time.
+     */
+    Filter copy();
+
+    /**
+     * Appends a text that is the same for filters that are made the same way. The filters of an
+     * and or an or are in a fixed order so that the order they are given in does not matter.
+     */
+    void appendCanonicalForm(StringBuilder form);
+
     interface Observer {
 
         void accepted(long position) throws IOException;
@@ -46,6 +74,12 @@ interface Filter {
         private boolean mValueIsNumber;
         private double mValueAsDouble;
 
+        private boolean mValueIsIntegral;
+        private long mValueAsLong;
+
+        // The value as strings are stored to compare stored strings to without decoding them.
+        private byte[] mValueEncoded = null;
+
         private Observer mObserver = null;
 
         private boolean mMatches;
@@ -61,6 +95,37 @@ interface Filter {
             } catch (Throwable t) {
                 mValueIsNumber = false;
             }
+
+            if (value instanceof Number) {
+                mValueIsIntegral = isIntegral((Number) value);
+                mValueAsLong = ((Number) value).longValue();
+            }
+            else if (mValueIsNumber) {
+                try {
+                    mValueAsLong = Long.parseLong(value.toString());
+                    mValueIsIntegral = true;
+                } catch (NumberFormatException e) {
+                    mValueIsIntegral = false;
+                }
+            }
+
+            if (value instanceof String || value instanceof Boolean) {
+                try {
+                    mValueEncoded = FileAccess.encodeUTF(value.toString());
+                } catch (UTFDataFormatException e) { }
+            }
+        }
+
+        String getKey() {
+            return mKey;
+        }
+
+        Object getValue() {
+            return mValue;
+        }
+
+        Operand getOperand() {
+            return mOperand;
         }
 
         @Override
@@ -68,6 +133,25 @@ interface Filter {
             mObserver = observer;
         }
 
+        @Override
+        public void collectKeys(Collection<String> keys) {
+            keys.add(mKey);
+        }
+
+        @Override
+        public Filter copy() {
+            return new ComparisonFilter(mKey, mValue, mOperand);
+        }
+
+        @Override
+        public void appendCanonicalForm(StringBuilder form) {
+            form.append("CMP(").append(mOperand).append(',');
+            QueryCache.appendText(form, mKey);
+            form.append(',');
+            QueryCache.appendValue(form, mValue);
+            form.append(')');
+        }
+
         @Override
         public boolean onNewMember() {
             mMatches = false;
@@ -86,46 +170,138 @@ interface Filter {
                 return null;
             }
 
-            if (mValueIsNumber) {
-                try {
-                    double valueAsDouble = Double.parseDouble(value.toString());
+            if (value instanceof ScratchString) {
+                ScratchString string = (ScratchString) value;
+
+                if (mValueIsNumber && string.mayBeNumber()) {
+                    // Might be a number written before numbers had their own types.
+                    value = string.toString();
+                }
+                else if (mValueEncoded != null || mValue instanceof Number) {
+                    boolean equal = mValueEncoded != null && string.matches(mValueEncoded);
 
                     switch (mOperand) {
                         case EQ:
-                            mMatches = mValueAsDouble == valueAsDouble;
+                            mMatches = equal;
                             break;
                         case NEQ:
-                            mMatches = mValueAsDouble != valueAsDouble;
-                            break;
-                        case ST:
-                            mMatches = valueAsDouble < mValueAsDouble;
+                            mMatches = !equal;
                             break;
-                        case SQT:
-                            mMatches = valueAsDouble <= mValueAsDouble;
-                            break;
-                        case BT:
-                            mMatches = valueAsDouble > mValueAsDouble;
-                            break;
-                        case BQT:
-                            mMatches = valueAsDouble >= mValueAsDouble;
                     }
 
                     return null;
-                } catch (NumberFormatException e) { }
+                }
+                else {
+                    value = string.toString();
+                }
+            }
+
+            if (mValueIsNumber) {
+                if (value instanceof Number) {
+                    Number number = (Number) value;
+
+                    if (mValueIsIntegral && isIntegral(number)) {
+                        long valueAsLong = number.longValue();
+
+                        mMatches = matches(valueAsLong < mValueAsLong ? -1 : (valueAsLong == mValueAsLong ? 0 : 1));
+                    }
+                    else {
+                        mMatches = matches(number.doubleValue());
+                    }
+
+                    return null;
+                }
+
+                if (value instanceof String) {
+                    // Values written before numbers had their own types.
+                    try {
+                        mMatches = matches(Double.parseDouble((String) value));
+
+                        return null;
+                    } catch (NumberFormatException e) { }
+                }
             }
 
             switch (mOperand) {
                 case EQ:
-                    mMatches = mValue.equals(value);
+                    mMatches = isEqual(value);
                     break;
                 case NEQ:
-                    mMatches = !mValue.equals(value);
+                    mMatches = !isEqual(value);
                     break;
             }
 
             return null;
         }
 
+        private boolean matches(double valueAsDouble) {
+            switch (mOperand) {
+                case EQ:
+                    return mValueAsDouble == valueAsDouble;
+                case NEQ:
+                    return mValueAsDouble != valueAsDouble;
+                case ST:
+                    return valueAsDouble < mValueAsDouble;
+                case SQT:
+                    return valueAsDouble <= mValueAsDouble;
+                case BT:
+                    return valueAsDouble > mValueAsDouble;
+                case BQT:
+                    return valueAsDouble >= mValueAsDouble;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * @param comparison Result of comparing the member value to the filter value.
+         */
+        private boolean matches(int comparison) {
+            switch (mOperand) {
+                case EQ:
+                    return comparison == 0;
+                case NEQ:
+                    return comparison != 0;
+                case ST:
+                    return comparison < 0;
+                case SQT:
+                    return comparison <= 0;
+                case BT:
+                    return comparison > 0;
+                case BQT:
+                    return comparison >= 0;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean isEqual(Object value) {
+            if (mValue.equals(value)) {
+                return true;
+            }
+
+            // Booleans used to be stored as strings.
+            if (mValue instanceof Boolean || value instanceof Boolean) {
+                return mValue.toString().equals(value.toString());
+            }
+
+            return false;
+        }
+
+        private static boolean isIntegral(Number number) {
+            if (number instanceof ScratchNumber) {
+                return ((ScratchNumber) number).isIntegral();
+            }
+
+            return number instanceof Long || number instanceof Integer ||
+                    number instanceof Short || number instanceof Byte;
+        }
+
+        @Override
+        public boolean isAccepted() {
+            return mMatches;
+        }
+
         @Override
         public boolean onMemberReviewed(long position) throws IOException {
             if (mMatches) {
@@ -153,11 +329,32 @@ interface Filter {
             mKey = key;
         }
 
+        String getKey() {
+            return mKey;
+        }
+
         @Override
         public void setObserver(Observer observer) {
             mObserver = observer;
         }
 
+        @Override
+        public void collectKeys(Collection<String> keys) {
+            keys.add(mKey);
+        }
+
+        @Override
+        public Filter copy() {
+            return new NullFilter(mKey);
+        }
+
+        @Override
+        public void appendCanonicalForm(StringBuilder form) {
+            form.append("NULL(");
+            QueryCache.appendText(form, mKey);
+            form.append(')');
+        }
+
         @Override
         public boolean onNewMember() {
             mMatches = false;
@@ -176,6 +373,11 @@ interface Filter {
             return null;
         }
 
+        @Override
+        public boolean isAccepted() {
+            return mMatches;
+        }
+
         @Override
         public boolean onMemberReviewed(long position) throws IOException {
             if (mMatches) {
@@ -203,11 +405,32 @@ interface Filter {
             mKey = key;
         }
 
+        String getKey() {
+            return mKey;
+        }
+
         @Override
         public void setObserver(Observer observer) {
             mObserver = observer;
         }
 
+        @Override
+        public void collectKeys(Collection<String> keys) {
+            keys.add(mKey);
+        }
+
+        @Override
+        public Filter copy() {
+            return new NotNullFilter(mKey);
+        }
+
+        @Override
+        public void appendCanonicalForm(StringBuilder form) {
+            form.append("NOTNULL(");
+            QueryCache.appendText(form, mKey);
+            form.append(')');
+        }
+
         @Override
         public boolean onNewMember() {
             mMatches = false;
@@ -226,6 +449,11 @@ interface Filter {
             return null;
         }
 
+        @Override
+        public boolean isAccepted() {
+            return mMatches;
+        }
+
         @Override
         public boolean onMemberReviewed(long position) throws IOException {
             if (mMatches) {
@@ -257,11 +485,36 @@ interface Filter {
             mOperand = operand;
         }
 
+        String getKey() {
+            return mKey;
+        }
+
+        Operand getOperand() {
+            return mOperand;
+        }
+
         @Override
         public void setObserver(Observer observer) {
             mObserver = observer;
         }
 
+        @Override
+        public void collectKeys(Collection<String> keys) {
+            keys.add(mKey);
+        }
+
+        @Override
+        public Filter copy() {
+            return new CountFilter(mKey, mValue, mOperand);
+        }
+
+        @Override
+        public void appendCanonicalForm(StringBuilder form) {
+            form.append("COUNT(").append(mOperand).append(',');
+            QueryCache.appendText(form, mKey);
+            form.append(',').append(mValue).append(')');
+        }
+
         @Override
         public boolean onNewMember() {
             mMatches = false;
@@ -311,6 +564,11 @@ interface Filter {
             return null;
         }
 
+        @Override
+        public boolean isAccepted() {
+            return mMatches;
+        }
+
         @Override
         public boolean onMemberReviewed(long position) throws IOException {
             if (mMatches) {
@@ -344,11 +602,36 @@ interface Filter {
             mFilter = filter;
         }
 
+        Filter getFilter() {
+            return mFilter;
+        }
+
+        void reset() {
+            mNeedMore = true;
+        }
+
         @Override
         public void setObserver(Observer observer) {
             mObserver = observer;
         }
 
+        @Override
+        public void collectKeys(Collection<String> keys) {
+            mFilter.collectKeys(keys);
+        }
+
+        @Override
+        public Filter copy() {
+            return new OnlyOneFilter(mFilter.copy());
+        }
+
+        @Override
+        public void appendCanonicalForm(StringBuilder form) {
+            form.append("ONE(");
+            mFilter.appendCanonicalForm(form);
+            form.append(')');
+        }
+
         @Override
         public boolean onNewMember() {
             return mNeedMore && mFilter.onNewMember();
@@ -359,6 +642,11 @@ interface Filter {
             return mFilter.consider(key, value);
         }
 
+        @Override
+        public boolean isAccepted() {
+            return mFilter.isAccepted();
+        }
+
         @Override
         public boolean onMemberReviewed(long position) throws IOException {
             boolean accepted = mFilter.onMemberReviewed(position);
@@ -374,12 +662,99 @@ interface Filter {
 
     }
 
+    /**
+     * Passes on the members accepted by the filter after skipping a number of them and stops the
+     * scan once the limit is reached.
+     */
+    class LimitFilter implements Filter {
+
+        private Filter mFilter;
+
+        private long mSkip;
+        private long mLimit;
+
+        private long mSkipped = 0;
+        private long mPassed = 0;
+
+        private Observer mObserver = null;
+
+        LimitFilter(Filter filter, long skip, long limit) {
+            mFilter = filter;
+            mSkip = skip;
+            mLimit = limit;
+        }
+
+        Filter getFilter() {
+            return mFilter;
+        }
+
+        @Override
+        public void setObserver(Observer observer) {
+            mObserver = observer;
+        }
+
+        @Override
+        public void collectKeys(Collection<String> keys) {
+            mFilter.collectKeys(keys);
+        }
+
+        @Override
+        public Filter copy() {
+            return new LimitFilter(mFilter.copy(), mSkip, mLimit);
+        }
+
+        @Override
+        public void appendCanonicalForm(StringBuilder form) {
+            form.append("LIMIT(").append(mSkip).append(',').append(mLimit).append(',');
+            mFilter.appendCanonicalForm(form);
+            form.append(')');
+        }
+
+        @Override
+        public boolean onNewMember() {
+            return mPassed < mLimit && mFilter.onNewMember();
+        }
+
+        @Override
+        public String consider(String key, Object value) throws IOException {
+            return mFilter.consider(key, value);
+        }
+
+        @Override
+        public boolean isAccepted() {
+            return mFilter.isAccepted();
+        }
+
+        @Override
+        public boolean onMemberReviewed(long position) throws IOException {
+            if (!mFilter.onMemberReviewed(position)) {
+                return false;
+            }
+
+            if (mSkipped < mSkip) {
+                mSkipped++;
+                return false;
+            }
+
+            mPassed++;
+
+            if (mObserver != null) {
+                mObserver.accepted(position);
+            }
+
+            return true;
+        }
+
+    }
+
     class WithinFilter implements AppendableFilter, Observer {
 
         private String mKey;
 
         private Filter mFilter;
 
+        private OnlyOneFilter mOnlyOneFilter = null;
+
         private boolean mMatches;
 
         private Observer mObserver = null;
@@ -388,6 +763,10 @@ interface Filter {
             mKey = key;
         }
 
+        String getKey() {
+            return mKey;
+        }
+
         @Override
         public void setObserver(Observer observer) {
             mObserver = observer;
@@ -398,6 +777,28 @@ interface Filter {
             mFilter = filter;
         }
 
+        @Override
+        public void collectKeys(Collection<String> keys) {
+            // The filter applies to the members of the collection.
+            keys.add(mKey);
+        }
+
+        @Override
+        public Filter copy() {
+            WithinFilter filter = new WithinFilter(mKey);
+            filter.append(mFilter.copy());
+            return filter;
+        }
+
+        @Override
+        public void appendCanonicalForm(StringBuilder form) {
+            form.append("WITHIN(");
+            QueryCache.appendText(form, mKey);
+            form.append(',');
+            mFilter.appendCanonicalForm(form);
+            form.append(')');
+        }
+
         @Override
         public boolean onNewMember() {
             mMatches = false;
@@ -421,11 +822,14 @@ interface Filter {
                 return null;
             }
 
-            Filter filter = new OnlyOneFilter(mFilter);
+            if (mOnlyOneFilter == null) {
+                mOnlyOneFilter = new OnlyOneFilter(mFilter);
+                mOnlyOneFilter.setObserver(this);
+            }
 
-            filter.setObserver(this);
+            mOnlyOneFilter.reset();
 
-            db.applyFilter(filter);
+            db.applyFilter(mOnlyOneFilter);
 
             return null;
         }
@@ -435,6 +839,11 @@ interface Filter {
             mMatches = true;
         }
 
+        @Override
+        public boolean isAccepted() {
+            return mMatches;
+        }
+
         @Override
         public boolean onMemberReviewed(long position) throws IOException {
             if (mMatches) {
@@ -450,18 +859,37 @@ interface Filter {
 
     }
 
-    class AndFilter implements AppendableFilter {
+    /**
+     * Passes the member through its filters one by one in the order they are likely to decide the
+     * member the cheapest. Stops at the first filter that decides the member.
+     */
+    abstract class CompositeFilter implements AppendableFilter {
 
         private List<Filter> mFilters = new ArrayList<>();
 
+        // Whether a filter accepting or a filter rejecting the member decides it.
+        private boolean mDecidingResult;
+
+        private boolean mSorted = true;
+
         private Observer mObserver = null;
 
         private int mIndex;
         private boolean mMatches;
 
+        CompositeFilter(boolean decidingResult) {
+            mDecidingResult = decidingResult;
+        }
+
+        List<Filter> getFilters() {
+            return mFilters;
+        }
+
         @Override
         public void append(Filter filter) {
             mFilters.add(filter);
+
+            mSorted = false;
         }
 
         @Override
@@ -469,61 +897,327 @@ interface Filter {
             mObserver = observer;
         }
 
+        @Override
+        public void collectKeys(Collection<String> keys) {
+            for (Filter filter: mFilters) {
+                filter.collectKeys(keys);
+            }
+        }
+
+        @Override
+        public Filter copy() {
+            CompositeFilter filter = mDecidingResult ? new OrFilter() : new AndFilter();
+
+            for (Filter child: mFilters) {
+                filter.append(child.copy());
+            }
+
+            return filter;
+        }
+
+        @Override
+        public void appendCanonicalForm(StringBuilder form) {
+            List<String> childForms = new ArrayList<>(mFilters.size());
+
+            for (Filter child: mFilters) {
+                StringBuilder childForm = new StringBuilder();
+
+                child.appendCanonicalForm(childForm);
+
+                childForms.add(childForm.toString());
+            }
+
+            Collections.sort(childForms);
+
+            form.append(mDecidingResult ? "OR(" : "AND(");
+
+            for (int i = 0; i < childForms.size(); i++) {
+                if (i > 0) {
+                    form.append(',');
+                }
+
+                form.append(childForms.get(i));
+            }
+
+            form.append(')');
+        }
+
         @Override
         public boolean onNewMember() {
-            mMatches = true;
-            mIndex = -1;
+            if (!mSorted) {
+                sort();
+            }
+
+            mIndex = 0;
+            mMatches = !mDecidingResult;
 
             return true;
         }
 
         @Override
-        public String consider(String key, Object value) {
-            if (mIndex == -1) {
-//                return mFilters.get(++mIndex).
+        public String consider(String key, Object value) throws IOException {
+            if (key != null) {
+                Filter filter = mFilters.get(mIndex);
+
+                String nextKey = filter.consider(key, value);
+
+                if (nextKey != null) {
+                    return nextKey;
+                }
+
+                if (filter.isAccepted() == mDecidingResult) {
+                    mMatches = mDecidingResult;
+                    return null;
+                }
+
+                mIndex++;
             }
 
-            mIndex++;
+            for (; mIndex < mFilters.size(); mIndex++) {
+                Filter filter = mFilters.get(mIndex);
 
+                filter.onNewMember();
+
+                String nextKey = filter.consider(null, null);
+
+                if (nextKey != null) {
+                    return nextKey;
+                }
+
+                if (filter.isAccepted() == mDecidingResult) {
+                    mMatches = mDecidingResult;
+                    return null;
+                }
+            }
 
             return null;
-//            return (mIndex == mFilters.size() - 1) ? ;
         }
 
         @Override
-        public boolean onMemberReviewed(long position) {
+        public boolean isAccepted() {
+            return mMatches;
+        }
+
+        @Override
+        public boolean onMemberReviewed(long position) throws IOException {
+            if (mMatches) {
+                if (mObserver != null) {
+                    mObserver.accepted(position);
+                }
+
+                return true;
+            }
+
             return false;
         }
+
+        /**
+         * Orders the filters by their cost over the chance that they decide the member. Cheap
+         * filters that decide most members come first.
+         */
+        private void sort() {
+            final Map<Filter, Double> ranks = new HashMap<>();
+
+            for (Filter filter: mFilters) {
+                double decideRate = mDecidingResult ? passRate(filter) : 1 - passRate(filter);
+
+                ranks.put(filter, cost(filter) / Math.max(decideRate, 0.01));
+            }
+
+            Collections.sort(mFilters, new Comparator<Filter>() {
+
+                @Override
+                public int compare(Filter f1, Filter f2) {
+                    return Double.compare(ranks.get(f1), ranks.get(f2));
+                }
+
+            });
+
+            mSorted = true;
+        }
+
+        /**
+         * @return Rough number of keys read to decide the filter.
+         */
+        static double cost(Filter filter) {
+            if (filter instanceof ComparisonFilter) {
+                return pathLength(((ComparisonFilter) filter).getKey());
+            }
+            else if (filter instanceof NullFilter) {
+                return pathLength(((NullFilter) filter).getKey());
+            }
+            else if (filter instanceof NotNullFilter) {
+                return pathLength(((NotNullFilter) filter).getKey());
+            }
+            else if (filter instanceof CountFilter) {
+                return pathLength(((CountFilter) filter).getKey()) + 1;
+            }
+            else if (filter instanceof WithinFilter) {
+                // A nested collection is scanned.
+                return pathLength(((WithinFilter) filter).getKey()) + 16;
+            }
+            else if (filter instanceof NotFilter) {
+                return cost(((NotFilter) filter).getFilter());
+            }
+            else if (filter instanceof CompositeFilter) {
+                double cost = 0;
+
+                for (Filter child: ((CompositeFilter) filter).getFilters()) {
+                    cost += cost(child);
+                }
+
+                return cost;
+            }
+
+            return 1;
+        }
+
+        /**
+         * @return Rough share of the members that pass the filter.
+         */
+        static double passRate(Filter filter) {
+            if (filter instanceof ComparisonFilter) {
+                return passRate(((ComparisonFilter) filter).getOperand());
+            }
+            else if (filter instanceof CountFilter) {
+                return passRate(((CountFilter) filter).getOperand());
+            }
+            else if (filter instanceof NullFilter) {
+                return 0.1;
+            }
+            else if (filter instanceof NotNullFilter) {
+                return 0.9;
+            }
+            else if (filter instanceof NotFilter) {
+                return 1 - passRate(((NotFilter) filter).getFilter());
+            }
+            else if (filter instanceof AndFilter) {
+                double passRate = 1;
+
+                for (Filter child: ((AndFilter) filter).getFilters()) {
+                    passRate *= passRate(child);
+                }
+
+                return passRate;
+            }
+            else if (filter instanceof OrFilter) {
+                double failRate = 1;
+
+                for (Filter child: ((OrFilter) filter).getFilters()) {
+                    failRate *= 1 - passRate(child);
+                }
+
+                return 1 - failRate;
+            }
+
+            return 0.5;
+        }
+
+        private static double passRate(Operand operand) {
+            switch (operand) {
+                case EQ:
+                    return 0.1;
+                case NEQ:
+                    return 0.9;
+                default:
+                    return 0.5;
+            }
+        }
+
+        private static int pathLength(String key) {
+            int length = 1;
+
+            for (int i = 0; i < key.length(); i++) {
+                if (key.charAt(i) == '.') {
+                    length++;
+                }
+            }
+
+            return length;
+        }
+
     }
 
-    class OrFilter implements AppendableFilter {
+    class AndFilter extends CompositeFilter {
 
-        private List<Filter> mFilters = new ArrayList<>();
+        AndFilter() {
+            super(false);
+        }
+
+    }
+
+    class OrFilter extends CompositeFilter {
+
+        OrFilter() {
+            super(true);
+        }
+
+    }
+
+    class NotFilter implements AppendableFilter {
+
+        private Filter mFilter;
 
         private Observer mObserver = null;
 
+        Filter getFilter() {
+            return mFilter;
+        }
+
+        @Override
+        public void append(Filter filter) {
+            mFilter = filter;
+        }
+
         @Override
         public void setObserver(Observer observer) {
             mObserver = observer;
         }
 
         @Override
-        public void append(Filter filter) {
-            mFilters.add(filter);
+        public void collectKeys(Collection<String> keys) {
+            mFilter.collectKeys(keys);
+        }
+
+        @Override
+        public Filter copy() {
+            NotFilter filter = new NotFilter();
+            filter.append(mFilter.copy());
+            return filter;
+        }
+
+        @Override
+        public void appendCanonicalForm(StringBuilder form) {
+            form.append("NOT(");
+            mFilter.appendCanonicalForm(form);
+            form.append(')');
         }
 
         @Override
         public boolean onNewMember() {
-            return false;
+            return mFilter.onNewMember();
         }
 
         @Override
-        public String consider(String key, Object value) {
-            return null;
+        public String consider(String key, Object value) throws IOException {
+            return mFilter.consider(key, value);
         }
 
         @Override
-        public boolean onMemberReviewed(long position) {
+        public boolean isAccepted() {
+            return !mFilter.isAccepted();
+        }
+
+        @Override
+        public boolean onMemberReviewed(long position) throws IOException {
+            if (isAccepted()) {
+                if (mObserver != null) {
+                    mObserver.accepted(position);
+                }
+
+                return true;
+            }
+
             return false;
         }
 
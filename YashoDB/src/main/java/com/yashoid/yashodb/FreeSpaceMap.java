@@ -0,0 +1,134 @@
+package com.yashoid.yashodb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Ranges of the database file that nothing refers to anymore. Ranges are kept in buckets by size
+ * class, the highest bit of their length, so a range that is big enough is found by looking at a
+ * few ranges of the same class or at any range of a bigger class.
+ */
+class FreeSpaceMap {
+
+    // Smaller ranges are not worth keeping.
+    static final int MIN_LENGTH = 32;
+
+    private static final int MAX_RANGES = 64 * 1024;
+
+    // Ranges of the same class looked at before moving to a bigger class.
+    private static final int MAX_PROBES = 8;
+
+    private long[][] mOffsets = new long[64][];
+    private long[][] mLengths = new long[64][];
+    private int[] mSizes = new int[64];
+
+    private int mCount = 0;
+
+    int getCount() {
+        return mCount;
+    }
+
+    void add(long offset, long length) {
+        if (length < MIN_LENGTH || mCount == MAX_RANGES) {
+            return;
+        }
+
+        int sizeClass = sizeClass(length);
+
+        int size = mSizes[sizeClass];
+
+        if (mOffsets[sizeClass] == null) {
+            mOffsets[sizeClass] = new long[8];
+            mLengths[sizeClass] = new long[8];
+        }
+        else if (size == mOffsets[sizeClass].length) {
+            mOffsets[sizeClass] = Arrays.copyOf(mOffsets[sizeClass], size * 2);
+            mLengths[sizeClass] = Arrays.copyOf(mLengths[sizeClass], size * 2);
+        }
+
+        mOffsets[sizeClass][size] = offset;
+        mLengths[sizeClass][size] = length;
+
+        mSizes[sizeClass]++;
+        mCount++;
+    }
+
+    /**
+     * Takes the first bytes of a range that is at least the given length long. The rest of the
+     * range stays free.
+     *
+     * @return Offset of the taken bytes or -1 if no range is long enough.
+     */
+    long take(long length) {
+        int sizeClass = sizeClass(length);
+
+        int size = mSizes[sizeClass];
+
+        for (int i = size - 1; i >= Math.max(0, size - MAX_PROBES); i--) {
+            if (mLengths[sizeClass][i] >= length) {
+                return take(sizeClass, i, length);
+            }
+        }
+
+        // Every range of a bigger class is long enough.
+        for (int c = sizeClass + 1; c < mSizes.length; c++) {
+            if (mSizes[c] > 0) {
+                return take(c, mSizes[c] - 1, length);
+            }
+        }
+
+        return -1;
+    }
+
+    private long take(int sizeClass, int index, long length) {
+        long offset = mOffsets[sizeClass][index];
+        long rangeLength = mLengths[sizeClass][index];
+
+        int last = --mSizes[sizeClass];
+
+        mOffsets[sizeClass][index] = mOffsets[sizeClass][last];
+        mLengths[sizeClass][index] = mLengths[sizeClass][last];
+
+        mCount--;
+
+        add(offset + length, rangeLength - length);
+
+        return offset;
+    }
+
+    void clear() {
+        Arrays.fill(mSizes, 0);
+
+        mCount = 0;
+    }
+
+    void write(DataOutput output) throws IOException {
+        output.writeInt(mCount);
+
+        for (int c = 0; c < mSizes.length; c++) {
+            for (int i = 0; i < mSizes[c]; i++) {
+                output.writeLong(mOffsets[c][i]);
+                output.writeLong(mLengths[c][i]);
+            }
+        }
+    }
+
+    void read(DataInput input) throws IOException {
+        clear();
+
+        int count = input.readInt();
+
+        for (int i = 0; i < count; i++) {
+            long offset = input.readLong();
+
+            add(offset, input.readLong());
+        }
+    }
+
+    private static int sizeClass(long length) {
+        return 63 - Long.numberOfLeadingZeros(length);
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.yashoid.yashodb;
+
+import java.util.Arrays;
+
+/**
+ * Hashes of the live keys of an object sorted together with the offsets of their key-value
+ * records. Finding a key costs a binary search and one seek per key with the same hash.
+ */
+class KeyDirectory {
+
+    private int[] mHashes = new int[8];
+    private long[] mOffsets = new long[8];
+
+    private int mSize = 0;
+
+    /**
+     * Same as {@link String#hashCode()} of the key as it is read back from the file.
+     */
+    static int hash(byte[] keyBytes, int length) {
+        int hash = 0;
+
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + (char) keyBytes[i];
+        }
+
+        return hash;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int getHash(int index) {
+        return mHashes[index];
+    }
+
+    long getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    /**
+     * @return Index of the first entry with the given hash or -1.
+     */
+    int indexOf(int hash) {
+        int low = 0;
+        int high = mSize;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (mHashes[middle] < hash) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low < mSize && mHashes[low] == hash ? low : -1;
+    }
+
+    /**
+     * Adds a key without keeping the order. {@link #sort()} must be called before the directory is
+     * used.
+     */
+    void append(int hash, long offset) {
+        if (mSize == mHashes.length) {
+            mHashes = Arrays.copyOf(mHashes, mSize * 2);
+            mOffsets = Arrays.copyOf(mOffsets, mSize * 2);
+        }
+
+        mHashes[mSize] = hash;
+        mOffsets[mSize] = offset;
+
+        mSize++;
+    }
+
+    /**
+     * Sorts the appended keys by their hashes at once.
+     */
+    void sort() {
+        // Each hash along with the index of its offset so that primitive longs are sorted.
+        long[] entries = new long[mSize];
+
+        for (int i = 0; i < mSize; i++) {
+            entries[i] = ((long) mHashes[i] << 32) | i;
+        }
+
+        Arrays.sort(entries);
+
+        long[] offsets = new long[mOffsets.length];
+
+        for (int i = 0; i < mSize; i++) {
+            mHashes[i] = (int) (entries[i] >> 32);
+            offsets[i] = mOffsets[(int) entries[i]];
+        }
+
+        mOffsets = offsets;
+    }
+
+    /**
+     * @param offset Offset of the DELETED/NOT_DELETED byte of the key-value.
+     */
+    void add(int hash, long offset) {
+        if (mSize == mHashes.length) {
+            mHashes = Arrays.copyOf(mHashes, mSize * 2);
+            mOffsets = Arrays.copyOf(mOffsets, mSize * 2);
+        }
+
+        int index = mSize;
+
+        while (index > 0 && mHashes[index - 1] > hash) {
+            index--;
+        }
+
+        System.arraycopy(mHashes, index, mHashes, index + 1, mSize - index);
+        System.arraycopy(mOffsets, index, mOffsets, index + 1, mSize - index);
+
+        mHashes[index] = hash;
+        mOffsets[index] = offset;
+
+        mSize++;
+    }
+
+    void remove(int hash, long offset) {
+        int index = indexOf(hash);
+
+        if (index == -1) {
+            return;
+        }
+
+        for (int i = index; i < mSize && mHashes[i] == hash; i++) {
+            if (mOffsets[i] == offset) {
+                System.arraycopy(mHashes, i + 1, mHashes, i, mSize - i - 1);
+                System.arraycopy(mOffsets, i + 1, mOffsets, i, mSize - i - 1);
+
+                mSize--;
+
+                return;
+            }
+        }
+    }
+
+}
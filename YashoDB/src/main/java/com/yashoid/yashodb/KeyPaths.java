@@ -0,0 +1,169 @@
+package com.yashoid.yashodb;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The dotted key paths a filter reads arranged as a tree of keys so that a member can be walked
+ * once for all of them. Also holds the values read for the paths from the current member.
+ */
+class KeyPaths {
+
+    static class Node {
+
+        private byte[] mKey;
+
+        // Index of the value of the path ending at this node or -1.
+        private int mSlot = -1;
+
+        private Node[] mChildren = new Node[0];
+
+        private Node(byte[] key) {
+            mKey = key;
+        }
+
+        int getSlot() {
+            return mSlot;
+        }
+
+        int getChildCount() {
+            return mChildren.length;
+        }
+
+        /**
+         * @return The child with the given key or null.
+         */
+        Node getChild(byte[] key, int keyLength) {
+            for (Node child: mChildren) {
+                if (child.mKey.length == keyLength && startsWith(key, child.mKey)) {
+                    return child;
+                }
+            }
+
+            return null;
+        }
+
+        private Node getOrAddChild(String key) {
+            byte[] keyBytes = toBytes(key);
+
+            for (Node child: mChildren) {
+                if (Arrays.equals(child.mKey, keyBytes)) {
+                    return child;
+                }
+            }
+
+            Node child = new Node(keyBytes);
+
+            mChildren = Arrays.copyOf(mChildren, mChildren.length + 1);
+            mChildren[mChildren.length - 1] = child;
+
+            return child;
+        }
+
+    }
+
+    private Node mRoot = new Node(new byte[0]);
+
+    private Map<String, Integer> mSlots = new HashMap<>();
+
+    private Object[] mValues;
+    private ScratchNumber[] mNumbers;
+    private ScratchString[] mStrings;
+
+    private byte[] mKeyBuffer = new byte[64];
+
+    KeyPaths(Collection<String> paths) {
+        for (String path: paths) {
+            if (mSlots.containsKey(path)) {
+                continue;
+            }
+
+            String[] keys = path.split("\\.");
+
+            Node node = mRoot;
+
+            for (String key: keys) {
+                node = node.getOrAddChild(key);
+            }
+
+            node.mSlot = mSlots.size();
+
+            mSlots.put(path, node.mSlot);
+        }
+
+        mValues = new Object[mSlots.size()];
+        mNumbers = new ScratchNumber[mSlots.size()];
+        mStrings = new ScratchString[mSlots.size()];
+
+        for (int i = 0; i < mNumbers.length; i++) {
+            mNumbers[i] = new ScratchNumber();
+            mStrings[i] = new ScratchString();
+        }
+    }
+
+    Node getRoot() {
+        return mRoot;
+    }
+
+    int getPathCount() {
+        return mSlots.size();
+    }
+
+    /**
+     * @return A buffer for reading a key of the given length into.
+     */
+    byte[] getKeyBuffer(int keyLength) {
+        if (mKeyBuffer.length < keyLength) {
+            mKeyBuffer = new byte[Math.max(keyLength, mKeyBuffer.length * 2)];
+        }
+
+        return mKeyBuffer;
+    }
+
+    void clearValues(Object missingValue) {
+        Arrays.fill(mValues, missingValue);
+    }
+
+    /**
+     * Numbers and strings are copied out of the scratch instances they are read into so that every
+     * slot keeps its own.
+     */
+    void setValue(int slot, Object value) {
+        if (value instanceof ScratchNumber) {
+            value = mNumbers[slot].set((ScratchNumber) value);
+        }
+        else if (value instanceof ScratchString) {
+            value = mStrings[slot].set((ScratchString) value);
+        }
+
+        mValues[slot] = value;
+    }
+
+    Object getValue(String path) {
+        return mValues[mSlots.get(path)];
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static byte[] toBytes(String key) {
+        byte[] bytes = new byte[key.length()];
+
+        // Keys are limited to ASCII characters.
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) key.charAt(i);
+        }
+
+        return bytes;
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.yashoid.yashodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+/**
+ * Records every write in the {@link WriteAheadLog} before it lands in the page cache. Pages changed
+ * by the pending transaction stay in memory until it is committed and no changed page is written
+ * back to the database file before the log holding its changes is on the device. The database file
+ * itself is only brought up to date at checkpoints.
+ */
+class LoggedStorage extends Storage implements PageCache.WriteBackListener {
+
+    private PageCache mCache;
+    private WriteAheadLog mLog;
+
+    private long mCheckpointSize;
+
+    LoggedStorage(PageCache cache, WriteAheadLog log, long checkpointSize) {
+        mCache = cache;
+        mLog = log;
+
+        mCheckpointSize = checkpointSize;
+
+        mCache.setPinWrites(true);
+        mCache.setWriteBackListener(this);
+    }
+
+    @Override
+    int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        return mCache.read(position, buffer, offset, length);
+    }
+
+    @Override
+    int readByte(long position) throws IOException {
+        return mCache.readByte(position);
+    }
+
+    @Override
+    int readInt(long position) throws IOException {
+        return mCache.readInt(position);
+    }
+
+    @Override
+    long readLong(long position) throws IOException {
+        return mCache.readLong(position);
+    }
+
+    /**
+     * Large writes are logged in chunks so the log can write its pending records ahead as they
+     * grow. They still only count once the operation is committed.
+     */
+    @Override
+    void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, WriteAheadLog.MAX_PENDING_LENGTH);
+
+            mLog.append(position, buffer, offset, count);
+
+            mCache.write(position, buffer, offset, count);
+
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return mCache.transferTo(position, count, target);
+    }
+
+    @Override
+    long length() {
+        return mCache.length();
+    }
+
+    @Override
+    void commit() throws IOException {
+        if (mLog.commit()) {
+            mCache.unpinAll();
+
+            if (mLog.length() >= mCheckpointSize) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Changes only reach the database file when their pages are written back, so the dirty pages
+     * are all the file is missing.
+     */
+    @Override
+    Map<Long, byte[]> getUnflushedPages() {
+        return mCache.getUnflushedPages();
+    }
+
+    /**
+     * Commits the pending transaction to the log.
+     */
+    @Override
+    void flush() throws IOException {
+        commit();
+    }
+
+    /**
+     * Forces the log to the device. Safe to call without the database lock.
+     */
+    @Override
+    void sync() throws IOException {
+        mLog.sync();
+    }
+
+    /**
+     * Applies everything in the log to the database file and empties the log.
+     */
+    @Override
+    void checkpoint() throws IOException {
+        if (mLog.commit()) {
+            mCache.unpinAll();
+        }
+
+        mLog.sync();
+
+        mCache.sync();
+
+        mLog.truncate();
+    }
+
+    /**
+     * Changes only reach the database file at checkpoints.
+     */
+    @Override
+    void flushToFile() throws IOException {
+        checkpoint();
+    }
+
+    @Override
+    void close() throws IOException {
+        checkpoint();
+
+        mCache.close();
+        mLog.close();
+    }
+
+    @Override
+    void reopen(File file) throws IOException {
+        mCache.reopen(file);
+    }
+
+    @Override
+    public void beforeWriteBack() throws IOException {
+        mLog.sync();
+    }
+
+}
@@ -0,0 +1,259 @@
+package com.yashoid.yashodb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the database file through memory mapped segments so that the file can be bigger than what a
+ * single mapping can address. Writes go to the file underneath and since the mappings are shared
+ * they are visible right away. Growth of the file is picked up by remapping the last segment once
+ * the part of the file past the mapped area is as big as the mapped part of the last segment, so
+ * the mapping doubles each time. Until then reads past the mapped area go to the file through a
+ * small window. A replaced mapping is only released by the garbage collector, which is why the
+ * mapping is not redone for every bit of growth.
+ */
+class MappedStorage extends Storage {
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // Least growth of the file that is mapped.
+    private static final long MIN_REMAP_LENGTH = 64 * 1024;
+
+    private static final int WINDOW_SIZE = 4 * 1024;
+
+    private FileStorage mStorage;
+    private FileChannel mChannel;
+
+    private List<MappedByteBuffer> mSegments = new ArrayList<>();
+
+    private long mMappedLength = 0;
+    private long mLength;
+
+    private byte[] mBuffer = new byte[8];
+
+    // Bytes of the file past the mapped area that were read last.
+    private byte[] mWindow = new byte[WINDOW_SIZE];
+    private long mWindowStart = 0;
+    private int mWindowLength = 0;
+
+    MappedStorage(FileStorage storage) throws IOException {
+        mStorage = storage;
+        mChannel = storage.getChannel();
+
+        mLength = storage.length();
+
+        map(mLength);
+    }
+
+    @Override
+    int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position >= mLength) {
+            return -1;
+        }
+
+        length = (int) Math.min(length, mLength - position);
+
+        if (!isMapped(position + length)) {
+            return readUnmapped(position, buffer, offset, length);
+        }
+
+        int total = 0;
+
+        while (total < length) {
+            ByteBuffer segment = mSegments.get((int) (position >>> SEGMENT_SHIFT)).duplicate();
+
+            int segmentOffset = (int) (position & SEGMENT_MASK);
+            int count = (int) Math.min(length - total, SEGMENT_SIZE - segmentOffset);
+
+            segment.position(segmentOffset);
+            segment.get(buffer, offset + total, count);
+
+            total += count;
+            position += count;
+        }
+
+        return total;
+    }
+
+    @Override
+    int readByte(long position) throws IOException {
+        if (position >= mLength) {
+            throw new EOFException();
+        }
+
+        if (!isMapped(position + 1)) {
+            readUnmapped(position, mBuffer, 0, 1);
+
+            return mBuffer[0] & 0xFF;
+        }
+
+        return mSegments.get((int) (position >>> SEGMENT_SHIFT)).get((int) (position & SEGMENT_MASK)) & 0xFF;
+    }
+
+    @Override
+    int readInt(long position) throws IOException {
+        int segmentOffset = (int) (position & SEGMENT_MASK);
+
+        if (segmentOffset + 4 > SEGMENT_SIZE || position + 4 > mLength) {
+            return super.readInt(position);
+        }
+
+        if (!isMapped(position + 4)) {
+            readFully(position, mBuffer, 0, 4);
+
+            return getInt(mBuffer, 0);
+        }
+
+        return mSegments.get((int) (position >>> SEGMENT_SHIFT)).getInt(segmentOffset);
+    }
+
+    @Override
+    long readLong(long position) throws IOException {
+        int segmentOffset = (int) (position & SEGMENT_MASK);
+
+        if (segmentOffset + 8 > SEGMENT_SIZE || position + 8 > mLength) {
+            return super.readLong(position);
+        }
+
+        if (!isMapped(position + 8)) {
+            readFully(position, mBuffer, 0, 8);
+
+            return getLong(mBuffer, 0);
+        }
+
+        return mSegments.get((int) (position >>> SEGMENT_SHIFT)).getLong(segmentOffset);
+    }
+
+    @Override
+    void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        mStorage.write(position, buffer, offset, length);
+
+        if (position < mWindowStart + mWindowLength && position + length > mWindowStart) {
+            mWindowLength = 0;
+        }
+
+        if (position + length > mLength) {
+            mLength = position + length;
+        }
+    }
+
+    @Override
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        // Writes are not buffered here so the file has the same bytes as the mappings.
+        return mStorage.transferTo(position, count, target);
+    }
+
+    @Override
+    long length() {
+        return mLength;
+    }
+
+    @Override
+    void flush() {
+
+    }
+
+    @Override
+    void sync() throws IOException {
+        mStorage.sync();
+    }
+
+    @Override
+    void close() throws IOException {
+        mSegments.clear();
+        mMappedLength = 0;
+
+        mStorage.close();
+    }
+
+    @Override
+    void reopen(File file) throws IOException {
+        mStorage.reopen(file);
+        mChannel = mStorage.getChannel();
+
+        mSegments.clear();
+        mMappedLength = 0;
+        mWindowLength = 0;
+
+        mLength = mStorage.length();
+
+        map(mLength);
+    }
+
+    /**
+     * Reads from the window over the file, moving it to the position if needed. Only reads within
+     * the length of the file.
+     */
+    private int readUnmapped(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position < mWindowStart || position + length > mWindowStart + mWindowLength) {
+            if (length > WINDOW_SIZE / 2) {
+                return mStorage.read(position, buffer, offset, length);
+            }
+
+            mWindowStart = position;
+            mWindowLength = 0;
+
+            int read = mStorage.read(position, mWindow, 0, (int) Math.min(WINDOW_SIZE, mLength - position));
+
+            if (read < length) {
+                return mStorage.read(position, buffer, offset, length);
+            }
+
+            mWindowLength = read;
+        }
+
+        System.arraycopy(mWindow, (int) (position - mWindowStart), buffer, offset, length);
+
+        return length;
+    }
+
+    /**
+     * Maps the file again if it has grown enough.
+     *
+     * @return Whether the bytes up to the end are mapped.
+     */
+    private boolean isMapped(long end) throws IOException {
+        if (end <= mMappedLength) {
+            return true;
+        }
+
+        if (mLength - mMappedLength < Math.max(MIN_REMAP_LENGTH, mMappedLength & SEGMENT_MASK)) {
+            return false;
+        }
+
+        map(mLength);
+
+        return true;
+    }
+
+    private void map(long length) throws IOException {
+        int lastSegment = (int) (mMappedLength >>> SEGMENT_SHIFT);
+
+        // The last segment might have been partially mapped. It is mapped again with the new size.
+        while (mSegments.size() > lastSegment) {
+            mSegments.remove(mSegments.size() - 1);
+        }
+
+        long segmentStart = (long) lastSegment << SEGMENT_SHIFT;
+
+        while (segmentStart < length) {
+            long segmentLength = Math.min(SEGMENT_SIZE, length - segmentStart);
+
+            mSegments.add(mChannel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentLength));
+
+            segmentStart += segmentLength;
+        }
+
+        mMappedLength = length;
+    }
+
+}
@@ -0,0 +1,272 @@
+package com.yashoid.yashodb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Derived information about the database file that is expensive to find again, kept in a file next
+ * to it. Everything here can be rebuilt from the database file itself.
+ *
+ * The metadata file is removed when the database is opened and written again when it is closed. So
+ * it only exists while it is known to match the database file. After a crash it is simply missing.
+ *
+ * Key directories are only kept in memory.
+ *
+ * Metadata Format
+ * [4-bytes MAGIC] [8-bytes database length] [8-bytes dead bytes]
+ * [4-bytes tail count] {[8-bytes start offset] [8-bytes HAS_NOT_TAIL offset]}...
+ * [4-bytes position index count] {[8-bytes start offset] [8-bytes member count] {[8-bytes member offset]}...}...
+ * [4-bytes free range count] {[8-bytes offset] [8-bytes length]}...
+ */
+class Metadata {
+
+    private static final int MAGIC = 0x594D4433;
+
+    private static final int MAX_TAILS = 64 * 1024;
+    private static final int MAX_POSITION_INDEXES = 256;
+
+    private File mFile;
+
+    // Bytes of the database file taken by removed records and tail links as far as is known.
+    private long mDeadBytes = 0;
+
+    // Removals and replacements so far. Every one counts even if it frees no bytes.
+    private long mChangeCount = 0;
+
+    // Changes whenever the offsets in the database file are moved.
+    private int mGeneration = 0;
+
+    // Start offset of a collection or an object to the offset of its HAS_NOT_TAIL byte.
+    private Map<Long, Long> mTails = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_TAILS;
+        }
+
+    };
+
+    // Start offset of a collection to the offsets of its members.
+    private Map<Long, PositionIndex> mPositionIndexes = new LinkedHashMap<Long, PositionIndex>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, PositionIndex> eldest) {
+            return size() > MAX_POSITION_INDEXES;
+        }
+
+    };
+
+    // Start offset of an object to the directory of its keys.
+    private Map<Long, KeyDirectory> mKeyDirectories;
+
+    private FreeSpaceMap mFreeSpace;
+
+    /**
+     * @param maxKeyDirectories Number of objects to keep a key directory for.
+     * @param freeSpace Whether to keep track of free ranges to reuse.
+     */
+    Metadata(File file, final int maxKeyDirectories, boolean freeSpace) {
+        mFile = file;
+
+        mFreeSpace = freeSpace ? new FreeSpaceMap() : null;
+
+        mKeyDirectories = new LinkedHashMap<Long, KeyDirectory>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, KeyDirectory> eldest) {
+                return size() > maxKeyDirectories;
+            }
+
+        };
+    }
+
+    /**
+     * Loads the metadata if it matches the database length and removes the file until it is saved
+     * again.
+     */
+    void load(long databaseLength) throws IOException {
+        clear();
+
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+
+        try {
+            if (input.readInt() == MAGIC && input.readLong() == databaseLength) {
+                mDeadBytes = input.readLong();
+
+                int tailCount = input.readInt();
+
+                for (int i = 0; i < tailCount; i++) {
+                    long startOffset = input.readLong();
+
+                    mTails.put(startOffset, input.readLong());
+                }
+
+                int positionIndexCount = input.readInt();
+
+                for (int i = 0; i < positionIndexCount; i++) {
+                    long startOffset = input.readLong();
+
+                    mPositionIndexes.put(startOffset, PositionIndex.read(input));
+                }
+
+                FreeSpaceMap freeSpace = new FreeSpaceMap();
+                freeSpace.read(input);
+
+                if (mFreeSpace != null) {
+                    mFreeSpace = freeSpace;
+                }
+            }
+        } catch (IOException e) {
+            clear();
+        } finally {
+            input.close();
+        }
+
+        if (!mFile.delete()) {
+            throw new IOException("Failed to remove metadata file '" + mFile + "'.");
+        }
+    }
+
+    void save(long databaseLength) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile)));
+
+        try {
+            output.writeInt(MAGIC);
+            output.writeLong(databaseLength);
+            output.writeLong(mDeadBytes);
+
+            output.writeInt(mTails.size());
+
+            for (Map.Entry<Long, Long> entry: mTails.entrySet()) {
+                output.writeLong(entry.getKey());
+                output.writeLong(entry.getValue());
+            }
+
+            output.writeInt(mPositionIndexes.size());
+
+            for (Map.Entry<Long, PositionIndex> entry: mPositionIndexes.entrySet()) {
+                output.writeLong(entry.getKey());
+                entry.getValue().write(output);
+            }
+
+            if (mFreeSpace != null) {
+                mFreeSpace.write(output);
+            }
+            else {
+                output.writeInt(0);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return The last known offset of the HAS_NOT_TAIL byte of the structure or -1.
+     */
+    long getTail(long startOffset) {
+        Long tail = mTails.get(startOffset);
+
+        return tail == null ? -1 : tail;
+    }
+
+    void setTail(long startOffset, long tailOffset) {
+        mTails.put(startOffset, tailOffset);
+    }
+
+    /**
+     * @return The position index of the collection or null if it has not been built.
+     */
+    PositionIndex getPositionIndex(long startOffset) {
+        return mPositionIndexes.get(startOffset);
+    }
+
+    void setPositionIndex(long startOffset, PositionIndex positionIndex) {
+        mPositionIndexes.put(startOffset, positionIndex);
+    }
+
+    void removePositionIndex(long startOffset) {
+        mPositionIndexes.remove(startOffset);
+    }
+
+    /**
+     * @return The key directory of the object or null if it has not been built.
+     */
+    KeyDirectory getKeyDirectory(long startOffset) {
+        return mKeyDirectories.get(startOffset);
+    }
+
+    void setKeyDirectory(long startOffset, KeyDirectory keyDirectory) {
+        mKeyDirectories.put(startOffset, keyDirectory);
+    }
+
+    long getDeadBytes() {
+        return mDeadBytes;
+    }
+
+    void addDeadBytes(long deadBytes) {
+        mDeadBytes += deadBytes;
+        mChangeCount++;
+    }
+
+    void reuseDeadBytes(long reusedBytes) {
+        mDeadBytes -= reusedBytes;
+    }
+
+    long getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * @return The free ranges of the database file or null if they are not tracked.
+     */
+    FreeSpaceMap getFreeSpace() {
+        return mFreeSpace;
+    }
+
+    /**
+     * Forgets what is known about a structure starting at the given offset. Called when a new
+     * structure is written where an old one may have been.
+     */
+    void forget(long startOffset) {
+        mTails.remove(startOffset);
+        mPositionIndexes.remove(startOffset);
+        mKeyDirectories.remove(startOffset);
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Clears everything after the records of the database file have been moved.
+     */
+    void moved() {
+        clear();
+
+        mGeneration++;
+    }
+
+    void clear() {
+        mDeadBytes = 0;
+        mTails.clear();
+        mPositionIndexes.clear();
+        mKeyDirectories.clear();
+
+        if (mFreeSpace != null) {
+            mFreeSpace.clear();
+        }
+    }
+
+}
@@ -0,0 +1,577 @@
+package com.yashoid.yashodb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps fixed size pages of the storage below in memory. The number of pages is bounded by the
+ * memory budget and pages are evicted according to the configured {@link DBOptions.CachePolicy}.
+ *
+ * In write through mode every write is also passed to the storage below immediately. Otherwise
+ * written pages are kept dirty until they are evicted or flushed.
+ */
+class PageCache extends Storage {
+
+    private static final Comparator<Page> PAGE_ORDER = new Comparator<Page>() {
+
+        @Override
+        public int compare(Page p1, Page p2) {
+            return p1.index < p2.index ? -1 : (p1.index == p2.index ? 0 : 1);
+        }
+
+    };
+
+    private Storage mStorage;
+
+    private int mPageSize;
+    private int mPageShift;
+    private int mPageMask;
+
+    private int mMaxPages;
+
+    private Replacer mReplacer;
+
+    private Map<Long, Page> mPages = new HashMap<>();
+
+    private Page mLastPage = null;
+
+    private boolean mWriteThrough;
+
+    private boolean mPinWrites = false;
+    private List<Page> mPinnedPages = new ArrayList<>();
+
+    private WriteBackListener mWriteBackListener = null;
+
+    private long mLength;
+
+    PageCache(Storage storage, DBOptions options, boolean writeThrough) throws IOException {
+        mStorage = storage;
+
+        mPageSize = options.getPageSize();
+        mPageShift = Integer.numberOfTrailingZeros(mPageSize);
+        mPageMask = mPageSize - 1;
+
+        mMaxPages = (int) Math.max(2, Math.min(Integer.MAX_VALUE, options.getCacheSize() / mPageSize));
+
+        switch (options.getCachePolicy()) {
+            case LRU:
+                mReplacer = new LruReplacer();
+                break;
+            case CLOCK:
+                mReplacer = new ClockReplacer();
+                break;
+        }
+
+        mWriteThrough = writeThrough;
+
+        mLength = storage.length();
+    }
+
+    Storage getStorage() {
+        return mStorage;
+    }
+
+    void setWriteThrough(boolean writeThrough) throws IOException {
+        if (writeThrough && !mWriteThrough) {
+            flush();
+        }
+
+        mWriteThrough = writeThrough;
+    }
+
+    /**
+     * @param pinWrites If true pages written to are not evicted until {@link #unpinAll()} is called.
+     */
+    void setPinWrites(boolean pinWrites) {
+        mPinWrites = pinWrites;
+    }
+
+    void unpinAll() {
+        for (Page page: mPinnedPages) {
+            page.pinned = false;
+        }
+
+        mPinnedPages.clear();
+    }
+
+    void setWriteBackListener(WriteBackListener listener) {
+        mWriteBackListener = listener;
+    }
+
+    @Override
+    int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position >= mLength) {
+            return -1;
+        }
+
+        length = (int) Math.min(length, mLength - position);
+
+        int total = 0;
+
+        while (total < length) {
+            Page page = getPage(position >>> mPageShift);
+
+            int pageOffset = (int) (position & mPageMask);
+            int count = Math.min(length - total, mPageSize - pageOffset);
+
+            System.arraycopy(page.data, pageOffset, buffer, offset + total, count);
+
+            total += count;
+            position += count;
+        }
+
+        return total;
+    }
+
+    @Override
+    int readByte(long position) throws IOException {
+        if (position >= mLength) {
+            throw new EOFException();
+        }
+
+        return getPage(position >>> mPageShift).data[(int) (position & mPageMask)] & 0xFF;
+    }
+
+    @Override
+    int readInt(long position) throws IOException {
+        int pageOffset = (int) (position & mPageMask);
+
+        if (pageOffset + 4 > mPageSize || position + 4 > mLength) {
+            return super.readInt(position);
+        }
+
+        return getInt(getPage(position >>> mPageShift).data, pageOffset);
+    }
+
+    @Override
+    long readLong(long position) throws IOException {
+        int pageOffset = (int) (position & mPageMask);
+
+        if (pageOffset + 8 > mPageSize || position + 8 > mLength) {
+            return super.readLong(position);
+        }
+
+        return getLong(getPage(position >>> mPageShift).data, pageOffset);
+    }
+
+    @Override
+    void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (mWriteThrough) {
+            mStorage.write(position, buffer, offset, length);
+        }
+
+        int written = 0;
+
+        while (written < length) {
+            long pageIndex = position >>> mPageShift;
+
+            Page page = mWriteThrough ? mPages.get(pageIndex) : getPage(pageIndex);
+
+            int pageOffset = (int) (position & mPageMask);
+            int count = Math.min(length - written, mPageSize - pageOffset);
+
+            if (page != null) {
+                System.arraycopy(buffer, offset + written, page.data, pageOffset, count);
+
+                if (!mWriteThrough) {
+                    page.dirty = true;
+
+                    if (mPinWrites && !page.pinned) {
+                        page.pinned = true;
+                        mPinnedPages.add(page);
+                    }
+                }
+            }
+
+            written += count;
+            position += count;
+
+            // Grown page by page so a page evicted by the rest of this write is written back whole.
+            if (position > mLength) {
+                mLength = position;
+            }
+        }
+    }
+
+    @Override
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (hasDirtyPages(position, position + count)) {
+            return super.transferTo(position, count, target);
+        }
+
+        // The storage below has the same bytes so they can skip the cache.
+        return mStorage.transferTo(position, count, target);
+    }
+
+    private boolean hasDirtyPages(long start, long end) {
+        long firstPage = start >>> mPageShift;
+        long lastPage = (end - 1) >>> mPageShift;
+
+        if (lastPage - firstPage + 1 > mPages.size()) {
+            for (Page page: mPages.values()) {
+                if (page.dirty && page.index >= firstPage && page.index <= lastPage) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        for (long pageIndex = firstPage; pageIndex <= lastPage; pageIndex++) {
+            Page page = mPages.get(pageIndex);
+
+            if (page != null && page.dirty) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    long length() {
+        return mLength;
+    }
+
+    @Override
+    Map<Long, byte[]> getUnflushedPages() {
+        Map<Long, byte[]> pages = new HashMap<>();
+
+        for (Page page: mPages.values()) {
+            if (page.dirty) {
+                pages.put(page.index, page.data);
+            }
+        }
+
+        return pages;
+    }
+
+    @Override
+    void flush() throws IOException {
+        List<Page> dirtyPages = new ArrayList<>();
+
+        for (Page page: mPages.values()) {
+            if (page.dirty) {
+                dirtyPages.add(page);
+            }
+        }
+
+        Collections.sort(dirtyPages, PAGE_ORDER);
+
+        for (Page page: dirtyPages) {
+            writeBack(page);
+        }
+    }
+
+    @Override
+    void sync() throws IOException {
+        flush();
+
+        mStorage.sync();
+    }
+
+    @Override
+    void close() throws IOException {
+        flush();
+
+        mPages.clear();
+        mPinnedPages.clear();
+        mLastPage = null;
+
+        mStorage.close();
+    }
+
+    @Override
+    void reopen(File file) throws IOException {
+        mStorage.reopen(file);
+
+        clear();
+    }
+
+    /**
+     * Drops every page without writing it back, for when the storage below has changed under the
+     * cache.
+     */
+    void clear() throws IOException {
+        for (Page page: mPages.values()) {
+            mReplacer.removed(page);
+        }
+
+        mPages.clear();
+        mPinnedPages.clear();
+        mLastPage = null;
+
+        mLength = mStorage.length();
+    }
+
+    private Page getPage(long pageIndex) throws IOException {
+        Page page = mLastPage;
+
+        if (page != null && page.index == pageIndex) {
+            return page;
+        }
+
+        page = mPages.get(pageIndex);
+
+        if (page == null) {
+            page = loadPage(pageIndex);
+        }
+        else {
+            mReplacer.accessed(page);
+        }
+
+        mLastPage = page;
+
+        return page;
+    }
+
+    private Page loadPage(long pageIndex) throws IOException {
+        Page page = null;
+
+        if (mPages.size() >= mMaxPages) {
+            page = mReplacer.victim(this);
+
+            if (page != null) {
+                if (page.dirty) {
+                    writeBack(page);
+                }
+
+                mPages.remove(page.index);
+                mReplacer.removed(page);
+            }
+        }
+
+        byte[] data = page == null ? new byte[mPageSize] : page.data;
+
+        page = new Page(pageIndex, data);
+
+        long pageStart = pageIndex << mPageShift;
+
+        int read = 0;
+
+        while (read < mPageSize) {
+            int count = mStorage.read(pageStart + read, data, read, mPageSize - read);
+
+            if (count < 0) {
+                break;
+            }
+
+            read += count;
+        }
+
+        if (read < mPageSize) {
+            Arrays.fill(data, read, mPageSize, (byte) 0);
+        }
+
+        mPages.put(pageIndex, page);
+        mReplacer.added(page);
+
+        return page;
+    }
+
+    private void writeBack(Page page) throws IOException {
+        if (mWriteBackListener != null) {
+            mWriteBackListener.beforeWriteBack();
+        }
+
+        long pageStart = page.index << mPageShift;
+
+        int length = (int) Math.min(mPageSize, mLength - pageStart);
+
+        if (length > 0) {
+            mStorage.write(pageStart, page.data, 0, length);
+        }
+
+        page.dirty = false;
+    }
+
+    boolean canEvict(Page page) {
+        return page != mLastPage && !page.pinned;
+    }
+
+    static class Page {
+
+        final long index;
+        final byte[] data;
+
+        boolean dirty = false;
+        boolean referenced = true;
+        boolean pinned = false;
+
+        Page previous = null;
+        Page next = null;
+
+        int slot = -1;
+
+        Page(long index, byte[] data) {
+            this.index = index;
+            this.data = data;
+        }
+
+    }
+
+    interface WriteBackListener {
+
+        /**
+         * Called before a dirty page is written to the storage below.
+         */
+        void beforeWriteBack() throws IOException;
+
+    }
+
+    /**
+     * Decides which page to evict when the cache is full.
+     */
+    interface Replacer {
+
+        void added(Page page);
+
+        void accessed(Page page);
+
+        void removed(Page page);
+
+        /**
+         * @return A page that can be evicted or null if none are allowed to be.
+         */
+        Page victim(PageCache cache);
+
+    }
+
+    static class LruReplacer implements Replacer {
+
+        // Most recently used at head.
+        private Page mHead = null;
+        private Page mTail = null;
+
+        @Override
+        public void added(Page page) {
+            page.previous = null;
+            page.next = mHead;
+
+            if (mHead != null) {
+                mHead.previous = page;
+            }
+
+            mHead = page;
+
+            if (mTail == null) {
+                mTail = page;
+            }
+        }
+
+        @Override
+        public void accessed(Page page) {
+            if (page != mHead) {
+                removed(page);
+                added(page);
+            }
+        }
+
+        @Override
+        public void removed(Page page) {
+            if (page.previous != null) {
+                page.previous.next = page.next;
+            }
+            else {
+                mHead = page.next;
+            }
+
+            if (page.next != null) {
+                page.next.previous = page.previous;
+            }
+            else {
+                mTail = page.previous;
+            }
+
+            page.previous = null;
+            page.next = null;
+        }
+
+        @Override
+        public Page victim(PageCache cache) {
+            Page page = mTail;
+
+            while (page != null && !cache.canEvict(page)) {
+                page = page.previous;
+            }
+
+            return page;
+        }
+
+    }
+
+    static class ClockReplacer implements Replacer {
+
+        private List<Page> mRing = new ArrayList<>();
+
+        private int mHand = 0;
+
+        @Override
+        public void added(Page page) {
+            page.referenced = true;
+            page.slot = mRing.size();
+
+            mRing.add(page);
+        }
+
+        @Override
+        public void accessed(Page page) {
+            page.referenced = true;
+        }
+
+        @Override
+        public void removed(Page page) {
+            int index = page.slot;
+
+            // Move the last page into the gap to keep removal cheap.
+            Page last = mRing.remove(mRing.size() - 1);
+
+            if (index < mRing.size()) {
+                mRing.set(index, last);
+                last.slot = index;
+            }
+
+            page.slot = -1;
+
+            if (mHand >= mRing.size()) {
+                mHand = 0;
+            }
+        }
+
+        @Override
+        public Page victim(PageCache cache) {
+            int size = mRing.size();
+
+            // Two rounds at most: the first one clears the reference bits.
+            for (int i = 0; i < size * 2; i++) {
+                if (mHand >= size) {
+                    mHand = 0;
+                }
+
+                Page page = mRing.get(mHand);
+
+                if (page.referenced) {
+                    page.referenced = false;
+                }
+                else if (cache.canEvict(page)) {
+                    return page;
+                }
+
+                mHand++;
+            }
+
+            return null;
+        }
+
+    }
+
+}
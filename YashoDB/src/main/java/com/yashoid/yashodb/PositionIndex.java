@@ -0,0 +1,183 @@
+package com.yashoid.yashodb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offsets of the live members of a collection in their order. Offsets are kept in blocks and a
+ * Fenwick tree over the block sizes finds the block of an index in O(log n). Removing a member only
+ * shifts the offsets of its own block.
+ */
+class PositionIndex {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private List<Block> mBlocks = new ArrayList<>();
+
+    // 1-based Fenwick tree over the block sizes.
+    private long[] mTree = new long[16];
+
+    private long mCount = 0;
+
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param offset Offset of the DELETED/NOT_DELETED byte of a member added to the end of the collection.
+     */
+    void add(long offset) {
+        Block block = mBlocks.isEmpty() ? null : mBlocks.get(mBlocks.size() - 1);
+
+        if (block == null || block.size == BLOCK_SIZE) {
+            block = new Block(offset);
+
+            mBlocks.add(block);
+
+            if (mBlocks.size() >= mTree.length) {
+                rebuildTree(mTree.length * 2);
+            }
+        }
+
+        block.offsets[block.size++] = offset;
+
+        addToTree(mBlocks.size() - 1, 1);
+
+        mCount++;
+    }
+
+    long get(long index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + mCount);
+        }
+
+        int position = 0;
+        long remaining = index;
+
+        for (int step = Integer.highestOneBit(mTree.length - 1); step > 0; step >>= 1) {
+            int next = position + step;
+
+            if (next < mTree.length && mTree[next] <= remaining) {
+                position = next;
+                remaining -= mTree[next];
+            }
+        }
+
+        return mBlocks.get(position).offsets[(int) remaining];
+    }
+
+    /**
+     * @return false if the offset was not indexed.
+     */
+    boolean remove(long offset) {
+        int low = 0;
+        int high = mBlocks.size() - 1;
+
+        // Last block that starts at or before the offset.
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (mBlocks.get(middle).firstOffset <= offset) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+
+        if (high < 0) {
+            return false;
+        }
+
+        Block block = mBlocks.get(low);
+
+        int position = binarySearch(block.offsets, block.size, offset);
+
+        if (position < 0) {
+            return false;
+        }
+
+        System.arraycopy(block.offsets, position + 1, block.offsets, position, block.size - position - 1);
+        block.size--;
+
+        addToTree(low, -1);
+
+        mCount--;
+
+        return true;
+    }
+
+    void write(DataOutput output) throws IOException {
+        output.writeLong(mCount);
+
+        for (Block block: mBlocks) {
+            for (int i = 0; i < block.size; i++) {
+                output.writeLong(block.offsets[i]);
+            }
+        }
+    }
+
+    static PositionIndex read(DataInput input) throws IOException {
+        PositionIndex index = new PositionIndex();
+
+        long count = input.readLong();
+
+        for (long i = 0; i < count; i++) {
+            index.add(input.readLong());
+        }
+
+        return index;
+    }
+
+    private void addToTree(int blockIndex, long delta) {
+        for (int i = blockIndex + 1; i < mTree.length; i += i & -i) {
+            mTree[i] += delta;
+        }
+    }
+
+    private void rebuildTree(int capacity) {
+        mTree = new long[capacity];
+
+        for (int i = 0; i < mBlocks.size(); i++) {
+            addToTree(i, mBlocks.get(i).size);
+        }
+    }
+
+    private static int binarySearch(long[] offsets, int size, long offset) {
+        int low = 0;
+        int high = size - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (offsets[middle] < offset) {
+                low = middle + 1;
+            }
+            else if (offsets[middle] > offset) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    private static class Block {
+
+        final long firstOffset;
+
+        final long[] offsets = new long[BLOCK_SIZE];
+        int size = 0;
+
+        Block(long firstOffset) {
+            this.firstOffset = firstOffset;
+        }
+
+    }
+
+}
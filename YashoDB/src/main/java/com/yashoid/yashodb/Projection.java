@@ -0,0 +1,89 @@
+package com.yashoid.yashodb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The dotted key paths to include in or exclude from the objects read out of the database arranged
+ * as a tree of keys. Values that are left out are skipped by their length without being decoded.
+ * Paths under a collection apply to each of its objects.
+ */
+class Projection {
+
+    static Projection include(String... paths) {
+        return new Projection(paths, true);
+    }
+
+    static Projection exclude(String... paths) {
+        return new Projection(paths, false);
+    }
+
+    private boolean mInclude;
+
+    // Empty when the path ends here and the value is included or excluded as a whole.
+    private Map<String, Projection> mChildren = new HashMap<>();
+
+    private Projection(boolean include) {
+        mInclude = include;
+    }
+
+    private Projection(String[] paths, boolean include) {
+        this(include);
+
+        for (String path: paths) {
+            if (path == null || path.isEmpty()) {
+                throw new IllegalArgumentException("Projection path can not be empty.");
+            }
+
+            Projection node = this;
+
+            for (String key: path.split("\\.")) {
+                Projection child = node.mChildren.get(key);
+
+                if (child == null) {
+                    child = new Projection(include);
+
+                    node.mChildren.put(key, child);
+                }
+                else if (child.isWhole()) {
+                    // A shorter path already covers the value.
+                    node = null;
+                    break;
+                }
+
+                node = child;
+            }
+
+            if (node != null) {
+                node.mChildren.clear();
+            }
+        }
+    }
+
+    boolean isInclude() {
+        return mInclude;
+    }
+
+    boolean isWhole() {
+        return mChildren.isEmpty();
+    }
+
+    /**
+     * @return Whether the value of the key is read at all.
+     */
+    boolean isRead(String key) {
+        Projection child = mChildren.get(key);
+
+        return mInclude ? child != null : child == null || !child.isWhole();
+    }
+
+    /**
+     * @return The projection to read the value of the key with or null to read all of it.
+     */
+    Projection forKey(String key) {
+        Projection child = mChildren.get(key);
+
+        return child == null || child.isWhole() ? null : child;
+    }
+
+}
@@ -0,0 +1,413 @@
+package com.yashoid.yashodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines the values of the members selected by a query into a row for each group of members
+ * with equal values for the group paths. Groups are kept in a hash map up to the sort threshold.
+ * Beyond that they are handed to a {@link QuerySorter} in the order of their group values and the
+ * parts of a group that come out of it next to each other are combined at the end. Rows come out
+ * in the order of their group values.
+ *
+ * Values are taken as they are compared when sorting. Sums and averages are over the values that
+ * are numbers and minimums and maximums are over the numbers and strings.
+ */
+class QueryAggregator {
+
+    static final int COUNT = 0;
+    static final int SUM = 1;
+    static final int AVERAGE = 2;
+    static final int MINIMUM = 3;
+    static final int MAXIMUM = 4;
+
+    // Values of a spilled total after the group values and the member count.
+    private static final int TOTAL_WIDTH = 4;
+
+    private static final Comparator<Object[]> GROUP_VALUES_COMPARATOR = new Comparator<Object[]>() {
+
+        @Override
+        public int compare(Object[] values1, Object[] values2) {
+            for (int i = 0; i < values1.length; i++) {
+                int result = QuerySorter.compareValues(values1[i], values2[i]);
+
+                if (result != 0) {
+                    return result;
+                }
+            }
+
+            return 0;
+        }
+
+    };
+
+    private static class Group {
+
+        private Object[] mValues;
+
+        private long mCount = 0;
+
+        private Total[] mTotals;
+
+        private Group(Object[] values, int totalCount) {
+            mValues = values;
+            mTotals = new Total[totalCount];
+
+            for (int i = 0; i < totalCount; i++) {
+                mTotals[i] = new Total();
+            }
+        }
+
+    }
+
+    // What is kept of the values of a path in a group.
+    private static class Total {
+
+        private long mNumberCount = 0;
+
+        // Sums of integral numbers are kept exact until they overflow.
+        private boolean mIntegral = true;
+        private long mLongSum = 0;
+        private double mDoubleSum = 0;
+
+        private Object mMinimum = null;
+        private Object mMaximum = null;
+
+        private void add(Object value) {
+            if (value instanceof Number) {
+                mNumberCount++;
+
+                addToSum((Number) value);
+            }
+            else if (!(value instanceof String)) {
+                return;
+            }
+
+            if (mMinimum == null || QuerySorter.compareValues(value, mMinimum) < 0) {
+                mMinimum = value;
+            }
+
+            if (mMaximum == null || QuerySorter.compareValues(value, mMaximum) > 0) {
+                mMaximum = value;
+            }
+        }
+
+        private void add(long numberCount, Object sum, Object minimum, Object maximum) {
+            mNumberCount += numberCount;
+
+            addToSum((Number) sum);
+
+            if (minimum != null && (mMinimum == null || QuerySorter.compareValues(minimum, mMinimum) < 0)) {
+                mMinimum = minimum;
+            }
+
+            if (maximum != null && (mMaximum == null || QuerySorter.compareValues(maximum, mMaximum) > 0)) {
+                mMaximum = maximum;
+            }
+        }
+
+        private void addToSum(Number number) {
+            if (mIntegral && number instanceof Long) {
+                long value = number.longValue();
+                long sum = mLongSum + value;
+
+                if (((mLongSum ^ sum) & (value ^ sum)) >= 0) {
+                    mLongSum = sum;
+                    return;
+                }
+            }
+
+            if (mIntegral) {
+                mIntegral = false;
+                mDoubleSum = mLongSum;
+            }
+
+            mDoubleSum += number.doubleValue();
+        }
+
+        private Number getSum() {
+            return mIntegral ? (Number) mLongSum : (Number) mDoubleSum;
+        }
+
+        private Double getAverage() {
+            return mNumberCount == 0 ? null : getSum().doubleValue() / mNumberCount;
+        }
+
+    }
+
+    /**
+     * Takes the rows as they are made.
+     */
+    interface Output {
+
+        void add(YashON row);
+
+    }
+
+    private File mDbFile;
+
+    private long mThreshold;
+
+    private String[] mGroupNames;
+    private String[] mNames;
+    private int[] mFunctions;
+
+    // Index of the path of each total in the paths or -1 for counts.
+    private int[] mPathIndexes;
+
+    private String[] mPaths;
+
+    private Map<List<Object>, Group> mGroups = new HashMap<>();
+
+    private QuerySorter mSorter = null;
+
+    /**
+     * @param groupNames Keys of the group values in the rows.
+     * @param groupPaths Dotted key paths to group the members by.
+     * @param names Keys of the totals in the rows.
+     * @param functions Function of each total.
+     * @param paths Dotted key path of each total or null for counts.
+     * @param threshold Number of groups to keep in memory.
+     */
+    QueryAggregator(File dbFile, String[] groupNames, String[] groupPaths, String[] names, int[] functions,
+                    String[] paths, long threshold) {
+        mDbFile = dbFile;
+        mThreshold = threshold;
+        mGroupNames = groupNames;
+        mNames = names;
+        mFunctions = functions;
+
+        List<String> allPaths = new ArrayList<>(Arrays.asList(groupPaths));
+
+        mPathIndexes = new int[paths.length];
+
+        for (int i = 0; i < paths.length; i++) {
+            if (paths[i] == null) {
+                mPathIndexes[i] = -1;
+            }
+            else {
+                mPathIndexes[i] = allPaths.size();
+
+                allPaths.add(paths[i]);
+            }
+        }
+
+        mPaths = allPaths.toArray(new String[allPaths.size()]);
+    }
+
+    /**
+     * @return The paths whose values are handed to {@link #add(Object[])}.
+     */
+    String[] getPaths() {
+        return mPaths;
+    }
+
+    /**
+     * @param values The values of the paths in a member as returned by
+     * {@link QuerySorter#toSortValue(Object)}.
+     */
+    void add(Object[] values) throws IOException {
+        Object[] groupValues = new Object[mGroupNames.length];
+
+        for (int i = 0; i < groupValues.length; i++) {
+            groupValues[i] = toGroupValue(values[i]);
+        }
+
+        List<Object> key = Arrays.asList(groupValues);
+
+        Group group = mGroups.get(key);
+
+        if (group == null) {
+            group = new Group(groupValues, mNames.length);
+
+            mGroups.put(key, group);
+        }
+
+        group.mCount++;
+
+        for (int i = 0; i < mPathIndexes.length; i++) {
+            if (mPathIndexes[i] != -1) {
+                group.mTotals[i].add(values[mPathIndexes[i]]);
+            }
+        }
+
+        if (mGroups.size() >= mThreshold) {
+            spill();
+        }
+    }
+
+    /**
+     * Hands the rows to the output in the order of their group values. If there are no group
+     * paths there is exactly one row. The aggregator can not be used afterwards.
+     */
+    void finish(final Output output) throws IOException {
+        if (mSorter == null) {
+            if (mGroupNames.length == 0 && mGroups.isEmpty()) {
+                output.add(toRow(new Group(new Object[0], mNames.length)));
+                return;
+            }
+
+            List<Group> groups = new ArrayList<>(mGroups.values());
+
+            mGroups = null;
+
+            Collections.sort(groups, new Comparator<Group>() {
+
+                @Override
+                public int compare(Group group1, Group group2) {
+                    return GROUP_VALUES_COMPARATOR.compare(group1.mValues, group2.mValues);
+                }
+
+            });
+
+            for (Group group: groups) {
+                output.add(toRow(group));
+            }
+
+            return;
+        }
+
+        spill();
+
+        mGroups = null;
+
+        final Group[] current = new Group[1];
+
+        mSorter.finish(new QuerySorter.Output() {
+
+            @Override
+            public boolean add(QuerySorter.Entry entry) throws IOException {
+                Object[] groupValues = Arrays.copyOf(entry.values, mGroupNames.length);
+
+                if (current[0] != null && GROUP_VALUES_COMPARATOR.compare(current[0].mValues, groupValues) != 0) {
+                    output.add(toRow(current[0]));
+
+                    current[0] = null;
+                }
+
+                if (current[0] == null) {
+                    current[0] = new Group(groupValues, mNames.length);
+                }
+
+                addSpilled(current[0], entry.values);
+
+                return true;
+            }
+
+        });
+
+        if (current[0] != null) {
+            output.add(toRow(current[0]));
+        }
+    }
+
+    /**
+     * Removes the spilled groups that are left.
+     */
+    void close() {
+        if (mSorter != null) {
+            mSorter.close();
+        }
+    }
+
+    /**
+     * Hands the groups in memory to the sorter. Their totals follow their group values so that
+     * the parts of a group are still next to each other after sorting.
+     */
+    private void spill() throws IOException {
+        int width = mGroupNames.length + 1 + mNames.length * TOTAL_WIDTH;
+
+        if (mSorter == null) {
+            mSorter = new QuerySorter(mDbFile, new boolean[width], mThreshold);
+        }
+
+        for (Group group: mGroups.values()) {
+            Object[] values = Arrays.copyOf(group.mValues, width);
+
+            int index = mGroupNames.length;
+
+            values[index++] = group.mCount;
+
+            for (Total total: group.mTotals) {
+                values[index++] = total.mNumberCount;
+                values[index++] = total.getSum();
+                values[index++] = total.mMinimum;
+                values[index++] = total.mMaximum;
+            }
+
+            mSorter.add(values, 0);
+        }
+
+        mGroups.clear();
+    }
+
+    private void addSpilled(Group group, Object[] values) {
+        int index = mGroupNames.length;
+
+        group.mCount += (Long) values[index++];
+
+        for (Total total: group.mTotals) {
+            total.add((Long) values[index], values[index + 1], values[index + 2], values[index + 3]);
+
+            index += TOTAL_WIDTH;
+        }
+    }
+
+    private YashON toRow(Group group) {
+        YashON row = new YashON();
+
+        for (int i = 0; i < mGroupNames.length; i++) {
+            Object value = group.mValues[i];
+
+            row.put(mGroupNames[i], value instanceof Number || value instanceof String ? value : null);
+        }
+
+        for (int i = 0; i < mNames.length; i++) {
+            Total total = group.mTotals[i];
+
+            switch (mFunctions[i]) {
+                case COUNT:
+                    row.put(mNames[i], group.mCount);
+                    break;
+                case SUM:
+                    row.put(mNames[i], total.getSum());
+                    break;
+                case AVERAGE:
+                    row.put(mNames[i], total.getAverage());
+                    break;
+                case MINIMUM:
+                    row.put(mNames[i], total.mMinimum);
+                    break;
+                case MAXIMUM:
+                    row.put(mNames[i], total.mMaximum);
+                    break;
+            }
+        }
+
+        return row;
+    }
+
+    /**
+     * @return The value with integral doubles turned to longs so that equal numbers are in the
+     * same group.
+     */
+    private static Object toGroupValue(Object value) {
+        if (value instanceof Double) {
+            double number = (Double) value;
+
+            if (number == Math.rint(number) && number >= Long.MIN_VALUE && number < -(double) Long.MIN_VALUE) {
+                return (long) number;
+            }
+        }
+
+        return value;
+    }
+
+}
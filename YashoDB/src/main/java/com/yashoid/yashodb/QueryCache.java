@@ -0,0 +1,243 @@
+package com.yashoid.yashodb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of the latest selections on the root collection by the canonical form of the
+ * selection, so that the same selection is answered again without a scan. The members that
+ * change are checked against the filters of the results. A result is patched where that alone
+ * tells its new content and dropped otherwise. At most the given number of results are kept and
+ * the least recently used one goes first.
+ */
+class QueryCache {
+
+    /**
+     * Tells whether a member of the root collection passes a filter.
+     */
+    interface Matcher {
+
+        boolean matches(Filter filter, long position) throws IOException;
+
+    }
+
+    /**
+     * Adds the text so that it can not be confused with what comes around it.
+     */
+    static void appendText(StringBuilder form, String text) {
+        form.append(text.length()).append(':').append(text);
+    }
+
+    /**
+     * Adds the value along with its type since values of different types are compared differently.
+     */
+    static void appendValue(StringBuilder form, Object value) {
+        form.append(value.getClass().getSimpleName()).append(':');
+
+        appendText(form, value.toString());
+    }
+
+    /**
+     * @param paths Dotted key paths the members are ordered by or null if they keep their order.
+     */
+    static String getKey(Filter filter, long skip, long limit, String[] paths, boolean[] descending) {
+        StringBuilder form = new StringBuilder();
+
+        filter.appendCanonicalForm(form);
+
+        form.append(';').append(skip).append(';').append(limit);
+
+        if (paths != null) {
+            for (int i = 0; i < paths.length; i++) {
+                form.append(';').append(descending[i] ? 'D' : 'A');
+
+                appendText(form, paths[i]);
+            }
+        }
+
+        return form.toString();
+    }
+
+    private static class CachedResult {
+
+        private Filter mFilter;
+
+        private long mSkip;
+        private long mLimit;
+        private boolean mOrdered;
+
+        private QueryResult mResult;
+
+        private CachedResult(Filter filter, long skip, long limit, boolean ordered, QueryResult result) {
+            mFilter = filter;
+            mSkip = skip;
+            mLimit = limit;
+            mOrdered = ordered;
+            mResult = result;
+        }
+
+        /**
+         * @return Whether every passing member after the skipped ones is in the result.
+         */
+        private boolean isComplete() {
+            return mResult.getCount() < mLimit;
+        }
+
+    }
+
+    private final int mSize;
+
+    private LinkedHashMap<String, CachedResult> mEntries;
+
+    QueryCache(int size) {
+        mSize = size;
+
+        mEntries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                if (size() <= mSize) {
+                    return false;
+                }
+
+                close(eldest.getValue());
+
+                return true;
+            }
+
+        };
+    }
+
+    /**
+     * @return The result of the selection or null if it is not cached.
+     */
+    QueryResult get(String key) {
+        CachedResult entry = mEntries.get(key);
+
+        return entry == null ? null : entry.mResult;
+    }
+
+    /**
+     * Keeps the result of the selection. The result belongs to the cache afterwards.
+     *
+     * @param filter A filter that is used for nothing else.
+     */
+    void put(String key, Filter filter, long skip, long limit, boolean ordered, QueryResult result) {
+        CachedResult entry = mEntries.put(key, new CachedResult(filter, skip, limit, ordered, result));
+
+        if (entry != null) {
+            close(entry);
+        }
+    }
+
+    /**
+     * A member has been added to the end of the root collection.
+     */
+    void onInserted(long position, Matcher matcher) throws IOException {
+        Iterator<CachedResult> iterator = mEntries.values().iterator();
+
+        while (iterator.hasNext()) {
+            CachedResult entry = iterator.next();
+
+            if (!matcher.matches(entry.mFilter, position)) {
+                continue;
+            }
+
+            QueryResult result = entry.mResult;
+
+            // Unless nothing passed it is known that as many as skipped passed before.
+            if (!entry.mOrdered && (entry.mSkip == 0 || result.getCount() > 0)) {
+                if (entry.isComplete()) {
+                    result.add(position);
+                }
+
+                continue;
+            }
+
+            iterator.remove();
+            close(entry);
+        }
+    }
+
+    /**
+     * A member of the root collection has been marked removed. Its values are still in place.
+     */
+    void onRemoved(long position, Matcher matcher) throws IOException {
+        Iterator<CachedResult> iterator = mEntries.values().iterator();
+
+        while (iterator.hasNext()) {
+            CachedResult entry = iterator.next();
+
+            if (entry.mResult.indexOf(position) != -1) {
+                // Otherwise the next passing member would take its place.
+                if (entry.isComplete()) {
+                    entry.mResult.onRemoved(position);
+                    continue;
+                }
+            }
+            else if (entry.mSkip == 0 || !matcher.matches(entry.mFilter, position)) {
+                // It did not pass or came after the limit.
+                continue;
+            }
+
+            iterator.remove();
+            close(entry);
+        }
+    }
+
+    /**
+     * The values of a member of the root collection have changed.
+     */
+    void onModified(long position, Matcher matcher) throws IOException {
+        Iterator<CachedResult> iterator = mEntries.values().iterator();
+
+        while (iterator.hasNext()) {
+            CachedResult entry = iterator.next();
+
+            // Whether the member passed before is not known if it may have been skipped.
+            if (entry.mSkip == 0) {
+                boolean was = entry.mResult.indexOf(position) != -1;
+                boolean is = matcher.matches(entry.mFilter, position);
+
+                if (!was && !is) {
+                    continue;
+                }
+
+                if (was && is && !entry.mOrdered) {
+                    continue;
+                }
+
+                if (was && !is && entry.isComplete()) {
+                    entry.mResult.onRemoved(position);
+                    continue;
+                }
+            }
+
+            iterator.remove();
+            close(entry);
+        }
+    }
+
+    void clear() {
+        List<CachedResult> entries = new ArrayList<>(mEntries.values());
+
+        mEntries.clear();
+
+        for (CachedResult entry: entries) {
+            close(entry);
+        }
+    }
+
+    private static void close(CachedResult entry) {
+        try {
+            entry.mResult.close();
+        } catch (IOException e) {
+            // Nothing but the query file is left behind.
+        }
+    }
+
+}
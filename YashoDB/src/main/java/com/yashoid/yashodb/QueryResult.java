@@ -1,69 +1,165 @@
 package com.yashoid.yashodb;
 
+import com.yashoid.yashodb.exception.DBUseException;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.LinkedList;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
+/**
+ * Offsets of the members selected by a query in their order. Offsets are kept in chunks of a long
+ * array until there are more than the spill threshold of them. From then on they are kept in a
+ * memory mapped file that is removed as soon as it is opened, or when the result is closed where
+ * open files can not be removed.
+ */
 class QueryResult {
 
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    // Offsets in each mapped region of the query file.
+    private static final int REGION_SHIFT = 20;
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+
     private Filter mFilter = null;
 
-    private List<Long> mSelectedMemberPositions = new LinkedList<>();
+    private long mSpillThreshold;
+
+    private long[][] mChunks = new long[16][];
 
     private File mQueryFile;
 
     private RandomAccessFile mQueryFileAccess = null;
+    private List<LongBuffer> mRegions = null;
 
     private long mCount = 0;
     private long mRecordCount = 0;
 
-    QueryResult(File dbFile) {
+    // Whether the offsets have been added in increasing order, as they are when the members of the
+    // root collection keep their order.
+    private boolean mSorted = true;
+
+    // Bits of the records of the members removed since they were added, by record index.
+    private long[] mRemoved = null;
+
+    // Offsets of an unsorted result in increasing order and the index of the record of each, built
+    // on the first lookup while the offsets are on the heap.
+    private long[] mLookupPositions = null;
+    private int[] mLookupIndexes = null;
+
+    /**
+     * @param spillThreshold Number of offsets to keep on the heap before moving them to a file.
+     */
+    QueryResult(File dbFile, long spillThreshold) {
         mQueryFile = new File(dbFile.getParentFile(), "query-" + UUID.randomUUID().toString());
+
+        mSpillThreshold = spillThreshold;
     }
 
-    QueryResult(File dbFile, Filter filter) {
-        this(dbFile);
+    QueryResult(File dbFile, long spillThreshold, Filter filter) {
+        this(dbFile, spillThreshold);
 
         mFilter = filter;
     }
 
     long get(long index) throws IOException {
-        if (mQueryFileAccess == null) {
-            return mSelectedMemberPositions.get((int) index);
+        if (mChunks == null && mRegions == null) {
+            throw new DBUseException("Query result is closed.");
         }
 
-        mQueryFileAccess.seek(index * 8);
-
-        long position = mQueryFileAccess.readLong();
+        if (index < 0 || index >= mRecordCount) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + mRecordCount);
+        }
 
-        mQueryFileAccess.seek(mQueryFileAccess.length());
+        if (mRegions == null) {
+            return mChunks[(int) (index >>> CHUNK_SHIFT)][(int) (index & (CHUNK_SIZE - 1))];
+        }
 
-        return position;
+        return mRegions.get((int) (index >>> REGION_SHIFT)).get((int) (index & (REGION_SIZE - 1)));
     }
 
     void add(long position) throws IOException {
-        mCount++;
-        mRecordCount++;
+        if (mRegions == null && mRecordCount == mSpillThreshold) {
+            spill();
+        }
 
-        if (mQueryFileAccess == null) {
-            mSelectedMemberPositions.add(position);
+        long index = mRecordCount;
 
-            if (mSelectedMemberPositions.size() == Integer.MAX_VALUE) {
-                mQueryFileAccess = new RandomAccessFile(mQueryFile, "rw");
+        if (mRegions == null) {
+            int chunk = (int) (index >>> CHUNK_SHIFT);
 
-                for (long memberPosition: mSelectedMemberPositions) {
-                    mQueryFileAccess.writeLong(memberPosition);
-                }
+            if (chunk == mChunks.length) {
+                mChunks = Arrays.copyOf(mChunks, chunk * 2);
+            }
+
+            if (mChunks[chunk] == null) {
+                mChunks[chunk] = new long[CHUNK_SIZE];
+            }
+        }
+        else {
+            int region = (int) (index >>> REGION_SHIFT);
 
-                mSelectedMemberPositions = null;
+            if (region == mRegions.size()) {
+                mapRegion(region);
             }
         }
+
+        put(index, position);
+
+        if (index > 0 && mSorted && get(index - 1) >= position) {
+            mSorted = false;
+        }
+
+        mLookupPositions = null;
+        mLookupIndexes = null;
+
+        mCount++;
+        mRecordCount++;
+    }
+
+    private void put(long index, long position) {
+        if (mRegions == null) {
+            mChunks[(int) (index >>> CHUNK_SHIFT)][(int) (index & (CHUNK_SIZE - 1))] = position;
+        }
         else {
-            mQueryFileAccess.writeLong(position);
+            mRegions.get((int) (index >>> REGION_SHIFT)).put((int) (index & (REGION_SIZE - 1)), position);
+        }
+    }
+
+    private void spill() throws IOException {
+        mQueryFileAccess = new RandomAccessFile(mQueryFile, "rw");
+        mRegions = new ArrayList<>();
+
+        // The open file and its mappings stay usable. Nothing is left behind if the result is never
+        // closed.
+        mQueryFile.delete();
+
+        for (long index = 0; index < mRecordCount; index += REGION_SIZE) {
+            mapRegion((int) (index >>> REGION_SHIFT));
+        }
+
+        for (long index = 0; index < mRecordCount; index++) {
+            long position = mChunks[(int) (index >>> CHUNK_SHIFT)][(int) (index & (CHUNK_SIZE - 1))];
+
+            mRegions.get((int) (index >>> REGION_SHIFT)).put((int) (index & (REGION_SIZE - 1)), position);
         }
+
+        mChunks = null;
+    }
+
+    private void mapRegion(int region) throws IOException {
+        long regionBytes = (long) REGION_SIZE * 8;
+
+        // Mapping past the end grows the file.
+        mRegions.add(mQueryFileAccess.getChannel()
+                .map(FileChannel.MapMode.READ_WRITE, region * regionBytes, regionBytes)
+                .asLongBuffer());
     }
 
     long getCount() {
@@ -74,12 +170,145 @@ class QueryResult {
         return mRecordCount;
     }
 
-    void onRemoved(long position) {
-        // TODO
+    /**
+     * @return Index of the record of the position or -1 if it is not in the result.
+     */
+    long indexOf(long position) throws IOException {
+        long index = findRecord(position);
+
+        return index == -1 || isRemoved(index) ? -1 : index;
     }
 
-    void onModified(long position) {
-        // TODO ?
+    private long findRecord(long position) throws IOException {
+        if (!mSorted) {
+            if (mLookupPositions == null && mRegions == null) {
+                buildLookup();
+            }
+
+            if (mLookupPositions != null) {
+                int lookupIndex = Arrays.binarySearch(mLookupPositions, position);
+
+                return lookupIndex < 0 ? -1 : mLookupIndexes[lookupIndex];
+            }
+
+            for (long index = 0; index < mRecordCount; index++) {
+                if (get(index) == position) {
+                    return index;
+                }
+            }
+
+            return -1;
+        }
+
+        long low = 0;
+        long high = mRecordCount - 1;
+
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+
+            long record = get(middle);
+
+            if (record < position) {
+                low = middle + 1;
+            }
+            else if (record > position) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    private void buildLookup() throws IOException {
+        int recordCount = (int) mRecordCount;
+
+        long[] positions = new long[recordCount];
+
+        for (int index = 0; index < recordCount; index++) {
+            positions[index] = get(index);
+        }
+
+        Arrays.sort(positions);
+
+        int[] indexes = new int[recordCount];
+
+        for (int index = 0; index < recordCount; index++) {
+            indexes[Arrays.binarySearch(positions, get(index))] = index;
+        }
+
+        mLookupPositions = positions;
+        mLookupIndexes = indexes;
+    }
+
+    private boolean isRemoved(long index) {
+        int word = (int) (index >>> 6);
+
+        return mRemoved != null && word < mRemoved.length && (mRemoved[word] & (1L << index)) != 0;
+    }
+
+    /**
+     * Counts the removed member out of the result. Its record keeps its place so that the rest
+     * keep their indexes. Reads skip it by its removed marker and {@link #copyTo(QueryResult)}
+     * leaves it out.
+     *
+     * @return false if the member is not in the result.
+     */
+    boolean onRemoved(long position) throws IOException {
+        long index = indexOf(position);
+
+        if (index == -1) {
+            return false;
+        }
+
+        int word = (int) (index >>> 6);
+
+        if (mRemoved == null) {
+            mRemoved = new long[(int) ((mRecordCount + 63) >>> 6)];
+        }
+        else if (word >= mRemoved.length) {
+            mRemoved = Arrays.copyOf(mRemoved, Math.max(word + 1, mRemoved.length * 2));
+        }
+
+        mRemoved[word] |= 1L << index;
+
+        mCount--;
+
+        return true;
+    }
+
+    /**
+     * Adds the offsets of the records that are not removed to the target in order.
+     */
+    void copyTo(QueryResult target) throws IOException {
+        for (long index = 0; index < mRecordCount; index++) {
+            if (!isRemoved(index)) {
+                target.add(get(index));
+            }
+        }
+    }
+
+    /**
+     * Releases the offsets and deletes the query file if there is one. The result can not be used
+     * afterwards.
+     */
+    void close() throws IOException {
+        mChunks = null;
+        mRegions = null;
+        mRemoved = null;
+        mLookupPositions = null;
+        mLookupIndexes = null;
+
+        if (mQueryFileAccess != null) {
+            mQueryFileAccess.close();
+            mQueryFileAccess = null;
+
+            if (mQueryFile.exists() && !mQueryFile.delete()) {
+                throw new IOException("Failed to remove query file '" + mQueryFile + "'.");
+            }
+        }
     }
 
 }
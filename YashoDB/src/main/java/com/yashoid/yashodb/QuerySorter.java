@@ -0,0 +1,517 @@
+package com.yashoid.yashodb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * Puts the offsets of the members selected by a query in the order of their values for the sort
+ * paths. Entries are sorted in memory up to the sort threshold. Beyond that sorted runs of them
+ * are written to files next to the database file and merged at the end. Equal entries keep the
+ * order they were added in. If only the first entries are wanted and they fit in memory, just
+ * those are kept in a heap while entries are added.
+ *
+ * Values compare the same as in field indexes: missing and null values first, then numbers, then
+ * strings. Strings that are numbers compare as numbers and booleans as the strings they used to be
+ * stored as. Objects, collections and blobs come last and are all equal.
+ *
+ * Run File Format
+ * {[8-bytes sequence] [8-bytes member offset] {[1-byte tag] [value]}...}...
+ */
+class QuerySorter {
+
+    // Most runs that are read at the same time when merging.
+    private static final int MAX_MERGED_RUNS = 64;
+
+    private static final int RUN_BUFFER_SIZE = 16 * 1024;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_LONG = 1;
+    private static final byte TAG_DOUBLE = 2;
+    private static final byte TAG_STRING = 3;
+    private static final byte TAG_OTHER = 4;
+
+    // Stands for the values that are not compared.
+    private static final Object OTHER = new Object();
+
+    static class Entry {
+
+        final Object[] values;
+        final long sequence;
+        final long offset;
+
+        Entry(Object[] values, long sequence, long offset) {
+            this.values = values;
+            this.sequence = sequence;
+            this.offset = offset;
+        }
+
+    }
+
+    /**
+     * @return The value as it is compared when sorting.
+     */
+    static Object toSortValue(Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        if (value instanceof ScratchNumber) {
+            ScratchNumber number = (ScratchNumber) value;
+
+            return number.isIntegral() ? (Object) number.longValue() : (Object) number.doubleValue();
+        }
+
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+
+        if (value instanceof ScratchString || value instanceof String || value instanceof Boolean) {
+            String string = value.toString();
+
+            // Values written before numbers had their own types.
+            try {
+                return Long.parseLong(string);
+            } catch (NumberFormatException e) { }
+
+            try {
+                return Double.parseDouble(string);
+            } catch (NumberFormatException e) { }
+
+            return string;
+        }
+
+        return OTHER;
+    }
+
+    static int compareValues(Object value1, Object value2) {
+        int rank1 = rank(value1);
+        int rank2 = rank(value2);
+
+        if (rank1 != rank2) {
+            return rank1 < rank2 ? -1 : 1;
+        }
+
+        if (rank1 == 1) {
+            if (value1 instanceof Long && value2 instanceof Long) {
+                long long1 = (Long) value1;
+                long long2 = (Long) value2;
+
+                return long1 < long2 ? -1 : (long1 == long2 ? 0 : 1);
+            }
+
+            return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+        }
+
+        if (rank1 == 2) {
+            return ((String) value1).compareTo((String) value2);
+        }
+
+        return 0;
+    }
+
+    private static int rank(Object value) {
+        if (value == null) {
+            return 0;
+        }
+
+        if (value instanceof Number) {
+            return 1;
+        }
+
+        if (value instanceof String) {
+            return 2;
+        }
+
+        return 3;
+    }
+
+    private File mDbFile;
+
+    private long mThreshold;
+
+    // Number of sort values of each entry.
+    private int mEntryWidth;
+
+    private Comparator<Entry> mComparator;
+
+    private List<Entry> mEntries = new ArrayList<>();
+    private long mSequence = 0;
+
+    private List<File> mRuns = new ArrayList<>();
+
+    // The best entries so far with the worst of them on top when only the first ones are kept.
+    private PriorityQueue<Entry> mHeap = null;
+    private long mBound;
+
+    /**
+     * @param descending Whether the order of each sort value is reversed.
+     * @param threshold Number of entries to sort in memory.
+     */
+    QuerySorter(File dbFile, boolean[] descending, long threshold) {
+        this(dbFile, descending, threshold, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param bound Number of first entries that are wanted.
+     */
+    QuerySorter(File dbFile, final boolean[] descending, long threshold, long bound) {
+        mDbFile = dbFile;
+        mThreshold = threshold;
+        mEntryWidth = descending.length;
+
+        mComparator = new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry entry1, Entry entry2) {
+                for (int i = 0; i < descending.length; i++) {
+                    int result = compareValues(entry1.values[i], entry2.values[i]);
+
+                    if (result != 0) {
+                        return descending[i] ? -result : result;
+                    }
+                }
+
+                return entry1.sequence < entry2.sequence ? -1 : (entry1.sequence == entry2.sequence ? 0 : 1);
+            }
+
+        };
+
+        mBound = bound;
+
+        if (bound <= threshold) {
+            mHeap = new PriorityQueue<>(16, Collections.reverseOrder(mComparator));
+        }
+    }
+
+    /**
+     * @param values The sort values of the member as returned by {@link #toSortValue(Object)}.
+     */
+    void add(Object[] values, long offset) throws IOException {
+        add(values, mSequence++, offset);
+    }
+
+    /**
+     * @param sequence Orders the entries with equal values.
+     */
+    void add(Object[] values, long sequence, long offset) throws IOException {
+        Entry entry = new Entry(values, sequence, offset);
+
+        if (mHeap != null) {
+            if (mHeap.size() < mBound) {
+                mHeap.add(entry);
+            }
+            else if (mBound > 0 && mComparator.compare(entry, mHeap.peek()) < 0) {
+                mHeap.poll();
+                mHeap.add(entry);
+            }
+
+            return;
+        }
+
+        mEntries.add(entry);
+
+        if (mEntries.size() >= mThreshold) {
+            writeRun();
+        }
+    }
+
+    /**
+     * @return true if only the first entries are kept and there are as many of them as wanted.
+     */
+    boolean isFull() {
+        return mHeap != null && mHeap.size() == mBound;
+    }
+
+    interface Output {
+
+        /**
+         * @return false to stop the output.
+         */
+        boolean add(Entry entry) throws IOException;
+
+    }
+
+    /**
+     * Adds the offsets to the result in order leaving out the first skip of them and stopping at
+     * the limit. The sorter can not be used afterwards.
+     */
+    void finish(final QueryResult result, final long skip, final long limit) throws IOException {
+        finish(new Output() {
+
+            private long mIndex = 0;
+
+            @Override
+            public boolean add(Entry entry) throws IOException {
+                if (mIndex - skip >= limit) {
+                    return false;
+                }
+
+                if (mIndex++ >= skip) {
+                    result.add(entry.offset);
+                }
+
+                return true;
+            }
+
+        });
+    }
+
+    /**
+     * Hands the entries to the output in order. The sorter can not be used afterwards.
+     */
+    void finish(Output output) throws IOException {
+        try {
+            if (mHeap != null) {
+                mEntries = new ArrayList<>(mHeap);
+                mHeap = null;
+            }
+
+            if (mRuns.isEmpty()) {
+                Collections.sort(mEntries, mComparator);
+
+                for (Entry entry: mEntries) {
+                    if (!output.add(entry)) {
+                        break;
+                    }
+                }
+
+                return;
+            }
+
+            if (!mEntries.isEmpty()) {
+                writeRun();
+            }
+
+            while (mRuns.size() > MAX_MERGED_RUNS) {
+                List<File> runs = new ArrayList<>(mRuns.subList(0, MAX_MERGED_RUNS));
+
+                mRuns.subList(0, MAX_MERGED_RUNS).clear();
+
+                File run = newRunFile();
+
+                mRuns.add(run);
+
+                DataOutputStream out = openRun(run);
+
+                try {
+                    merge(runs, out, null);
+                } finally {
+                    out.close();
+                }
+            }
+
+            List<File> runs = new ArrayList<>(mRuns);
+
+            mRuns.clear();
+
+            merge(runs, null, output);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Removes the run files that are left.
+     */
+    void close() {
+        for (File run: mRuns) {
+            run.delete();
+        }
+
+        mRuns.clear();
+        mEntries = null;
+        mHeap = null;
+    }
+
+    private void writeRun() throws IOException {
+        Collections.sort(mEntries, mComparator);
+
+        File run = newRunFile();
+
+        mRuns.add(run);
+
+        DataOutputStream out = openRun(run);
+
+        try {
+            for (Entry entry: mEntries) {
+                writeEntry(out, entry);
+            }
+        } finally {
+            out.close();
+        }
+
+        mEntries.clear();
+    }
+
+    /**
+     * Merges the runs into the output run or the output. The merged run files are removed.
+     */
+    private void merge(List<File> runs, DataOutputStream out, Output output) throws IOException {
+        PriorityQueue<RunReader> readers = new PriorityQueue<>(runs.size(), new Comparator<RunReader>() {
+
+            @Override
+            public int compare(RunReader reader1, RunReader reader2) {
+                return mComparator.compare(reader1.mEntry, reader2.mEntry);
+            }
+
+        });
+
+        List<RunReader> opened = new ArrayList<>(runs.size());
+
+        try {
+            for (File run: runs) {
+                RunReader reader = new RunReader(run);
+
+                opened.add(reader);
+
+                if (reader.next()) {
+                    readers.add(reader);
+                }
+            }
+
+            while (!readers.isEmpty()) {
+                RunReader reader = readers.poll();
+
+                if (out != null) {
+                    writeEntry(out, reader.mEntry);
+                }
+                else if (!output.add(reader.mEntry)) {
+                    break;
+                }
+
+                if (reader.next()) {
+                    readers.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader: opened) {
+                reader.close();
+            }
+
+            for (File run: runs) {
+                run.delete();
+            }
+        }
+    }
+
+    private File newRunFile() {
+        return new File(mDbFile.getParentFile(), "sort-" + UUID.randomUUID().toString());
+    }
+
+    private static DataOutputStream openRun(File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE));
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeLong(entry.sequence);
+        out.writeLong(entry.offset);
+
+        for (Object value: entry.values) {
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+            }
+            else if (value instanceof Long) {
+                out.writeByte(TAG_LONG);
+                out.writeLong((Long) value);
+            }
+            else if (value instanceof Double) {
+                out.writeByte(TAG_DOUBLE);
+                out.writeDouble((Double) value);
+            }
+            else if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes("UTF-8");
+
+                out.writeByte(TAG_STRING);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            else {
+                out.writeByte(TAG_OTHER);
+            }
+        }
+    }
+
+    private class RunReader {
+
+        private File mRun;
+        private DataInputStream mIn;
+
+        private Entry mEntry = null;
+
+        RunReader(File run) throws IOException {
+            mRun = run;
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+        }
+
+        /**
+         * @return false if the run is over.
+         */
+        boolean next() throws IOException {
+            long sequence;
+
+            try {
+                sequence = mIn.readLong();
+            } catch (EOFException e) {
+                mEntry = null;
+                return false;
+            }
+
+            long offset = mIn.readLong();
+
+            Object[] values = new Object[mEntryWidth];
+
+            for (int i = 0; i < values.length; i++) {
+                byte tag = mIn.readByte();
+
+                switch (tag) {
+                    case TAG_NULL:
+                        values[i] = null;
+                        break;
+                    case TAG_LONG:
+                        values[i] = mIn.readLong();
+                        break;
+                    case TAG_DOUBLE:
+                        values[i] = mIn.readDouble();
+                        break;
+                    case TAG_STRING:
+                        byte[] bytes = new byte[mIn.readInt()];
+                        mIn.readFully(bytes);
+                        values[i] = new String(bytes, "UTF-8");
+                        break;
+                    case TAG_OTHER:
+                        values[i] = OTHER;
+                        break;
+                    default:
+                        throw new IllegalStateException("Bad sort run file '" + mRun + "'.");
+                }
+            }
+
+            mEntry = new Entry(values, sequence, offset);
+
+            return true;
+        }
+
+        void close() throws IOException {
+            mIn.close();
+        }
+
+    }
+
+}
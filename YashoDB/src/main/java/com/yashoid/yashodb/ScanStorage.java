@@ -0,0 +1,110 @@
+package com.yashoid.yashodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Read only view of the database file for a parallel scan task. Pages that are newer in the cache
+ * of the database than in the file are read from the cache instead, so the file does not have to
+ * be brought up to date before a scan. Those pages are shared with the cache and are only valid
+ * while the database lock is held and nothing else uses the cache.
+ */
+class ScanStorage extends Storage {
+
+    private Storage mStorage;
+
+    private int mPageShift;
+    private int mPageMask;
+
+    private Map<Long, byte[]> mPages = Collections.emptyMap();
+    private long mLength = 0;
+
+    /**
+     * @param storage A storage over the database file that can be shared between threads.
+     */
+    ScanStorage(Storage storage, int pageSize) {
+        mStorage = storage;
+
+        mPageShift = Integer.numberOfTrailingZeros(pageSize);
+        mPageMask = pageSize - 1;
+    }
+
+    /**
+     * @param pages Pages that are newer than the file by their index.
+     * @param length Length of the database including what is not in the file yet.
+     */
+    void setPages(Map<Long, byte[]> pages, long length) {
+        mPages = pages;
+        mLength = length;
+    }
+
+    @Override
+    int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position >= mLength) {
+            return -1;
+        }
+
+        length = (int) Math.min(length, mLength - position);
+
+        int total = 0;
+
+        while (total < length) {
+            int pageOffset = (int) (position & mPageMask);
+            int count = Math.min(length - total, mPageMask + 1 - pageOffset);
+
+            byte[] page = mPages.get(position >>> mPageShift);
+
+            if (page != null) {
+                System.arraycopy(page, pageOffset, buffer, offset + total, count);
+            }
+            else {
+                count = mStorage.read(position, buffer, offset + total, count);
+
+                if (count < 0) {
+                    break;
+                }
+            }
+
+            total += count;
+            position += count;
+        }
+
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        throw new IOException("Scan storage is read only.");
+    }
+
+    @Override
+    long length() {
+        return mLength;
+    }
+
+    @Override
+    void flush() {
+
+    }
+
+    @Override
+    void sync() {
+
+    }
+
+    /**
+     * The database file belongs to the database.
+     */
+    @Override
+    void close() {
+        mPages = Collections.emptyMap();
+    }
+
+    @Override
+    void reopen(File file) throws IOException {
+        throw new IOException("Scan storage can not be reopened.");
+    }
+
+}
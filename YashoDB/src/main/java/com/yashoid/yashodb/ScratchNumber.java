@@ -0,0 +1,66 @@
+package com.yashoid.yashodb;
+
+/**
+ * A number that is reused for every numeric value read while inspecting members so that filters
+ * and indexes can look at numbers without allocating. Must not be held on to.
+ */
+class ScratchNumber extends Number {
+
+    private static final long serialVersionUID = 1L;
+
+    private boolean mIntegral;
+
+    private long mLong;
+    private double mDouble;
+
+    ScratchNumber setLong(long value) {
+        mIntegral = true;
+        mLong = value;
+        mDouble = value;
+        return this;
+    }
+
+    ScratchNumber setDouble(double value) {
+        mIntegral = false;
+        mLong = (long) value;
+        mDouble = value;
+        return this;
+    }
+
+    ScratchNumber set(ScratchNumber number) {
+        mIntegral = number.mIntegral;
+        mLong = number.mLong;
+        mDouble = number.mDouble;
+        return this;
+    }
+
+    boolean isIntegral() {
+        return mIntegral;
+    }
+
+    @Override
+    public int intValue() {
+        return (int) mLong;
+    }
+
+    @Override
+    public long longValue() {
+        return mLong;
+    }
+
+    @Override
+    public float floatValue() {
+        return (float) mDouble;
+    }
+
+    @Override
+    public double doubleValue() {
+        return mDouble;
+    }
+
+    @Override
+    public String toString() {
+        return mIntegral ? Long.toString(mLong) : Double.toString(mDouble);
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.yashoid.yashodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * A string value read while inspecting members kept in its encoded form, the two bytes length
+ * followed by modified UTF-8, so that filters can compare it to encoded constants without decoding
+ * it. Reused like {@link ScratchNumber} and must not be held on to.
+ */
+class ScratchString {
+
+    private byte[] mBytes = new byte[64];
+    private int mLength = 0;
+
+    /**
+     * Reads a string written by {@link FileAccess#writeUTF(String)} at the file pointer.
+     */
+    ScratchString read(FileAccess fileAccess) throws IOException {
+        int length = fileAccess.readUnsignedShort();
+
+        ensureCapacity(length + 2);
+
+        mBytes[0] = (byte) (length >>> 8);
+        mBytes[1] = (byte) length;
+
+        fileAccess.readFully(mBytes, 2, length);
+
+        mLength = length + 2;
+
+        return this;
+    }
+
+    ScratchString set(ScratchString string) {
+        ensureCapacity(string.mLength);
+
+        System.arraycopy(string.mBytes, 0, mBytes, 0, string.mLength);
+
+        mLength = string.mLength;
+
+        return this;
+    }
+
+    /**
+     * @param encoded A string as returned by {@link FileAccess#encodeUTF(String)}.
+     */
+    boolean matches(byte[] encoded) {
+        if (encoded.length != mLength) {
+            return false;
+        }
+
+        for (int i = 2; i < mLength; i++) {
+            if (mBytes[i] != encoded[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return false if the string can not be a number so that it is not decoded only to fail
+     * parsing.
+     */
+    boolean mayBeNumber() {
+        if (mLength == 2) {
+            return false;
+        }
+
+        byte first = mBytes[2];
+
+        return (first >= '0' && first <= '9') || first == '-' || first == '+' || first == '.' ||
+                first == 'N' || first == 'I' || (first >= 0 && first <= ' ');
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mBytes.length < capacity) {
+            mBytes = new byte[Math.max(capacity, mBytes.length * 2)];
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(mBytes, 0, mLength)));
+        } catch (IOException e) {
+            throw new IllegalStateException("State is lost or bad file format.");
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.yashoid.yashodb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Positional access to the bytes of a database file. Storages are stacked on top of each other
+ * (a cache over a file for example) and {@link FileAccess} walks over the top most one.
+ */
+abstract class Storage {
+
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return The number of bytes read or -1 if position is at or after the end of the storage.
+     */
+    abstract int read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    abstract void write(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    abstract long length() throws IOException;
+
+    /**
+     * Pushes all the buffered writes to the storage below.
+     */
+    abstract void flush() throws IOException;
+
+    /**
+     * Flushes and makes sure everything written so far has reached the device.
+     */
+    abstract void sync() throws IOException;
+
+    abstract void close() throws IOException;
+
+    /**
+     * Switches to the given file which has replaced the database file. Everything buffered is
+     * dropped so {@link #checkpoint()} must be called before the file is replaced.
+     */
+    abstract void reopen(File file) throws IOException;
+
+    /**
+     * Brings the database file itself up to date with everything written so far and makes it
+     * durable.
+     */
+    void checkpoint() throws IOException {
+        sync();
+    }
+
+    /**
+     * Makes everything written so far readable through other handles of the database file.
+     */
+    void flushToFile() throws IOException {
+        flush();
+    }
+
+    /**
+     * @return The pages that are newer here than in the database file by their index, or an empty
+     * map if the file has everything written so far. The pages are only valid until the storage is
+     * used again.
+     */
+    Map<Long, byte[]> getUnflushedPages() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Marks the end of a write operation. Storages that group writes into transactions end the
+     * current one here.
+     */
+    void commit() throws IOException {
+
+    }
+
+    void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = read(position, buffer, offset, length);
+
+            if (read < 0) {
+                throw new EOFException();
+            }
+
+            position += read;
+            offset += read;
+            length -= read;
+        }
+    }
+
+    /**
+     * Writes the given range of bytes to the channel. Storages that can hand the bytes to the
+     * channel without copying them through the heap override this.
+     *
+     * @return The number of bytes written which may be less than count.
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TRANSFER_BUFFER_SIZE));
+
+        long transferred = 0;
+
+        while (transferred < count) {
+            int length = (int) Math.min(count - transferred, buffer.capacity());
+
+            readFully(position + transferred, buffer.array(), 0, length);
+
+            buffer.clear();
+            buffer.limit(length);
+
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+
+            transferred += length;
+        }
+
+        return transferred;
+    }
+
+    int readByte(long position) throws IOException {
+        byte[] buffer = new byte[1];
+
+        readFully(position, buffer, 0, 1);
+
+        return buffer[0] & 0xFF;
+    }
+
+    int readInt(long position) throws IOException {
+        byte[] buffer = new byte[4];
+
+        readFully(position, buffer, 0, 4);
+
+        return getInt(buffer, 0);
+    }
+
+    long readLong(long position) throws IOException {
+        byte[] buffer = new byte[8];
+
+        readFully(position, buffer, 0, 8);
+
+        return getLong(buffer, 0);
+    }
+
+    static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) |
+                ((buffer[offset + 1] & 0xFF) << 16) |
+                ((buffer[offset + 2] & 0xFF) << 8) |
+                (buffer[offset + 3] & 0xFF);
+    }
+
+    static long getLong(byte[] buffer, int offset) {
+        return ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static void putLong(byte[] buffer, int offset, long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+}
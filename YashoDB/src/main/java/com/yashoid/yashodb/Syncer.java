@@ -0,0 +1,159 @@
+package com.yashoid.yashodb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes written data durable according to the configured {@link DBOptions.Durability}.
+ *
+ * Commits that arrive while a sync is in progress wait for it and are then all covered by a single
+ * sync, so concurrent writers share the cost of one fsync.
+ */
+class Syncer {
+
+    private Object mLock;
+
+    private Storage mStorage;
+    private Storage mDevice;
+
+    private DBOptions.Durability mDurability;
+    private long mSyncInterval;
+
+    private ScheduledExecutorService mScheduler = null;
+
+    private long mRequested = 0;
+    private long mSynced = 0;
+    private boolean mSyncing = false;
+
+    /**
+     * @param lock The database lock. Held while buffered writes are flushed.
+     * @param storage Storage whose buffered writes are flushed.
+     * @param device Storage that is forced to the device after the flush.
+     */
+    Syncer(Object lock, Storage storage, Storage device, DBOptions.Durability durability, long syncInterval) {
+        mLock = lock;
+
+        mStorage = storage;
+        mDevice = device;
+
+        mDurability = durability;
+        mSyncInterval = syncInterval;
+    }
+
+    void start() {
+        if (mDurability != DBOptions.Durability.PERIODIC) {
+            return;
+        }
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "YashoDB-Sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+
+        mScheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    // Next round will try again.
+                }
+            }
+
+        }, mSyncInterval, mSyncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called after a write operation has released the database lock.
+     */
+    void commit() throws IOException {
+        synchronized (mLock) {
+            mStorage.commit();
+        }
+
+        if (mDurability == DBOptions.Durability.COMMIT) {
+            sync();
+        }
+    }
+
+    /**
+     * Returns once everything written before the call is on the device.
+     */
+    void sync() throws IOException {
+        long target;
+
+        synchronized (this) {
+            long ticket = ++mRequested;
+
+            while (mSyncing && mSynced < ticket) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            if (mSynced >= ticket) {
+                return;
+            }
+
+            mSyncing = true;
+
+            target = mRequested;
+        }
+
+        boolean synced = false;
+
+        try {
+            synchronized (mLock) {
+                mStorage.flush();
+            }
+
+            mDevice.sync();
+
+            synced = true;
+        } finally {
+            synchronized (this) {
+                mSyncing = false;
+
+                if (synced) {
+                    mSynced = Math.max(mSynced, target);
+                }
+
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic syncs and syncs for the last time unless durability is not asked for.
+     */
+    void stop() throws IOException {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+            mScheduler = null;
+        }
+
+        if (mDurability == DBOptions.Durability.NONE) {
+            synchronized (mLock) {
+                mStorage.flush();
+            }
+        }
+        else {
+            sync();
+        }
+    }
+
+}
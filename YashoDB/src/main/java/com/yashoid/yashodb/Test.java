@@ -1,9 +1,14 @@
 package com.yashoid.yashodb;
 
+import com.yashoid.yashodb.exception.DBAccessException;
 import com.yashoid.yashodb.exception.JSONException;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 
 class Test {
@@ -98,6 +103,122 @@ class Test {
         } catch (JSONException e) {
             e.printStackTrace();
         }
+
+        try {
+            testLargeOperationCrash();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * An operation that is logged in several parts must still be replayed whole or not at all. The
+     * files are copied away in the middle of and right after such an operation to see what a crash
+     * would leave behind.
+     */
+    private static void testLargeOperationCrash() throws IOException {
+        final File file = new File("wal.db");
+        final File crashFile = new File("crash.db");
+
+        deleteDatabase(file);
+        deleteDatabase(crashFile);
+
+        YashoDB db = new YashoDB(file, new DBOptions().setWriteAheadLog(true).setDurability(DBOptions.Durability.COMMIT));
+
+        db.open();
+
+        YashON small = new YashON();
+        small.put("name", "small");
+
+        db.insert(small);
+
+        InputStream crashingInput = new InputStream() {
+
+            private int mRead = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (mRead++ == 3 * 1024 * 1024) {
+                    copyDatabase(file, crashFile);
+
+                    throw new IOException("Crashed.");
+                }
+
+                return 'a';
+            }
+
+        };
+
+        YashON large = new YashON();
+        large.put("name", "large");
+        large.put("blob", crashingInput);
+
+        try {
+            db.insert(large);
+        } catch (DBAccessException e) { }
+
+        YashoDB crashDB = new YashoDB(crashFile, new DBOptions().setWriteAheadLog(true));
+        crashDB.open();
+        System.out.println(crashDB.asYashAN());
+        crashDB.close();
+
+        db.close();
+
+        deleteDatabase(file);
+        deleteDatabase(crashFile);
+
+        db = new YashoDB(file, new DBOptions().setWriteAheadLog(true).setDurability(DBOptions.Durability.COMMIT));
+
+        db.open();
+
+        large = new YashON();
+        large.put("name", "large");
+        large.put("blob", new byte[3 * 1024 * 1024]);
+
+        db.insert(large);
+
+        copyDatabase(file, crashFile);
+
+        db.close();
+
+        crashDB = new YashoDB(crashFile, new DBOptions().setWriteAheadLog(true));
+        crashDB.open();
+        System.out.println(crashDB.getCount() + " " + crashDB.get(0).get("blob").getValueLength());
+        crashDB.close();
+
+        deleteDatabase(file);
+        deleteDatabase(crashFile);
+    }
+
+    private static void deleteDatabase(File file) {
+        for (String suffix: new String[] { "", ".wal", ".meta" }) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    private static void copyDatabase(File source, File target) throws IOException {
+        deleteDatabase(target);
+
+        for (String suffix: new String[] { "", ".wal", ".meta" }) {
+            File sourceFile = new File(source.getPath() + suffix);
+
+            if (!sourceFile.exists()) {
+                continue;
+            }
+
+            InputStream input = new FileInputStream(sourceFile);
+            OutputStream output = new FileOutputStream(target.getPath() + suffix);
+
+            byte[] buffer = new byte[8192];
+            int read;
+
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+
+            input.close();
+            output.close();
+        }
     }
 
     public void sampleCode() {
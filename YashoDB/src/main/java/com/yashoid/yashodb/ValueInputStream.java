@@ -0,0 +1,169 @@
+package com.yashoid.yashodb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the bytes of a value straight from the database file in bounded steps. Only the bytes
+ * asked for are copied so large values never have to be on the heap as a whole.
+ *
+ * The stream reads the value at the offset it was opened at. Setting the key again writes a new
+ * value elsewhere and leaves these bytes as they are unless free space is reused. Compacting the
+ * database ends the stream.
+ */
+class ValueInputStream extends InputStream implements ReadableByteChannel {
+
+    private static final int MAX_STEP = 64 * 1024;
+
+    private FileAccess mFileAccess;
+    private Metadata mMetadata;
+    private int mGeneration;
+
+    private byte[] mBytes;
+
+    private long mPosition;
+    private long mEnd;
+    private long mMark;
+
+    private boolean mOpen = true;
+
+    /**
+     * Streams the bytes between the given offsets of the database file.
+     */
+    ValueInputStream(FileAccess fileAccess, Metadata metadata, long start, long end) {
+        mFileAccess = fileAccess;
+        mMetadata = metadata;
+        mGeneration = metadata.getGeneration();
+
+        mPosition = start;
+        mEnd = end;
+        mMark = start;
+    }
+
+    /**
+     * Streams a value that is already in memory.
+     */
+    ValueInputStream(byte[] bytes) {
+        mBytes = bytes;
+
+        mPosition = 0;
+        mEnd = bytes.length;
+        mMark = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!mOpen) {
+            throw new IOException("Stream is closed.");
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (mPosition >= mEnd) {
+            return -1;
+        }
+
+        int count = (int) Math.min(Math.min(len, MAX_STEP), mEnd - mPosition);
+
+        if (mBytes != null) {
+            System.arraycopy(mBytes, (int) mPosition, b, off, count);
+        }
+        else {
+            synchronized (mFileAccess) {
+                if (mMetadata.getGeneration() != mGeneration) {
+                    throw new IOException("Database has been compacted since the stream was opened.");
+                }
+
+                mFileAccess.getStorage().readFully(mPosition, b, off, count);
+            }
+        }
+
+        mPosition += count;
+
+        return count;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!mOpen) {
+            throw new ClosedChannelException();
+        }
+
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        int read;
+
+        if (dst.hasArray()) {
+            read = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+        }
+        else {
+            byte[] buffer = new byte[Math.min(dst.remaining(), MAX_STEP)];
+
+            read = read(buffer, 0, buffer.length);
+
+            if (read > 0) {
+                dst.put(buffer, 0, read);
+            }
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, mEnd - mPosition));
+
+        mPosition += skipped;
+
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mMark = mPosition;
+    }
+
+    @Override
+    public synchronized void reset() {
+        mPosition = mMark;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public void close() {
+        mOpen = false;
+    }
+
+}
@@ -0,0 +1,316 @@
+package com.yashoid.yashodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the byte ranges written by each transaction, kept next to the database file.
+ *
+ * Transaction Format
+ * [4-bytes MAGIC] [8-bytes sequence] [4-bytes records length] {[8-bytes position] [4-bytes length] [data]}... [8-bytes CRC32 of records]
+ *
+ * A transaction that grows past {@link #MAX_PENDING_LENGTH} is written ahead in parts that share
+ * its sequence and have PART_MAGIC in place of MAGIC. The parts are only replayed along with the
+ * transaction that ends them.
+ *
+ * A transaction is only replayed if it has been fully written, so a crash in the middle of an
+ * operation never leaves half of it in the database.
+ */
+class WriteAheadLog {
+
+    private static final int MAGIC = 0x59574C31;
+    private static final int PART_MAGIC = 0x59574C50;
+
+    private static final int HEADER_LENGTH = 4 + 8 + 4;
+    private static final int RECORD_HEADER_LENGTH = 8 + 4;
+
+    // Most bytes of records a transaction keeps in memory before they are written ahead as a part.
+    static final int MAX_PENDING_LENGTH = 1024 * 1024;
+
+    private FileStorage mStorage;
+
+    private volatile long mLength;
+    private volatile long mSyncedLength;
+
+    // Changes each time the log is emptied so that a sync that started before does not count.
+    private long mEpoch = 0;
+
+    private long mSequence = 0;
+
+    // Sequence of the pending transaction once a part of it has been written.
+    private long mPendingSequence = 0;
+
+    private byte[] mBuffer = new byte[4096];
+    private int mSize = HEADER_LENGTH;
+
+    // The last record is extended in place while writes keep continuing it.
+    private int mLastRecord = -1;
+    private long mLastStart;
+    private long mLastEnd;
+
+    WriteAheadLog(File file) throws IOException {
+        mStorage = new FileStorage(file, "rw");
+
+        mLength = mStorage.length();
+        mSyncedLength = mLength;
+    }
+
+    void append(long position, byte[] data, int offset, int length) throws IOException {
+        if (hasPendingTransaction() && getPendingLength() + RECORD_HEADER_LENGTH + length > MAX_PENDING_LENGTH) {
+            writePending(PART_MAGIC);
+        }
+
+        if (mLastRecord != -1 && position >= mLastStart && position <= mLastEnd) {
+            // Overwrites or continues the last record.
+            long end = Math.max(mLastEnd, position + length);
+
+            int grow = (int) (end - mLastEnd);
+
+            ensureCapacity(mSize + grow);
+
+            int recordData = mLastRecord + RECORD_HEADER_LENGTH;
+
+            System.arraycopy(data, offset, mBuffer, recordData + (int) (position - mLastStart), length);
+
+            mSize += grow;
+            mLastEnd = end;
+
+            Storage.putInt(mBuffer, mLastRecord + 8, (int) (mLastEnd - mLastStart));
+
+            return;
+        }
+
+        ensureCapacity(mSize + RECORD_HEADER_LENGTH + length);
+
+        mLastRecord = mSize;
+        mLastStart = position;
+        mLastEnd = position + length;
+
+        Storage.putLong(mBuffer, mSize, position);
+        Storage.putInt(mBuffer, mSize + 8, length);
+        System.arraycopy(data, offset, mBuffer, mSize + RECORD_HEADER_LENGTH, length);
+
+        mSize += RECORD_HEADER_LENGTH + length;
+    }
+
+    boolean hasPendingTransaction() {
+        return mSize > HEADER_LENGTH;
+    }
+
+    /**
+     * @return Number of bytes of records of the pending transaction that are kept in memory.
+     */
+    private int getPendingLength() {
+        return mSize - HEADER_LENGTH;
+    }
+
+    /**
+     * Appends the pending transaction to the log file. Does not wait for it to reach the device.
+     * @return false if there was nothing to commit.
+     */
+    boolean commit() throws IOException {
+        if (!hasPendingTransaction()) {
+            return false;
+        }
+
+        writePending(MAGIC);
+
+        mPendingSequence = 0;
+
+        return true;
+    }
+
+    private void writePending(int magic) throws IOException {
+        if (mPendingSequence == 0) {
+            mPendingSequence = ++mSequence;
+        }
+
+        int recordsLength = mSize - HEADER_LENGTH;
+
+        ensureCapacity(mSize + 8);
+
+        Storage.putInt(mBuffer, 0, magic);
+        Storage.putLong(mBuffer, 4, mPendingSequence);
+        Storage.putInt(mBuffer, 12, recordsLength);
+
+        CRC32 crc = new CRC32();
+        crc.update(mBuffer, HEADER_LENGTH, recordsLength);
+
+        Storage.putLong(mBuffer, mSize, crc.getValue());
+
+        mStorage.write(mLength, mBuffer, 0, mSize + 8);
+
+        mLength += mSize + 8;
+
+        mSize = HEADER_LENGTH;
+        mLastRecord = -1;
+
+        if (mBuffer.length > 1024 * 1024) {
+            mBuffer = new byte[4096];
+        }
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    /**
+     * Forces the committed transactions to the device. Safe to call without the database lock.
+     */
+    void sync() throws IOException {
+        long length;
+        long epoch;
+
+        synchronized (this) {
+            length = mLength;
+            epoch = mEpoch;
+
+            if (mSyncedLength >= length) {
+                return;
+            }
+        }
+
+        mStorage.sync();
+
+        synchronized (this) {
+            // The log may have been emptied and written again while syncing.
+            if (epoch == mEpoch && length > mSyncedLength) {
+                mSyncedLength = length;
+            }
+        }
+    }
+
+    /**
+     * Empties the log once everything in it has been applied to the database file.
+     */
+    void truncate() throws IOException {
+        mStorage.truncate(0);
+        mStorage.sync();
+
+        synchronized (this) {
+            mEpoch++;
+            mLength = 0;
+            mSyncedLength = 0;
+        }
+    }
+
+    void close() throws IOException {
+        mStorage.close();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(capacity, mBuffer.length * 2));
+        }
+    }
+
+    /**
+     * Applies the fully written transactions of the log to the target. Stops at the first
+     * transaction that is incomplete or corrupted.
+     * @return The number of transactions applied.
+     */
+    static int replay(File file, Storage target) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return 0;
+        }
+
+        FileStorage log = new FileStorage(file, "r");
+
+        int applied = 0;
+
+        try {
+            byte[] header = new byte[HEADER_LENGTH];
+
+            long position = 0;
+
+            // Where the parts of the transaction being read start.
+            long partsStart = -1;
+            long partsSequence = 0;
+
+            while (log.read(position, header, 0, HEADER_LENGTH) == HEADER_LENGTH) {
+                int magic = Storage.getInt(header, 0);
+                long sequence = Storage.getLong(header, 4);
+                int recordsLength = Storage.getInt(header, 12);
+
+                if (magic != MAGIC && magic != PART_MAGIC) {
+                    break;
+                }
+
+                if (partsStart != -1 && sequence != partsSequence) {
+                    break;
+                }
+
+                byte[] records = readRecords(log, position, recordsLength);
+
+                if (records == null) {
+                    break;
+                }
+
+                if (magic == PART_MAGIC) {
+                    if (partsStart == -1) {
+                        partsStart = position;
+                        partsSequence = sequence;
+                    }
+                }
+                else {
+                    while (partsStart != -1 && partsStart < position) {
+                        int partLength = log.readInt(partsStart + 12);
+
+                        apply(readRecords(log, partsStart, partLength), partLength, target);
+
+                        partsStart += HEADER_LENGTH + partLength + 8;
+                    }
+
+                    partsStart = -1;
+
+                    apply(records, recordsLength, target);
+
+                    applied++;
+                }
+
+                position += HEADER_LENGTH + recordsLength + 8;
+            }
+        } finally {
+            log.close();
+        }
+
+        return applied;
+    }
+
+    /**
+     * @return The records of the transaction at the position followed by their CRC32 or null if
+     * the transaction is incomplete or corrupted.
+     */
+    private static byte[] readRecords(Storage log, long position, int recordsLength) throws IOException {
+        if (recordsLength < 0 || position + HEADER_LENGTH + recordsLength + 8 > log.length()) {
+            return null;
+        }
+
+        byte[] records = new byte[recordsLength + 8];
+
+        if (log.read(position + HEADER_LENGTH, records, 0, records.length) < records.length) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(records, 0, recordsLength);
+
+        return Storage.getLong(records, recordsLength) == crc.getValue() ? records : null;
+    }
+
+    private static void apply(byte[] records, int recordsLength, Storage target) throws IOException {
+        int index = 0;
+
+        while (index < recordsLength) {
+            long position = Storage.getLong(records, index);
+            int length = Storage.getInt(records, index + 8);
+
+            target.write(position, records, index + RECORD_HEADER_LENGTH, length);
+
+            index += RECORD_HEADER_LENGTH + length;
+        }
+    }
+
+}
@@ -3,6 +3,7 @@ package com.yashoid.yashodb;
 import com.yashoid.yashodb.exception.JSONException;
 import com.yashoid.yashodb.exception.ValueTypeException;
 
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -136,12 +137,13 @@ public class YashON {
 
     static void validateValue(Object object) {
         boolean valid = object == null || object instanceof String || object instanceof Number ||
-                object instanceof YashON || object instanceof YashAN;
+                object instanceof Boolean || object instanceof YashON || object instanceof YashAN ||
+                object instanceof byte[] || object instanceof InputStream;
 
         if (!valid) {
             throw new IllegalArgumentException(
                     "Invalid value type '" + object.getClass().getName() + "'. " +
-                    "Must be either null, Number, String, YashON or YashAN.");
+                    "Must be either null, Number, Boolean, String, byte[], InputStream, YashON or YashAN.");
         }
     }
 
@@ -154,7 +156,7 @@ public class YashON {
             return (String) value;
         }
 
-        if (value instanceof Number) {
+        if (value instanceof Number || value instanceof Boolean) {
             return value.toString();
         }
 
@@ -6,9 +6,31 @@ import com.yashoid.yashodb.exception.DBUseException;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Collection Format
@@ -20,6 +42,24 @@ import java.util.Map;
  * Value Format
  * V [RandomAccessFile Unicode String bytes]
  *
+ * String Format (strings too long for the value format)
+ * S [8-bytes byte length] [UTF-8 bytes]
+ *
+ * Blob Format
+ * X [8-bytes byte length] [bytes]
+ *
+ * Integer Format
+ * I [zig-zag encoded varint, 7 bits per byte, least significant first]
+ *
+ * Long Format
+ * L [8-bytes]
+ *
+ * Double Format
+ * D [8-bytes IEEE 754]
+ *
+ * Boolean Format
+ * B [1-byte 0/1]
+ *
  * Null Format
  * N
  */
@@ -28,6 +68,12 @@ public class YashoDB {
     public static final char COLLECTION = 'C';
     public static final char OBJECT = 'O';
     public static final char VALUE = 'V';
+    public static final char INTEGER = 'I';
+    public static final char LONG = 'L';
+    public static final char DOUBLE = 'D';
+    public static final char BOOLEAN = 'B';
+    public static final char STRING = 'S';
+    public static final char BLOB = 'X';
 
     private static final char HAS_TAIL = 'T';
     private static final char HAS_NOT_TAIL = 't';
@@ -37,34 +83,115 @@ public class YashoDB {
 
     private static final Object KEY_NOT_FOUND = new Object();
 
-    private YashoDB mParent = null;
+    private static final int MAX_UTF_LENGTH = 65535;
+
+    // Chars encoded at a time when writing a large string.
+    private static final int STRING_CHUNK_LENGTH = 8 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Bytes transferred each time the database is locked for a transfer.
+    private static final long TRANSFER_STEP = 1024 * 1024;
+
+    // Bytes copied each time the database is locked by a background compaction.
+    private static final long COMPACTION_STEP = 256 * 1024;
+
+    // Passes a background compaction makes before it holds the lock for the whole last pass.
+    private static final int COMPACTION_ATTEMPTS = 3;
+
+    // Smallest database file that is compacted automatically.
+    private static final long MIN_COMPACTION_LENGTH = 1024 * 1024;
+
+    // Fewest members a parallel scan gives to a task.
+    private static final long MIN_SCAN_RANGE = 4 * 1024;
+
+    // Ranges per scan thread so that threads that finish early take on more.
+    private static final int SCAN_RANGES_PER_THREAD = 4;
+
+    // Cache of each scan task over the database file.
+    private static final long SCAN_CACHE_SIZE = 256 * 1024;
 
-//    private List<WeakReference<QueryResult>> mQueryResults = null;
+    private YashoDB mParent = null;
 
     private File mFile;
 
-    private RandomAccessFile mFileAccess;
+    private DBOptions mOptions;
+
+    private FileAccess mFileAccess;
+
+    private Syncer mSyncer;
+
+    private Metadata mMetadata;
+
+    private Map<String, FieldIndex> mIndexes;
+
+    // Results of the latest selections on the root collection or null if they are not kept.
+    private QueryCache mQueryCache = null;
+
+    private ScratchNumber mScratchNumber;
+    private ScratchString mScratchString;
+
+    // Key paths of the filters applied lately so that scans allocate nothing per member.
+    private Map<Filter, KeyPaths> mKeyPaths;
 
     private QueryResult mQueryResult = null;
 
+    // What to read of the objects turned into YashON or null for all of them.
+    private Projection mProjection = null;
+
+    // Offsets held by this instance are only valid while this matches the metadata generation.
+    private int mGeneration;
+
+    private Thread mCompactionThread = null;
+    private volatile boolean mCompactionCancelled = false;
+
+    private ExecutorService mScanExecutor = null;
+
+    // Caches of the scan tasks over the database file, kept for as long as the database is open.
+    private Queue<PageCache> mScanCaches = null;
+
+    // Storage directly over the database file, which scan tasks share.
+    private FileStorage mFileStorage;
+
     private char mType;
     private long mStartOffset;
     private long mLength;
 
     public YashoDB(File file) {
+        this(file, new DBOptions());
+    }
+
+    public YashoDB(File file, DBOptions options) {
         mFile = file;
+        mOptions = options;
 
         mType = COLLECTION;
         mStartOffset = 1;
 
-//        mQueryResults = new ArrayList<>();
+        mScratchNumber = new ScratchNumber();
+        mScratchString = new ScratchString();
+
+        mKeyPaths = new WeakHashMap<>();
     }
 
     private YashoDB(YashoDB parent, long startOffset, long length) throws IOException {
         mParent = parent;
 
         mFile = parent.mFile;
+        mOptions = parent.mOptions;
         mFileAccess = parent.mFileAccess;
+        mSyncer = parent.mSyncer;
+        mMetadata = parent.mMetadata;
+        mIndexes = parent.mIndexes;
+        mQueryCache = parent.mQueryCache;
+        mScratchNumber = parent.mScratchNumber;
+        mScratchString = parent.mScratchString;
+        mKeyPaths = parent.mKeyPaths;
+        mScanExecutor = parent.mScanExecutor;
+        mScanCaches = parent.mScanCaches;
+        mFileStorage = parent.mFileStorage;
+        mGeneration = parent.mGeneration;
+        mProjection = parent.mProjection;
 
         mFileAccess.seek(startOffset);
 
@@ -73,22 +200,122 @@ public class YashoDB {
         mLength = length - 1;
     }
 
-    YashoDB(YashoDB parent, QueryResult queryResult) {
+    /**
+     * A reader of the parent collection through the given file access for a scan task. Shares the
+     * metadata of the parent, which a scan only reads while the parent holds the lock.
+     */
+    private YashoDB(YashoDB parent, FileAccess fileAccess) {
+        mParent = parent;
+
+        mFile = parent.mFile;
+        mOptions = parent.mOptions;
+        mFileAccess = fileAccess;
+        mSyncer = parent.mSyncer;
+        mMetadata = parent.mMetadata;
+        mIndexes = parent.mIndexes;
+        mQueryCache = parent.mQueryCache;
+        mScratchNumber = new ScratchNumber();
+        mScratchString = new ScratchString();
+        mKeyPaths = new WeakHashMap<>();
+        mGeneration = parent.mGeneration;
+
+        mType = parent.mType;
+        mStartOffset = parent.mStartOffset;
+        mLength = parent.mLength;
+
+        mQueryResult = parent.mQueryResult;
+    }
+
+    YashoDB(YashoDB parent, QueryResult queryResult, Projection projection) {
         mParent = parent;
 
         mFile = parent.mFile;
+        mOptions = parent.mOptions;
         mFileAccess = parent.mFileAccess;
+        mSyncer = parent.mSyncer;
+        mMetadata = parent.mMetadata;
+        mIndexes = parent.mIndexes;
+        mQueryCache = parent.mQueryCache;
+        mScratchNumber = parent.mScratchNumber;
+        mScratchString = parent.mScratchString;
+        mKeyPaths = parent.mKeyPaths;
+        mScanExecutor = parent.mScanExecutor;
+        mScanCaches = parent.mScanCaches;
+        mFileStorage = parent.mFileStorage;
+        mGeneration = parent.mGeneration;
 
         mType = parent.mType;
         mStartOffset = parent.mStartOffset;
         mLength = parent.mLength;
 
         mQueryResult = queryResult;
+        mProjection = projection != null ? projection : parent.mProjection;
     }
 
     public void open() {
         try {
-            mFileAccess = new RandomAccessFile(mFile, "rws");
+            File logFile = new File(mFile.getPath() + ".wal");
+
+            boolean writeAheadLog = mOptions.isWriteAheadLog();
+
+            if (writeAheadLog && mOptions.isMemoryMapped()) {
+                throw new DBUseException("Write ahead log can not be used in memory mapped mode.");
+            }
+
+            DBOptions.Durability durability = mOptions.getDurability();
+
+            boolean fullDurability = durability == DBOptions.Durability.FULL && !writeAheadLog;
+
+            FileStorage fileStorage = new FileStorage(mFile, fullDurability ? "rws" : "rw");
+
+            if (WriteAheadLog.replay(logFile, fileStorage) > 0) {
+                fileStorage.sync();
+            }
+
+            Storage storage;
+            Storage device = fileStorage;
+
+            if (writeAheadLog) {
+                WriteAheadLog log = new WriteAheadLog(logFile);
+                log.truncate();
+
+                storage = new LoggedStorage(new PageCache(fileStorage, mOptions, false), log, mOptions.getCheckpointSize());
+                device = storage;
+
+                // Every operation is a transaction in the log. Syncing each of them is what FULL gets.
+                if (durability == DBOptions.Durability.FULL) {
+                    durability = DBOptions.Durability.COMMIT;
+                }
+            }
+            else {
+                if (logFile.exists()) {
+                    logFile.delete();
+                }
+
+                if (mOptions.isMemoryMapped()) {
+                    storage = new MappedStorage(fileStorage);
+                }
+                else {
+                    storage = new PageCache(fileStorage, mOptions, fullDurability);
+                }
+            }
+
+            mFileAccess = new FileAccess(storage);
+            mFileStorage = fileStorage;
+
+            mSyncer = new Syncer(mFileAccess, storage, device, durability, mOptions.getSyncInterval());
+
+            mMetadata = new Metadata(new File(mFile.getPath() + ".meta"), mOptions.getKeyDirectoryCount(), mOptions.isReuseFreeSpace());
+            mMetadata.load(mFileAccess.length());
+
+            mGeneration = mMetadata.getGeneration();
+
+            File compactFile = getCompactFile();
+
+            if (compactFile.exists()) {
+                // Left by a compaction that did not finish.
+                compactFile.delete();
+            }
 
             if (mFileAccess.length() == 0) {
                 mFileAccess.writeByte(COLLECTION);
@@ -99,314 +326,1889 @@ public class YashoDB {
             }
 
             mLength = mFileAccess.length() - 1;
+
+            loadIndexes();
+
+            if (mOptions.getQueryCacheSize() > 0) {
+                mQueryCache = new QueryCache(mOptions.getQueryCacheSize());
+            }
+
+            mSyncer.start();
+
+            if (mOptions.getScanThreads() > 1) {
+                mScanExecutor = Executors.newFixedThreadPool(mOptions.getScanThreads(), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "YashoDB scan");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+
+                mScanCaches = new ConcurrentLinkedQueue<>();
+            }
+
+            mSyncer.commit();
         } catch (IOException e) {
             throw new DBAccessException(e);
         }
     }
 
+    /**
+     * Closes the database. On the result of a query only releases the matches of the query.
+     */
     public void close() {
+        if (mQueryResult != null) {
+            synchronized (mFileAccess) {
+                try {
+                    mQueryResult.close();
+                } catch (IOException e) {
+                    throw new DBAccessException(e);
+                }
+            }
+
+            return;
+        }
+
+        stopCompaction();
+
+        if (mScanExecutor != null) {
+            mScanExecutor.shutdown();
+
+            mScanCaches.clear();
+        }
+
         try {
-            mFileAccess.close();
+            mSyncer.stop();
+
+            synchronized (mFileAccess) {
+                if (mQueryCache != null) {
+                    mQueryCache.clear();
+                }
+
+                long length = mFileAccess.length();
+
+                mFileAccess.close();
+
+                mMetadata.save(length);
+
+                for (FieldIndex index: mIndexes.values()) {
+                    index.close(length);
+                }
+            }
         } catch (IOException e) {
             throw new DBAccessException(e);
         }
     }
 
-    public char getType() {
-        return mType;
+    /**
+     * Makes sure everything written so far has reached the device regardless of the durability
+     * option.
+     */
+    public void sync() {
+        try {
+            mSyncer.sync();
+        } catch (IOException e) {
+            throw new DBAccessException(e);
+        }
     }
 
-    public void writeToFile(final File file) throws IOException {
-        if (mType != COLLECTION) {
-            throw new IllegalStateException("Only collections can be exported.");
+    private void commit() {
+        try {
+            mSyncer.commit();
+        } catch (IOException e) {
+            throw new DBAccessException(e);
         }
 
-        final RandomAccessFile fileAccess = new RandomAccessFile(file, "rw");
+        getRoot().checkCompactionThreshold();
+    }
 
-        fileAccess.writeByte(COLLECTION);
-        fileAccess.writeLong(getCount());
+    private YashoDB getRoot() {
+        YashoDB db = this;
 
-        iterate(new Processor() {
+        while (db.mParent != null) {
+            db = db.mParent;
+        }
 
-            @Override
-            public boolean process(long index, long length) throws IOException {
-                fileAccess.writeByte(NOT_DELETED);
+        return db;
+    }
 
-                long lengthOffset = fileAccess.getFilePointer();
-                fileAccess.writeLong(0);
+    private void checkValid() {
+        if (mGeneration != mMetadata.getGeneration()) {
+            throw new DBUseException("Database has been compacted since this instance was obtained.");
+        }
+    }
 
-                long valueLength = writeValueToFile(fileAccess, length);
+    /**
+     * Rewrites the database file without the removed records and with the members of every
+     * collection and object one after the other. The new file replaces the database file once it
+     * is complete. Instances obtained from this database before are not valid afterwards. Only the
+     * root collection can be compacted.
+     */
+    public void compact() {
+        if (mParent != null) {
+            throw new DBUseException("Only the root collection can be compacted.");
+        }
 
-                long eofOffset = fileAccess.getFilePointer();
+        stopCompaction();
 
-                fileAccess.seek(lengthOffset);
-                fileAccess.writeLong(valueLength);
+        synchronized (mFileAccess) {
+            try {
+                new CompactionPass().finish();
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
+        }
+    }
 
-                fileAccess.seek(eofOffset);
+    /**
+     * Same as {@link #compact()} but copies the database a step at a time on a background thread,
+     * at the rate given by {@link DBOptions#setCompactionRate(long)}, while other operations go on.
+     * Returns right away and does nothing if a background compaction is already running.
+     */
+    public void compactInBackground() {
+        if (mParent != null) {
+            throw new DBUseException("Only the root collection can be compacted.");
+        }
 
-                return true;
+        synchronized (mFileAccess) {
+            if (mCompactionThread != null) {
+                return;
             }
 
-        });
+            mCompactionCancelled = false;
 
-        fileAccess.writeByte(HAS_NOT_TAIL);
-        fileAccess.writeLong(0L);
+            mCompactionThread = new Thread(new Runnable() {
 
-        fileAccess.close();
-    }
+                @Override
+                public void run() {
+                    try {
+                        compactGradually();
+                    } finally {
+                        synchronized (mFileAccess) {
+                            mCompactionThread = null;
+                        }
+                    }
+                }
 
-    private long writeValueToFile(RandomAccessFile fileAccess, long length) throws IOException {
-        byte type = mFileAccess.readByte();
+            }, "YashoDB-Compact");
 
-        switch (type) {
-            case COLLECTION:
-                return writeCollectionToFile(fileAccess);
-            case OBJECT:
-                return writeObjectToFile(fileAccess);
-            case VALUE:
-                return writeStringValueToFile(fileAccess, length);
-            case NULL:
-                fileAccess.writeByte(NULL);
-                return 1L;
-            default:
-                throw new RuntimeException("State lost or bad file format.");
+            mCompactionThread.setDaemon(true);
+            mCompactionThread.start();
         }
     }
 
-    private long writeCollectionToFile(RandomAccessFile fileAccess) throws IOException {
-        long collectionLength = 0;
+    private void compactGradually() {
+        long rate = mOptions.getCompactionRate();
 
-        fileAccess.writeByte(COLLECTION);
-        collectionLength++;
+        CompactionPass pass = null;
 
-        fileAccess.writeLong(mFileAccess.readLong());
-        collectionLength += 8;
+        try {
+            for (int attempt = 1; attempt <= COMPACTION_ATTEMPTS; attempt++) {
+                synchronized (mFileAccess) {
+                    if (mCompactionCancelled) {
+                        return;
+                    }
 
-        byte c = mFileAccess.readByte();
+                    pass = new CompactionPass();
 
-        while (c != HAS_NOT_TAIL) {
-            if (c == NOT_DELETED) {
-                fileAccess.writeByte(NOT_DELETED);
-                collectionLength++;
+                    if (attempt == COMPACTION_ATTEMPTS) {
+                        // Members keep changing behind the copy. Copy without letting them.
+                        pass.finish();
+                        return;
+                    }
+                }
 
-                long length = mFileAccess.readLong();
-                long srcLengthOffset = mFileAccess.getFilePointer();
+                long start = System.nanoTime();
 
-                long lengthOffset = fileAccess.getFilePointer();
-                fileAccess.writeLong(0L);
-                collectionLength += 8;
+                while (true) {
+                    synchronized (mFileAccess) {
+                        if (mCompactionCancelled) {
+                            pass.abort();
+                            return;
+                        }
 
-                long valueLength = writeValueToFile(fileAccess, length);
-                collectionLength += valueLength;
+                        if (pass.isOutdated()) {
+                            pass.abort();
+                            break;
+                        }
 
-                fileAccess.seek(lengthOffset);
-                fileAccess.writeLong(valueLength);
-                fileAccess.seek(fileAccess.getFilePointer() + valueLength);
+                        if (pass.step(COMPACTION_STEP)) {
+                            pass.finish();
+                            return;
+                        }
+                    }
 
-                mFileAccess.seek(srcLengthOffset + length);
-            }
-            else if (c == DELETED) {
-                long length = mFileAccess.readLong();
-                long srcLengthOffset = mFileAccess.getFilePointer();
+                    if (rate > 0) {
+                        long due = start + pass.getCopied() * 1000000000L / rate;
+                        long wait = (due - System.nanoTime()) / 1000000L;
 
-                mFileAccess.seek(srcLengthOffset + length);
+                        if (wait > 0) {
+                            Thread.sleep(wait);
+                        }
+                    }
+                }
             }
-            else if (c == HAS_TAIL) {
-                long offset = mFileAccess.getFilePointer();
-
-                mFileAccess.seek(offset);
+        } catch (InterruptedException e) {
+            synchronized (mFileAccess) {
+                pass.abort();
             }
-            else {
-                throw new RuntimeException("Lost state or bad file format");
+        } catch (IOException | RuntimeException e) {
+            // The database file is untouched. The next compaction tries again.
+            synchronized (mFileAccess) {
+                if (pass != null) {
+                    pass.abort();
+                }
             }
-
-            c = mFileAccess.readByte();
         }
+    }
 
-        fileAccess.writeByte(HAS_NOT_TAIL);
-        collectionLength++;
+    private void stopCompaction() {
+        Thread thread;
 
-        fileAccess.writeLong(0L);
-        collectionLength += 8;
+        synchronized (mFileAccess) {
+            thread = mCompactionThread;
 
-        return collectionLength;
-    }
+            mCompactionCancelled = true;
+        }
 
-    private long writeObjectToFile(RandomAccessFile fileAccess) throws IOException {
-        long objectLength = 0;
+        if (thread == null) {
+            return;
+        }
 
-        fileAccess.writeByte(OBJECT);
-        objectLength++;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        byte c = mFileAccess.readByte();
+    private void checkCompactionThreshold() {
+        float threshold = mOptions.getCompactionThreshold();
 
-        while (c != HAS_NOT_TAIL) {
-            if (c == NOT_DELETED) {
-                fileAccess.writeByte(NOT_DELETED);
-                objectLength++;
+        if (threshold == 0) {
+            return;
+        }
 
-                long keyValueLength = mFileAccess.readLong();
-                long keyValueStartOffset = mFileAccess.getFilePointer();
+        synchronized (mFileAccess) {
+            try {
+                long length = mFileAccess.length();
 
-                int keyLength = mFileAccess.readInt();
-                long valueLength = keyValueLength - 4 - keyLength;
+                if (mCompactionThread != null || length < MIN_COMPACTION_LENGTH ||
+                        mMetadata.getDeadBytes() < threshold * length) {
+                    return;
+                }
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
 
-                String key = readKey(keyLength);
+            compactInBackground();
+        }
+    }
 
-                long keyValueLengthOffset = fileAccess.getFilePointer();
-                fileAccess.writeLong(0L);
-                objectLength += 8;
+    private File getCompactFile() {
+        return new File(mFile.getPath() + ".compact");
+    }
 
-                fileAccess.writeInt(keyLength);
-                objectLength += 4;
+    /**
+     * Creates an index on the values at the given dotted key path of the members. Selections that
+     * compare the path using equalsTo, biggerThan, smallerThan, their inclusive variants or isNull
+     * are then answered from the index instead of scanning the whole collection. Indexes are kept
+     * next to the database file and are opened with it. Only the root collection can be indexed.
+     */
+    public void createIndex(String path) {
+        if (mParent != null) {
+            throw new DBUseException("Only the root collection can be indexed.");
+        }
 
-                for (char kc: key.toCharArray()) fileAccess.writeByte(kc);
-                objectLength += keyLength;
+        synchronized (mFileAccess) {
+            if (mIndexes.containsKey(path)) {
+                return;
+            }
 
-                long actualValueLength = writeValueToFile(fileAccess, valueLength);
-                objectLength += actualValueLength;
+            try {
+                FieldIndex index = new FieldIndex(getIndexFile(path), path, mOptions);
 
-                long eofOffset = fileAccess.getFilePointer();
+                buildIndex(index);
 
-                fileAccess.seek(keyValueLengthOffset);
-                fileAccess.writeLong(4 + keyLength + actualValueLength);
-                fileAccess.seek(eofOffset);
+                mIndexes.put(path, index);
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
+        }
+    }
 
-                mFileAccess.seek(keyValueStartOffset + keyValueLength);
+    public void dropIndex(String path) {
+        if (mParent != null) {
+            throw new DBUseException("Only the root collection can be indexed.");
+        }
+
+        synchronized (mFileAccess) {
+            FieldIndex index = mIndexes.remove(path);
+
+            if (index == null) {
+                return;
             }
-            else if (c == DELETED) {
-                long length = mFileAccess.readLong();
 
-                mFileAccess.seek(mFileAccess.getFilePointer() + length);
+            try {
+                index.delete();
+            } catch (IOException e) {
+                throw new DBAccessException(e);
             }
-            else if (c == HAS_TAIL) {
-                long offset = mFileAccess.readLong();
+        }
+    }
 
-                mFileAccess.seek(offset);
+    private File getIndexFile(String path) throws IOException {
+        return new File(mFile.getPath() + ".index." + URLEncoder.encode(path, "UTF-8"));
+    }
+
+    private void loadIndexes() throws IOException {
+        mIndexes = new HashMap<>();
+
+        File directory = mFile.getAbsoluteFile().getParentFile();
+        String prefix = mFile.getName() + ".index.";
+
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file: files) {
+            if (!file.getName().startsWith(prefix)) {
+                continue;
+            }
+
+            String path = URLDecoder.decode(file.getName().substring(prefix.length()), "UTF-8");
+
+            FieldIndex index = new FieldIndex(file, path, mOptions);
+
+            if (index.isValid(mFileAccess.length())) {
+                index.load();
             }
             else {
-                throw new RuntimeException("Lost state or bad file format.");
+                buildIndex(index);
             }
 
-            c = mFileAccess.readByte();
+            mIndexes.put(path, index);
         }
+    }
 
-        fileAccess.writeByte(HAS_NOT_TAIL);
-        objectLength++;
+    private void buildIndex(final FieldIndex index) throws IOException {
+        index.clear();
 
-        fileAccess.writeLong(0L);
-        objectLength += 8;
+        iterate(new Processor() {
 
-        return objectLength;
-    }
+            @Override
+            public boolean process(long i, long length) throws IOException {
+                long offset = mFileAccess.getFilePointer() - 8 - 1;
+
+                byte[] key = readIndexKey(offset, index.getPath());
 
-    private long writeStringValueToFile(RandomAccessFile fileAccess, long length) throws IOException {
-        fileAccess.writeByte(VALUE);
+                if (key != null) {
+                    index.insert(key, offset);
+                }
 
-        byte[] bytes = new byte[(int) (length - 1)];
+                return true;
+            }
 
-        mFileAccess.readFully(bytes);
+        });
+    }
 
-        fileAccess.write(bytes);
+    private byte[] readIndexKey(long offset, String path) throws IOException {
+        mFileAccess.seek(offset + 1 + 8);
 
-        return length;
+        return FieldIndex.toKey(getValueForKey(path));
     }
 
-    public long getCount() {
-        if (mType != COLLECTION) {
-            throw new DBUseException("Only collections have a count.");
+    /**
+     * Adds or removes the member of the root collection at the given offset to or from the indexes.
+     */
+    private void indexMember(long offset, boolean add) {
+        if (mIndexes.isEmpty() || offset == -1) {
+            return;
         }
 
         try {
-            if (mQueryResult != null) {
-                return mQueryResult.getCount();
+            for (FieldIndex index: mIndexes.values()) {
+                byte[] key = readIndexKey(offset, index.getPath());
+
+                if (key == null) {
+                    continue;
+                }
+
+                if (add) {
+                    index.insert(key, offset);
+                }
+                else {
+                    index.delete(key, offset);
+                }
             }
-            else {
+        } catch (IOException e) {
+            throw new DBAccessException(e);
+        }
+    }
+
+    /**
+     * @return Offset of the member of the root collection that holds this object through objects
+     * only or -1 if there is not one. Only such members are affected by a change in this object.
+     */
+    private long getMemberOffset() {
+        YashoDB db = this;
+
+        while (db.mParent != null) {
+            if (db.mParent.mStartOffset == 1) {
+                return db.mStartOffset - 1 - 8 - 1;
+            }
+
+            if (db.mParent.mType != OBJECT) {
+                return -1;
+            }
+
+            db = db.mParent;
+        }
+
+        return -1;
+    }
+
+    public char getType() {
+        return mType;
+    }
+
+    /**
+     * @return The number of bytes {@link #openInputStream()} gives for this string or blob value.
+     */
+    public long getValueLength() {
+        synchronized (mFileAccess) {
+            checkValid();
+
+            try {
+                if (mType == VALUE) {
+                    return readSmallStringBytes().length;
+                }
+
+                checkStreamable();
+
                 mFileAccess.seek(mStartOffset);
 
                 return mFileAccess.readLong();
+            } catch (IOException e) {
+                throw new DBAccessException(e);
             }
-        } catch (IOException e) {
-            throw new DBAccessException(e);
         }
     }
 
-    public DBSelection findAll() {
-        return new DBSelection(this, false);
+    /**
+     * Streams the bytes of this blob value or the UTF-8 bytes of this string value from the file
+     * without reading the whole value into memory.
+     */
+    public InputStream openInputStream() {
+        return openValueStream();
     }
 
-    public DBSelection findOne() {
-        return new DBSelection(this, true);
+    /**
+     * Same as {@link #openInputStream()} as a channel.
+     */
+    public ReadableByteChannel openChannel() {
+        return openValueStream();
+    }
+
+    /**
+     * Writes the bytes that {@link #openInputStream()} would give to the channel. Where the storage
+     * allows it the bytes go from the file to the channel without being copied through the heap.
+     *
+     * @return The number of bytes written.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long position;
+        long end;
+
+        synchronized (mFileAccess) {
+            checkValid();
+
+            if (mType == VALUE) {
+                ByteBuffer buffer = ByteBuffer.wrap(readSmallStringBytes());
+
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+
+                return buffer.capacity();
+            }
+
+            checkStreamable();
+
+            mFileAccess.seek(mStartOffset);
+
+            long length = mFileAccess.readLong();
+
+            position = mStartOffset + 8;
+            end = position + length;
+        }
+
+        long transferred = 0;
+
+        // Locking step by step so a slow channel does not hold the database.
+        while (position + transferred < end) {
+            long count = Math.min(TRANSFER_STEP, end - position - transferred);
+            long sent;
+
+            synchronized (mFileAccess) {
+                checkValid();
+
+                sent = mFileAccess.getStorage().transferTo(position + transferred, count, target);
+            }
+
+            transferred += sent;
+
+            if (sent < count) {
+                break;
+            }
+        }
+
+        return transferred;
+    }
+
+    private ValueInputStream openValueStream() {
+        synchronized (mFileAccess) {
+            checkValid();
+
+            try {
+                if (mType == VALUE) {
+                    return new ValueInputStream(readSmallStringBytes());
+                }
+
+                checkStreamable();
+
+                mFileAccess.seek(mStartOffset);
+
+                long length = mFileAccess.readLong();
+
+                return new ValueInputStream(mFileAccess, mMetadata, mStartOffset + 8, mStartOffset + 8 + length);
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
+        }
+    }
+
+    private byte[] readSmallStringBytes() throws IOException {
+        mFileAccess.seek(mStartOffset);
+
+        return mFileAccess.readUTF().getBytes("UTF-8");
+    }
+
+    private void checkStreamable() {
+        if (mType != STRING && mType != BLOB) {
+            throw new DBUseException("DB type is not a string or a blob.");
+        }
+    }
+
+    public void writeToFile(final File file) throws IOException {
+        if (mType != COLLECTION) {
+            throw new IllegalStateException("Only collections can be exported.");
+        }
+
+        synchronized (mFileAccess) {
+            checkValid();
+
+            final FileAccess fileAccess =
+                    new FileAccess(new PageCache(new FileStorage(file, "rw"), mOptions, false));
+
+            fileAccess.writeByte(COLLECTION);
+            fileAccess.writeLong(getCount());
+
+            iterate(new Processor() {
+
+                @Override
+                public boolean process(long index, long length) throws IOException {
+                    fileAccess.writeByte(NOT_DELETED);
+
+                    long lengthOffset = fileAccess.getFilePointer();
+                    fileAccess.writeLong(0);
+
+                    long valueLength = writeValueToFile(fileAccess, length);
+
+                    long eofOffset = fileAccess.getFilePointer();
+
+                    fileAccess.seek(lengthOffset);
+                    fileAccess.writeLong(valueLength);
+
+                    fileAccess.seek(eofOffset);
+
+                    return true;
+                }
+
+            });
+
+            fileAccess.writeByte(HAS_NOT_TAIL);
+            fileAccess.writeLong(0L);
+
+            fileAccess.close();
+        }
+    }
+
+    private long writeValueToFile(FileAccess fileAccess, long length) throws IOException {
+        byte type = mFileAccess.readByte();
+
+        switch (type) {
+            case COLLECTION:
+                return writeCollectionToFile(fileAccess);
+            case OBJECT:
+                return writeObjectToFile(fileAccess);
+            case VALUE:
+            case INTEGER:
+            case LONG:
+            case DOUBLE:
+            case BOOLEAN:
+            case STRING:
+            case BLOB:
+                return writeScalarValueToFile(fileAccess, type, length);
+            case NULL:
+                fileAccess.writeByte(NULL);
+                return 1L;
+            default:
+                throw new RuntimeException("State lost or bad file format.");
+        }
+    }
+
+    private long writeCollectionToFile(FileAccess fileAccess) throws IOException {
+        long collectionLength = 0;
+
+        fileAccess.writeByte(COLLECTION);
+        collectionLength++;
+
+        mFileAccess.readLong();
+
+        long countOffset = fileAccess.getFilePointer();
+        fileAccess.writeLong(0L);
+        collectionLength += 8;
+
+        long count = 0;
+
+        byte c = mFileAccess.readByte();
+
+        while (c != HAS_NOT_TAIL) {
+            if (c == NOT_DELETED) {
+                fileAccess.writeByte(NOT_DELETED);
+                collectionLength++;
+
+                long length = mFileAccess.readLong();
+                long srcLengthOffset = mFileAccess.getFilePointer();
+
+                long lengthOffset = fileAccess.getFilePointer();
+                fileAccess.writeLong(0L);
+                collectionLength += 8;
+
+                long valueLength = writeValueToFile(fileAccess, length);
+                collectionLength += valueLength;
+
+                fileAccess.seek(lengthOffset);
+                fileAccess.writeLong(valueLength);
+                fileAccess.seek(fileAccess.getFilePointer() + valueLength);
+
+                mFileAccess.seek(srcLengthOffset + length);
+
+                count++;
+            }
+            else if (c == DELETED) {
+                long length = mFileAccess.readLong();
+                long srcLengthOffset = mFileAccess.getFilePointer();
+
+                mFileAccess.seek(srcLengthOffset + length);
+            }
+            else if (c == HAS_TAIL) {
+                long offset = mFileAccess.readLong();
+
+                mFileAccess.seek(offset);
+            }
+            else {
+                throw new RuntimeException("Lost state or bad file format");
+            }
+
+            c = mFileAccess.readByte();
+        }
+
+        fileAccess.writeByte(HAS_NOT_TAIL);
+        collectionLength++;
+
+        fileAccess.writeLong(0L);
+        collectionLength += 8;
+
+        // Counts are not always kept up to date by removes through query results.
+        long endOffset = fileAccess.getFilePointer();
+
+        fileAccess.seek(countOffset);
+        fileAccess.writeLong(count);
+        fileAccess.seek(endOffset);
+
+        return collectionLength;
     }
 
-    QueryResult newQueryResult(Filter filter) {
-        QueryResult queryResult = new QueryResult(mFile, filter);
+    private long writeObjectToFile(FileAccess fileAccess) throws IOException {
+        long objectLength = 0;
+
+        fileAccess.writeByte(OBJECT);
+        objectLength++;
+
+        byte c = mFileAccess.readByte();
+
+        while (c != HAS_NOT_TAIL) {
+            if (c == NOT_DELETED) {
+                fileAccess.writeByte(NOT_DELETED);
+                objectLength++;
+
+                long keyValueLength = mFileAccess.readLong();
+                long keyValueStartOffset = mFileAccess.getFilePointer();
+
+                int keyLength = mFileAccess.readInt();
+                long valueLength = keyValueLength - 4 - keyLength;
+
+                String key = readKey(keyLength);
+
+                long keyValueLengthOffset = fileAccess.getFilePointer();
+                fileAccess.writeLong(0L);
+                objectLength += 8;
+
+                fileAccess.writeInt(keyLength);
+                objectLength += 4;
+
+                for (char kc: key.toCharArray()) fileAccess.writeByte(kc);
+                objectLength += keyLength;
+
+                long actualValueLength = writeValueToFile(fileAccess, valueLength);
+                objectLength += actualValueLength;
+
+                long eofOffset = fileAccess.getFilePointer();
+
+                fileAccess.seek(keyValueLengthOffset);
+                fileAccess.writeLong(4 + keyLength + actualValueLength);
+                fileAccess.seek(eofOffset);
+
+                mFileAccess.seek(keyValueStartOffset + keyValueLength);
+            }
+            else if (c == DELETED) {
+                long length = mFileAccess.readLong();
+
+                mFileAccess.seek(mFileAccess.getFilePointer() + length);
+            }
+            else if (c == HAS_TAIL) {
+                long offset = mFileAccess.readLong();
+
+                mFileAccess.seek(offset);
+            }
+            else {
+                throw new RuntimeException("Lost state or bad file format.");
+            }
+
+            c = mFileAccess.readByte();
+        }
+
+        fileAccess.writeByte(HAS_NOT_TAIL);
+        objectLength++;
+
+        fileAccess.writeLong(0L);
+        objectLength += 8;
+
+        return objectLength;
+    }
+
+    private long writeScalarValueToFile(FileAccess fileAccess, byte type, long length) throws IOException {
+        fileAccess.writeByte(type);
+
+        byte[] buffer = new byte[(int) Math.min(length - 1, COPY_BUFFER_SIZE)];
+
+        long remaining = length - 1;
+
+        while (remaining > 0) {
+            int count = (int) Math.min(remaining, buffer.length);
+
+            mFileAccess.readFully(buffer, 0, count);
+            fileAccess.write(buffer, 0, count);
+
+            remaining -= count;
+        }
+
+        return length;
+    }
+
+    /**
+     * Copies the live members of the root collection to the compaction file. The copy can be made
+     * in steps with the lock released in between. Members that are inserted meanwhile are picked up
+     * by the following steps. If members that may have been copied already change the pass is
+     * outdated and has to start over.
+     */
+    private class CompactionPass {
+
+        private File mTargetFile;
+        private FileAccess mTarget;
+
+        // Offset of the next record of the root collection to copy.
+        private long mCursor;
+
+        private long mChangeCount;
+
+        private PositionIndex mPositionIndex = new PositionIndex();
+
+        CompactionPass() throws IOException {
+            mTargetFile = getCompactFile();
+
+            if (mTargetFile.exists() && !mTargetFile.delete()) {
+                throw new IOException("Failed to remove '" + mTargetFile + "'.");
+            }
+
+            mTarget = new FileAccess(new PageCache(new FileStorage(mTargetFile, "rw"), mOptions, false));
+
+            mTarget.writeByte(COLLECTION);
+            mTarget.writeLong(0L);
+
+            mCursor = mStartOffset + 8;
+
+            mChangeCount = mMetadata.getChangeCount();
+        }
+
+        long getCopied() {
+            return mTarget.getFilePointer();
+        }
+
+        boolean isOutdated() {
+            return mMetadata.getChangeCount() != mChangeCount;
+        }
+
+        /**
+         * @return true if the end of the root collection has been reached.
+         */
+        boolean step(long maxBytes) throws IOException {
+            long start = mTarget.getFilePointer();
+
+            mFileAccess.seek(mCursor);
+
+            while (mTarget.getFilePointer() - start < maxBytes) {
+                long recordOffset = mFileAccess.getFilePointer();
+
+                byte c = mFileAccess.readByte();
+
+                if (c == HAS_NOT_TAIL) {
+                    mCursor = recordOffset;
+                    return true;
+                }
+
+                if (c == HAS_TAIL) {
+                    mFileAccess.seek(mFileAccess.readLong());
+                    continue;
+                }
+
+                long length = mFileAccess.readLong();
+                long valueOffset = mFileAccess.getFilePointer();
+
+                if (c == NOT_DELETED) {
+                    mPositionIndex.add(mTarget.getFilePointer());
+
+                    mTarget.writeByte(NOT_DELETED);
+
+                    long lengthOffset = mTarget.getFilePointer();
+                    mTarget.writeLong(0L);
+
+                    long valueLength = writeValueToFile(mTarget, length);
+
+                    long endOffset = mTarget.getFilePointer();
+
+                    mTarget.seek(lengthOffset);
+                    mTarget.writeLong(valueLength);
+                    mTarget.seek(endOffset);
+                }
+                else if (c != DELETED) {
+                    throw new IllegalStateException("State is lost or bad file format.");
+                }
+
+                mFileAccess.seek(valueOffset + length);
+            }
+
+            mCursor = mFileAccess.getFilePointer();
+
+            return false;
+        }
+
+        /**
+         * Copies what is left and puts the copy in place of the database file.
+         */
+        void finish() throws IOException {
+            try {
+                step(Long.MAX_VALUE);
+
+                long tailOffset = mTarget.getFilePointer();
+
+                mTarget.writeByte(HAS_NOT_TAIL);
+                mTarget.writeLong(0L);
+
+                mTarget.seek(mStartOffset);
+                mTarget.writeLong(mPositionIndex.getCount());
+
+                mTarget.getStorage().sync();
+                mTarget.close();
+
+                Storage storage = mFileAccess.getStorage();
+
+                // Nothing of the old file may be left only in the cache or the log.
+                storage.checkpoint();
+
+                if (!mTargetFile.renameTo(mFile)) {
+                    throw new IOException("Failed to replace '" + mFile + "' with '" + mTargetFile + "'.");
+                }
+
+                storage.reopen(mFile);
+
+                mMetadata.moved();
+                mMetadata.setTail(mStartOffset, tailOffset);
+                mMetadata.setPositionIndex(mStartOffset, mPositionIndex);
+
+                mGeneration = mMetadata.getGeneration();
+                mLength = mFileAccess.length() - 1;
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+
+            for (FieldIndex index: mIndexes.values()) {
+                buildIndex(index);
+            }
+
+            if (mQueryCache != null) {
+                // Every member has moved.
+                mQueryCache.clear();
+            }
+        }
+
+        void abort() {
+            try {
+                mTarget.close();
+            } catch (IOException e) { }
+
+            mTargetFile.delete();
+        }
+
+    }
+
+    public long getCount() {
+        if (mType != COLLECTION) {
+            throw new DBUseException("Only collections have a count.");
+        }
+
+        synchronized (mFileAccess) {
+            checkValid();
+
+            try {
+                if (mQueryResult != null) {
+                    return mQueryResult.getCount();
+                }
+                else {
+                    mFileAccess.seek(mStartOffset);
+
+                    return mFileAccess.readLong();
+                }
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
+        }
+    }
+
+    public DBSelection findAll() {
+        return new DBSelection(this, false);
+    }
+
+    public DBSelection findOne() {
+        return new DBSelection(this, true);
+    }
+
+    QueryResult newQueryResult(Filter filter) {
+        return new QueryResult(mFile, mOptions.getQuerySpillThreshold(), filter);
+    }
+
+    QueryAggregator newAggregator(String[] groupNames, String[] groupPaths, String[] names, int[] functions, String[] paths) {
+        return new QueryAggregator(mFile, groupNames, groupPaths, names, functions, paths, mOptions.getSortThreshold());
+    }
+
+    /**
+     * @param paths Dotted key paths to order the members by or null to keep their order.
+     * @return The members that pass the filter. Copied out of the query cache if the selection is
+     * in it, and kept in it otherwise.
+     */
+    QueryResult select(Filter filter, long skip, long limit, String[] paths, boolean[] descending) {
+        if (mQueryCache == null || mStartOffset != 1 || mQueryResult != null || filter == null) {
+            return selectUncached(filter, skip, limit, paths, descending);
+        }
+
+        String key = QueryCache.getKey(filter, skip, limit, paths, descending);
+
+        // Held throughout so that no change comes between the scan and caching its result.
+        synchronized (mFileAccess) {
+            checkValid();
+
+            try {
+                QueryResult cached = mQueryCache.get(key);
+
+                if (cached != null) {
+                    QueryResult queryResult = newQueryResult(filter);
+
+                    cached.copyTo(queryResult);
+
+                    return queryResult;
+                }
+
+                QueryResult queryResult = selectUncached(filter, skip, limit, paths, descending);
+
+                Filter cachedFilter = filter.copy();
+
+                cached = newQueryResult(cachedFilter);
+
+                queryResult.copyTo(cached);
+
+                mQueryCache.put(key, cachedFilter, skip, limit, paths != null, cached);
+
+                return queryResult;
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
+        }
+    }
+
+    private QueryResult selectUncached(Filter filter, long skip, long limit, String[] paths, boolean[] descending) {
+        if (paths != null) {
+            return selectOrdered(filter, paths, descending, skip, limit);
+        }
+
+        final QueryResult queryResult = newQueryResult(filter);
+
+        applyFilter(filter, skip, limit, new Filter.Observer() {
+
+            @Override
+            public void accepted(long position) throws IOException {
+                queryResult.add(position);
+            }
+
+        });
+
+        return queryResult;
+    }
+
+    /**
+     * Applies the filter of a query and reports the accepted members to the observer in their order.
+     * Scans big collections in parallel if scan threads are enabled.
+     *
+     * @param skip Number of accepted members to leave out first.
+     * @param limit Most members to report. The scan stops once they are found.
+     */
+    void applyFilter(Filter filter, long skip, long limit, Filter.Observer observer) {
+        if (mScanExecutor != null && mType == COLLECTION) {
+            synchronized (mFileAccess) {
+                checkValid();
+
+                try {
+                    if (applyFilterInParallel(filter, skip, limit, observer)) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    throw new DBAccessException(e);
+                }
+            }
+        }
+
+        if (skip > 0 || limit < Long.MAX_VALUE) {
+            filter = new Filter.LimitFilter(filter, skip, limit);
+        }
+
+        filter.setObserver(observer);
+
+        applyFilter(filter);
+    }
+
+    /**
+     * Counts the members that pass the filter without keeping their positions. The count of the
+     * same selection in the query cache is used if there is one. A comparison on an indexed path is
+     * counted from the index alone when the index can tell it exactly. Every member passes if
+     * there is no filter.
+     *
+     * @param skip Number of passing members to leave out first.
+     * @param limit Most members to count. The scan stops once they are found.
+     */
+    long count(Filter filter, long skip, long limit) {
+        if (mType != COLLECTION) {
+            throw new DBUseException("Filter can only be applied on a collection.");
+        }
+
+        synchronized (mFileAccess) {
+            checkValid();
+
+            long count;
+
+            try {
+                if (mQueryCache != null && filter != null && mStartOffset == 1 && mQueryResult == null) {
+                    QueryResult cached = mQueryCache.get(QueryCache.getKey(filter, skip, limit, null, null));
+
+                    if (cached != null) {
+                        return cached.getCount();
+                    }
+                }
+
+                count = filter == null ? getCount() : countIndexed(filter);
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
+
+            if (count != -1) {
+                return Math.max(0, Math.min(count - skip, limit));
+            }
+
+            final long[] counted = new long[1];
+
+            applyFilter(filter, skip, limit, new Filter.Observer() {
+
+                @Override
+                public void accepted(long position) {
+                    counted[0]++;
+                }
+
+            });
+
+            return counted[0];
+        }
+    }
+
+    /**
+     * @return The number of members that pass the filter as told by an index or -1 if no index
+     * can tell it exactly.
+     */
+    private long countIndexed(Filter filter) throws IOException {
+        if (mStartOffset != 1 || mQueryResult != null || !(filter instanceof Filter.ComparisonFilter)) {
+            return -1;
+        }
+
+        Filter.ComparisonFilter comparisonFilter = (Filter.ComparisonFilter) filter;
+
+        FieldIndex index = mIndexes.get(comparisonFilter.getKey());
+
+        return index == null ? -1 : index.count(comparisonFilter.getValue(), comparisonFilter.getOperand());
+    }
+
+    void applyFilter(final Filter filter) {
+        if (mType != COLLECTION) {
+            throw new DBUseException("Filter can only be applied on a collection.");
+        }
+
+        synchronized (mFileAccess) {
+            checkValid();
+
+            final KeyPaths keyPaths = getKeyPaths(filter);
+
+            try {
+                long[] candidates = selectCandidates(filter);
+
+                if (candidates != null) {
+                    applyFilterOnCandidates(filter, keyPaths, candidates);
+                    return;
+                }
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
+
+            iterate(new Processor() {
+
+                @Override
+                public boolean process(long index, long length) throws IOException {
+                    if (!filter.onNewMember()) {
+                        return false;
+                    }
+
+                    long position = mFileAccess.getFilePointer() - 8 - 1;
+
+                    applyFilterOnMember(filter, keyPaths);
+
+                    filter.onMemberReviewed(position);
+
+                    return true;
+                }
+
+            });
+        }
+    }
+
+    /**
+     * Applies the filter and orders the accepted members by their values for the paths. If only
+     * the first members are wanted and they fit the sort threshold, just those are kept during the
+     * scan. An index on the only path is walked in its order instead of scanning if every member is
+     * in it and no index helps with the filter.
+     */
+    QueryResult selectOrdered(Filter filter, final String[] paths, boolean[] descending, long skip, long limit) {
+        long needed = skip + limit < 0 ? Long.MAX_VALUE : skip + limit;
+
+        if (needed > mOptions.getSortThreshold()) {
+            final QueryResult queryResult = newQueryResult(filter);
+
+            applyFilter(filter, 0, Long.MAX_VALUE, new Filter.Observer() {
+
+                @Override
+                public void accepted(long position) throws IOException {
+                    queryResult.add(position);
+                }
+
+            });
+
+            return sort(queryResult, filter, paths, descending, skip, limit);
+        }
+
+        synchronized (mFileAccess) {
+            checkValid();
+
+            final QuerySorter sorter = new QuerySorter(mFile, descending, mOptions.getSortThreshold(), needed);
+
+            final KeyPaths sortKeyPaths = new KeyPaths(Arrays.asList(paths));
+
+            QueryResult top = newQueryResult(filter);
+
+            try {
+                FieldIndex index = paths.length == 1 ? mIndexes.get(paths[0]) : null;
+
+                if (index != null && mStartOffset == 1 && mQueryResult == null &&
+                        selectCandidates(filter) == null && index.getEntryCount() == getCount()) {
+                    selectInIndexOrder(filter, index, descending[0], sorter, sortKeyPaths, paths);
+                }
+                else {
+                    // Reading the member moves the file pointer which the scan puts back.
+                    applyFilter(filter, 0, Long.MAX_VALUE, new Filter.Observer() {
+
+                        @Override
+                        public void accepted(long position) throws IOException {
+                            mFileAccess.seek(position + 1 + 8);
+
+                            sorter.add(readSortValues(sortKeyPaths, paths), position);
+                        }
+
+                    });
+                }
+
+                sorter.finish(top, skip, limit);
+
+                return top;
+            } catch (IOException e) {
+                sorter.close();
+
+                throw new DBAccessException(e);
+            }
+        }
+    }
+
+    /**
+     * Goes through the members in the order of the index on the sort path. Stops once the sorter
+     * has as many members as wanted and the key changes, since the members after that come later
+     * in the order.
+     */
+    private void selectInIndexOrder(Filter filter, FieldIndex index, boolean descending, QuerySorter sorter,
+                                    KeyPaths sortKeyPaths, String[] paths) throws IOException {
+        filter.setObserver(null);
+
+        KeyPaths keyPaths = getKeyPaths(filter);
+
+        FieldIndex.Walk indexWalk = index.walk(descending);
+
+        byte[] key = null;
+
+        while (indexWalk.next()) {
+            if (key == null || !indexWalk.hasKey(key)) {
+                if (sorter.isFull()) {
+                    return;
+                }
+
+                key = indexWalk.getKey();
+            }
+
+            long offset = indexWalk.getOffset();
+
+            mFileAccess.seek(offset);
+
+            if (mFileAccess.readByte() != NOT_DELETED) {
+                continue;
+            }
+
+            mFileAccess.readLong();
+
+            if (!filter.onNewMember()) {
+                return;
+            }
+
+            applyFilterOnMember(filter, keyPaths);
+
+            if (filter.onMemberReviewed(offset)) {
+                mFileAccess.seek(offset + 1 + 8);
+
+                // Members of the root collection are in the order of their offsets.
+                sorter.add(readSortValues(sortKeyPaths, paths), offset, offset);
+            }
+        }
+    }
+
+    /**
+     * @return A result with the members of the query result in the order of their values for the
+     * paths, without the first skip of them and with at most limit of them. The given result is
+     * closed.
+     */
+    private QueryResult sort(QueryResult queryResult, Filter filter, String[] paths, boolean[] descending, long skip, long limit) {
+        synchronized (mFileAccess) {
+            checkValid();
+
+            QuerySorter sorter = new QuerySorter(mFile, descending, mOptions.getSortThreshold());
+
+            QueryResult sorted = newQueryResult(filter);
+
+            try {
+                KeyPaths keyPaths = new KeyPaths(Arrays.asList(paths));
+
+                long recordCount = queryResult.getRecordCount();
+
+                for (long i = 0; i < recordCount; i++) {
+                    long offset = queryResult.get(i);
+
+                    mFileAccess.seek(offset);
+
+                    if (mFileAccess.readByte() != NOT_DELETED) {
+                        continue;
+                    }
+
+                    mFileAccess.readLong();
+
+                    sorter.add(readSortValues(keyPaths, paths), offset);
+                }
+
+                sorter.finish(sorted, skip, limit);
+
+                queryResult.close();
+
+                return sorted;
+            } catch (IOException e) {
+                sorter.close();
+
+                throw new DBAccessException(e);
+            }
+        }
+    }
+
+    /**
+     * @return The values of the paths in the member at the file pointer as they are compared when
+     * sorting.
+     */
+    private Object[] readSortValues(KeyPaths keyPaths, String[] paths) throws IOException {
+        keyPaths.clearValues(KEY_NOT_FOUND);
+
+        readKeyPaths(keyPaths, keyPaths.getRoot());
+
+        Object[] values = new Object[paths.length];
+
+        for (int i = 0; i < paths.length; i++) {
+            Object value = keyPaths.getValue(paths[i]);
+
+            values[i] = value == KEY_NOT_FOUND ? null : QuerySorter.toSortValue(value);
+        }
+
+        return values;
+    }
+
+    /**
+     * Applies the filter and hands the values of the aggregator's paths in each accepted member to
+     * it as they are read from the file, without making objects of the members. Every member is
+     * aggregated if there is no filter.
+     *
+     * @return The rows of the aggregator.
+     */
+    YashAN aggregate(Filter filter, final long skip, final long limit, final QueryAggregator aggregator) {
+        if (mType != COLLECTION) {
+            throw new DBUseException("Aggregation can only be applied on a collection.");
+        }
+
+        final String[] paths = aggregator.getPaths();
+
+        final KeyPaths keyPaths = new KeyPaths(Arrays.asList(paths));
+
+        synchronized (mFileAccess) {
+            checkValid();
+
+            try {
+                if (filter != null) {
+                    // Reading the member moves the file pointer which the scan puts back.
+                    applyFilter(filter, skip, limit, new Filter.Observer() {
+
+                        @Override
+                        public void accepted(long position) throws IOException {
+                            mFileAccess.seek(position + 1 + 8);
+
+                            aggregator.add(readAggregatedValues(keyPaths, paths));
+                        }
+
+                    });
+                }
+                else {
+                    iterate(new Processor() {
+
+                        @Override
+                        public boolean process(long index, long length) throws IOException {
+                            if (index <= skip) {
+                                return true;
+                            }
+
+                            if (index - skip > limit) {
+                                return false;
+                            }
+
+                            aggregator.add(readAggregatedValues(keyPaths, paths));
+
+                            return true;
+                        }
+
+                    });
+                }
+
+                final YashAN rows = new YashAN();
+
+                aggregator.finish(new QueryAggregator.Output() {
+
+                    @Override
+                    public void add(YashON row) {
+                        rows.put(row);
+                    }
+
+                });
+
+                return rows;
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            } finally {
+                aggregator.close();
+            }
+        }
+    }
+
+    private Object[] readAggregatedValues(KeyPaths keyPaths, String[] paths) throws IOException {
+        // Counting needs nothing from the member.
+        return paths.length == 0 ? new Object[0] : readSortValues(keyPaths, paths);
+    }
+
+    /**
+     * @return Offsets of the members that may pass the filter according to an index or null if no
+     * index can help with the filter.
+     */
+    private long[] selectCandidates(Filter filter) throws IOException {
+        if (mStartOffset != 1 || mQueryResult != null || mIndexes.isEmpty()) {
+            return null;
+        }
+
+        if (filter instanceof Filter.OnlyOneFilter) {
+            filter = ((Filter.OnlyOneFilter) filter).getFilter();
+        }
+        else if (filter instanceof Filter.LimitFilter) {
+            filter = ((Filter.LimitFilter) filter).getFilter();
+        }
+
+        return selectIndexedCandidates(filter);
+    }
+
+    private long[] selectIndexedCandidates(Filter filter) throws IOException {
+        if (filter instanceof Filter.ComparisonFilter) {
+            Filter.ComparisonFilter comparisonFilter = (Filter.ComparisonFilter) filter;
+
+            FieldIndex index = mIndexes.get(comparisonFilter.getKey());
+
+            return index == null ? null : index.select(comparisonFilter.getValue(), comparisonFilter.getOperand());
+        }
+
+        if (filter instanceof Filter.NullFilter) {
+            FieldIndex index = mIndexes.get(((Filter.NullFilter) filter).getKey());
+
+            return index == null ? null : index.selectNull();
+        }
+
+        if (filter instanceof Filter.AndFilter) {
+            long[] candidates = null;
+
+            // The fewest candidates of any of the filters.
+            for (Filter child: ((Filter.AndFilter) filter).getFilters()) {
+                long[] childCandidates = selectIndexedCandidates(child);
+
+                if (childCandidates != null && (candidates == null || childCandidates.length < candidates.length)) {
+                    candidates = childCandidates;
+                }
+            }
+
+            return candidates;
+        }
+
+        if (filter instanceof Filter.OrFilter) {
+            long[] candidates = new long[0];
+
+            // Only if every filter can be answered by an index.
+            for (Filter child: ((Filter.OrFilter) filter).getFilters()) {
+                long[] childCandidates = selectIndexedCandidates(child);
+
+                if (childCandidates == null) {
+                    return null;
+                }
+
+                candidates = union(candidates, childCandidates);
+            }
+
+            return candidates;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Offsets that are in either of the sorted arrays, sorted.
+     */
+    private static long[] union(long[] offsets1, long[] offsets2) {
+        long[] union = new long[offsets1.length + offsets2.length];
+
+        int i1 = 0;
+        int i2 = 0;
+        int size = 0;
+
+        while (i1 < offsets1.length || i2 < offsets2.length) {
+            long offset;
+
+            if (i2 == offsets2.length || (i1 < offsets1.length && offsets1[i1] < offsets2[i2])) {
+                offset = offsets1[i1++];
+            }
+            else if (i1 == offsets1.length || offsets2[i2] < offsets1[i1]) {
+                offset = offsets2[i2++];
+            }
+            else {
+                offset = offsets1[i1++];
+                i2++;
+            }
+
+            union[size++] = offset;
+        }
+
+        return size == union.length ? union : Arrays.copyOf(union, size);
+    }
+
+    /**
+     * Splits the members into ranges that scan tasks filter at the same time, each through its own
+     * cache over the database file and the dirty pages of the database cache. The lock is held
+     * until all tasks are done so that neither of them changes under the tasks. The accepted
+     * members are reported once the tasks are done since reporting them may use the database
+     * cache.
+     *
+     * @return false if there are too few members to be worth it.
+     */
+    private boolean applyFilterInParallel(Filter filter, long skip, long limit, Filter.Observer observer) throws IOException {
+        long[] candidates = selectCandidates(filter);
+
+        PositionIndex positionIndex = candidates == null && mQueryResult == null ? getPositionIndex() : null;
+
+        long count = candidates != null ? candidates.length :
+                (mQueryResult != null ? mQueryResult.getRecordCount() : positionIndex.getCount());
+
+        if (count < 2 * MIN_SCAN_RANGE) {
+            return false;
+        }
+
+        int maxRanges = mOptions.getScanThreads() * SCAN_RANGES_PER_THREAD;
+
+        long rangeSize = Math.max(MIN_SCAN_RANGE, (count + maxRanges - 1) / maxRanges);
+
+        Storage storage = mFileAccess.getStorage();
+
+        // Any one range with this many accepted members is enough.
+        long needed = skip + limit < 0 ? Long.MAX_VALUE : skip + limit;
+
+        ScanState state = new ScanState(storage.getUnflushedPages(), storage.length(), filter, needed,
+                candidates, positionIndex);
+
+        List<Future<long[]>> results = new ArrayList<>();
+
+        for (long start = 0; start < count; start += rangeSize) {
+            ScanTask task = new ScanTask(state, results.size(), start, Math.min(start + rangeSize, count));
+
+            results.add(mScanExecutor.submit(task));
+        }
+
+        Throwable error = null;
+
+        List<long[]> acceptedRanges = new ArrayList<>(results.size());
+
+        long skipped = 0;
+        long passed = 0;
+
+        // Every task is waited for before the lock is let go.
+        for (int range = 0; range < results.size(); range++) {
+            try {
+                long[] accepted = results.get(range).get();
+
+                if (error != null) {
+                    continue;
+                }
+
+                int from = 1 + (int) Math.min(skip - skipped, accepted.length - 1);
+
+                skipped += from - 1;
+
+                int to = from + (int) Math.min(accepted.length - from, limit - passed);
+
+                if (from < to) {
+                    acceptedRanges.add(Arrays.copyOfRange(accepted, from, to));
+
+                    passed += to - from;
+                }
+
+                if (passed == limit && state.filledRange.get() > range) {
+                    state.filledRange.set(range);
+                }
+            } catch (InterruptedException e) {
+                state.filledRange.set(-1);
+
+                Thread.currentThread().interrupt();
+
+                error = new InterruptedIOException("Interrupted while scanning.");
+            } catch (ExecutionException e) {
+                state.filledRange.set(-1);
+
+                error = e.getCause();
+            }
+        }
+
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        else if (error instanceof Error) {
+            throw (Error) error;
+        }
+
+        for (long[] accepted: acceptedRanges) {
+            for (long offset: accepted) {
+                observer.accepted(offset);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Filters the members of the range through the file access of this reader.
+     *
+     * @return The number of accepted members followed by their offsets.
+     */
+    private long[] scanRange(ScanState state, int range, long start, long end) throws IOException {
+        Filter filter = state.filter.copy();
+
+        KeyPaths keyPaths = getKeyPaths(filter);
+
+        long[] accepted = new long[16];
+        int size = 1;
+
+        long offset = -1;
+
+        if (state.positionIndex != null) {
+            mFileAccess.seek(state.positionIndex.get(start));
+        }
+
+        for (long index = start; index < end; index++) {
+            if (state.filledRange.get() < range) {
+                break;
+            }
+
+            if (state.candidates != null || mQueryResult != null) {
+                offset = state.candidates != null ? state.candidates[(int) index] : mQueryResult.get(index);
+
+                mFileAccess.seek(offset);
+
+                if (mFileAccess.readByte() != NOT_DELETED) {
+                    continue;
+                }
+            }
+            else {
+                byte c = mFileAccess.readByte();
+
+                while (c != NOT_DELETED) {
+                    if (c == DELETED) {
+                        long length = mFileAccess.readLong();
+
+                        mFileAccess.seek(mFileAccess.getFilePointer() + length);
+                    }
+                    else if (c == HAS_TAIL) {
+                        long tailOffset = mFileAccess.readLong();
+
+                        mFileAccess.seek(tailOffset);
+                    }
+                    else {
+                        throw new DBFormatException();
+                    }
+
+                    c = mFileAccess.readByte();
+                }
+
+                offset = mFileAccess.getFilePointer() - 1;
+            }
+
+            long length = mFileAccess.readLong();
+
+            filter.onNewMember();
+
+            applyFilterOnMember(filter, keyPaths);
+
+            if (filter.onMemberReviewed(offset)) {
+                if (size == accepted.length) {
+                    accepted = Arrays.copyOf(accepted, size * 2);
+                }
+
+                accepted[size++] = offset;
+
+                if (size - 1 == state.needed) {
+                    int filled = state.filledRange.get();
+
+                    while (range < filled && !state.filledRange.compareAndSet(filled, range)) {
+                        filled = state.filledRange.get();
+                    }
+
+                    break;
+                }
+            }
+
+            mFileAccess.seek(offset + 1 + 8 + length);
+        }
+
+        accepted[0] = size - 1;
+
+        return Arrays.copyOf(accepted, size);
+    }
+
+    private void applyFilterOnCandidates(Filter filter, KeyPaths keyPaths, long[] candidates) throws IOException {
+        for (long offset: candidates) {
+            mFileAccess.seek(offset);
+
+            if (mFileAccess.readByte() != NOT_DELETED) {
+                continue;
+            }
+
+            mFileAccess.readLong();
+
+            if (!filter.onNewMember()) {
+                return;
+            }
+
+            applyFilterOnMember(filter, keyPaths);
+
+            filter.onMemberReviewed(offset);
+        }
+    }
+
+    private KeyPaths getKeyPaths(Filter filter) {
+        KeyPaths keyPaths = mKeyPaths.get(filter);
+
+        if (keyPaths == null) {
+            List<String> keys = new ArrayList<>();
+
+            filter.collectKeys(keys);
 
-//        registerQueryResult(queryResult);
+            keyPaths = new KeyPaths(keys);
 
-        return queryResult;
+            mKeyPaths.put(filter, keyPaths);
+        }
+
+        return keyPaths;
     }
 
-    // TODO This would have been done to notify changes to query results.
-//    private void registerQueryResult(QueryResult queryResult) {
-//        if (mParent == null) {
-//            mQueryResults.add(new WeakReference<>(queryResult));
-//        }
-//        else {
-//            mParent.registerQueryResult(queryResult);
-//        }
-//    }
+    /**
+     * Reads all the key paths of the filter in one walk over the member. Key directories are left
+     * for single lookups since building one costs more than a walk over the member it is for.
+     */
+    private void applyFilterOnMember(Filter filter, KeyPaths keyPaths) throws IOException {
+        keyPaths.clearValues(KEY_NOT_FOUND);
 
-    void applyFilter(final Filter filter) {
-        if (mType != COLLECTION) {
-            throw new DBUseException("Filter can only be applied on a collection.");
+        readKeyPaths(keyPaths, keyPaths.getRoot());
+
+        String key = filter.consider(null, null);
+
+        while (key != null) {
+            key = filter.consider(key, keyPaths.getValue(key));
         }
+    }
 
-        iterate(new Processor() {
+    /**
+     * Reads the values of the paths under the node from the value at the file pointer in a single
+     * walk over its keys.
+     */
+    private void readKeyPaths(KeyPaths keyPaths, KeyPaths.Node node) throws IOException {
+        if (mFileAccess.readByte() != OBJECT) {
+            return;
+        }
 
-            @Override
-            public boolean process(long index, long length) throws IOException {
-                if (!filter.onNewMember()) {
-                    return false;
-                }
+        int remaining = node.getChildCount();
 
-                long position = mFileAccess.getFilePointer() - 8 - 1;
+        byte c = mFileAccess.readByte();
 
-                applyFilterOnMember(filter);
+        while (c != HAS_NOT_TAIL && remaining > 0) {
+            if (c == HAS_TAIL) {
+                long offset = mFileAccess.readLong();
 
-                filter.onMemberReviewed(position);
+                mFileAccess.seek(offset);
+            }
+            else if (c == DELETED) {
+                long length = mFileAccess.readLong();
 
-                return true;
+                mFileAccess.seek(mFileAccess.getFilePointer() + length);
             }
+            else if (c == NOT_DELETED) {
+                long keyValueLength = mFileAccess.readLong();
+                int keyLength = mFileAccess.readInt();
 
-        });
-    }
+                long valueLength = keyValueLength - keyLength - 4;
 
-    private void applyFilterOnMember(Filter filter) throws IOException {
-        // We are here at the beginning of the official value.
-        long offset = mFileAccess.getFilePointer() ;
+                byte[] key = keyPaths.getKeyBuffer(keyLength);
 
-        String key = filter.consider(null, null);
+                mFileAccess.readFully(key, 0, keyLength);
 
-        while (key != null) {
-            Object value = getValueForKey(key);
+                long valueOffset = mFileAccess.getFilePointer();
 
-            key = filter.consider(key, value);
+                KeyPaths.Node child = node.getChild(key, keyLength);
 
-            mFileAccess.seek(offset);
+                if (child != null) {
+                    remaining--;
+
+                    if (child.getSlot() != -1) {
+                        keyPaths.setValue(child.getSlot(), readValue(valueLength, true, null));
+
+                        mFileAccess.seek(valueOffset);
+                    }
+
+                    if (child.getChildCount() > 0) {
+                        readKeyPaths(keyPaths, child);
+                    }
+                }
+
+                mFileAccess.seek(valueOffset + valueLength);
+            }
+            else {
+                throw new IllegalStateException("State is lost or bad file format.");
+            }
+
+            c = mFileAccess.readByte();
         }
     }
 
     private Object getValueForKey(String key) throws IOException {
-        String[] keys = key.split("\\.");
+        return getValueForKeys(key.split("\\."));
+    }
 
+    private Object getValueForKeys(String[] keys) throws IOException {
         long valueLength = 0;
 
         for (String k: keys) {
             byte type = mFileAccess.readByte();
 
             if (type != OBJECT) {
-                return -1;
+                return KEY_NOT_FOUND;
             }
 
             valueLength = goToKey(k);
@@ -416,10 +2218,37 @@ public class YashoDB {
             }
         }
 
-        return readValue(valueLength, true);
+        return readValue(valueLength, true, null);
     }
 
     private long goToKey(String key) throws IOException {
+        KeyDirectory keyDirectory = getKeyDirectory(mFileAccess.getFilePointer());
+
+        if (keyDirectory != null) {
+            int hash = key.hashCode();
+
+            int index = keyDirectory.indexOf(hash);
+
+            if (index == -1) {
+                return -1;
+            }
+
+            while (index < keyDirectory.size() && keyDirectory.getHash(index) == hash) {
+                mFileAccess.seek(keyDirectory.getOffset(index) + 1);
+
+                long keyValueLength = mFileAccess.readLong();
+                int keyLength = mFileAccess.readInt();
+
+                if (matchKey(key, keyLength)) {
+                    return keyValueLength - keyLength - 4;
+                }
+
+                index++;
+            }
+
+            return -1;
+        }
+
         byte c = mFileAccess.readByte();
 
         while (c != HAS_NOT_TAIL) {
@@ -437,11 +2266,9 @@ public class YashoDB {
                 long keyValueLength = mFileAccess.readLong();
                 int keyLength = mFileAccess.readInt();
 
-                String k = readKey(keyLength);
-
                 long valueLength = keyValueLength - keyLength - 4;
 
-                if (k.equals(key)) {
+                if (matchKey(key, keyLength)) {
                     return valueLength;
                 }
                 else {
@@ -458,6 +2285,92 @@ public class YashoDB {
         return -1;
     }
 
+    /**
+     * Compares the key at the file pointer with the given key without reading it into a String.
+     * Returns with the file pointer after the key.
+     */
+    private boolean matchKey(String key, int keyLength) throws IOException {
+        long keyEnd = mFileAccess.getFilePointer() + keyLength;
+
+        if (keyLength != key.length()) {
+            mFileAccess.seek(keyEnd);
+            return false;
+        }
+
+        for (int i = 0; i < keyLength; i++) {
+            if ((char) mFileAccess.readByte() != key.charAt(i)) {
+                mFileAccess.seek(keyEnd);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the key directory of the object starting at the given offset. Builds it if needed.
+     * Returns null if key directories are disabled.
+     */
+    private KeyDirectory getKeyDirectory(long startOffset) throws IOException {
+        if (mOptions.getKeyDirectoryCount() == 0) {
+            return null;
+        }
+
+        KeyDirectory keyDirectory = mMetadata.getKeyDirectory(startOffset);
+
+        if (keyDirectory != null) {
+            return keyDirectory;
+        }
+
+        keyDirectory = new KeyDirectory();
+
+        byte[] keyBytes = new byte[64];
+
+        mFileAccess.seek(startOffset);
+
+        byte c = mFileAccess.readByte();
+
+        while (c != HAS_NOT_TAIL) {
+            if (c == HAS_TAIL) {
+                long offset = mFileAccess.readLong();
+
+                mFileAccess.seek(offset);
+            }
+            else if (c == DELETED) {
+                long length = mFileAccess.readLong();
+
+                mFileAccess.seek(mFileAccess.getFilePointer() + length);
+            }
+            else if (c == NOT_DELETED) {
+                long offset = mFileAccess.getFilePointer() - 1;
+
+                long keyValueLength = mFileAccess.readLong();
+                int keyLength = mFileAccess.readInt();
+
+                if (keyLength > keyBytes.length) {
+                    keyBytes = new byte[keyLength];
+                }
+
+                mFileAccess.readFully(keyBytes, 0, keyLength);
+
+                keyDirectory.append(KeyDirectory.hash(keyBytes, keyLength), offset);
+
+                mFileAccess.seek(offset + 1 + 8 + keyValueLength);
+            }
+            else {
+                throw new IllegalStateException("State is lost or bad file format.");
+            }
+
+            c = mFileAccess.readByte();
+        }
+
+        keyDirectory.sort();
+
+        mMetadata.setKeyDirectory(startOffset, keyDirectory);
+
+        return keyDirectory;
+    }
+
     public YashoDB get(long index) {
         if (index < 0) {
             throw new IllegalArgumentException("Member index starts from 0.");
@@ -469,14 +2382,18 @@ public class YashoDB {
             throw new IllegalArgumentException("Requested index is out of range: " + index + "/" + count);
         }
 
-        try {
-            seekToPosition(index);
+        synchronized (mFileAccess) {
+            checkValid();
 
-            long length = mFileAccess.readLong();
+            try {
+                seekToPosition(index);
 
-            return new YashoDB(this, mFileAccess.getFilePointer(), length);
-        } catch (IOException e) {
-            throw new DBAccessException(e);
+                long length = mFileAccess.readLong();
+
+                return new YashoDB(this, mFileAccess.getFilePointer(), length);
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
         }
     }
 
@@ -485,31 +2402,69 @@ public class YashoDB {
             throw new DBUseException("DB type is not an object.");
         }
 
-        try {
-            mFileAccess.seek(mStartOffset);
+        synchronized (mFileAccess) {
+            checkValid();
 
-            long length = goToKey(key);
+            try {
+                mFileAccess.seek(mStartOffset);
 
-            if (length == -1) {
-                return null;
-            }
+                long length = goToKey(key);
 
-            return new YashoDB(this, mFileAccess.getFilePointer(), length);
-        } catch (IOException e) {
-            throw new DBAccessException(e);
+                if (length == -1) {
+                    return null;
+                }
+
+                YashoDB value = new YashoDB(this, mFileAccess.getFilePointer(), length);
+
+                value.mProjection = mProjection == null ? null : mProjection.forKey(key);
+
+                return value;
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
         }
     }
 
     public long remove() {
-        if (mType == OBJECT) {
-            return mParent.removeNestedObject(mStartOffset);
+        if (mType != OBJECT && mType != COLLECTION) {
+            throw new RuntimeException("Can only remove collections and objects.");
         }
 
-        if (mType != COLLECTION) {
-            throw new RuntimeException("Can only remove collections and objects.");
+        long removed;
+
+        synchronized (mFileAccess) {
+            checkValid();
+
+            if (mType == OBJECT) {
+                long memberOffset = getMemberOffset();
+
+                if (memberOffset != -1 && isRecordDeleted(memberOffset)) {
+                    // Removed already through another instance. Its range may be in use again.
+                    return 0;
+                }
+
+                indexMember(memberOffset, false);
+
+                removed = mParent.removeNestedObject(mStartOffset);
+
+                if (mParent.mStartOffset != 1) {
+                    indexMember(memberOffset, true);
+                }
+            }
+            else {
+                removed = removeMembers();
+            }
         }
 
-        final QueryResult queryResult = new QueryResult(mFile);
+        commit();
+
+        return removed;
+    }
+
+    private long removeMembers() {
+        final QueryResult queryResult = new QueryResult(mFile, mOptions.getQuerySpillThreshold());
+
+        final PositionIndex positionIndex = mMetadata.getPositionIndex(mStartOffset);
 
         iterate(new Processor() {
 
@@ -517,9 +2472,19 @@ public class YashoDB {
             public boolean process(long index, long length) throws IOException {
                 long position = mFileAccess.getFilePointer() - 8 - 1;
 
+                if (mStartOffset == 1) {
+                    indexMember(position, false);
+                }
+
                 mFileAccess.seek(position);
                 mFileAccess.writeByte(DELETED);
 
+                memberRemoved(position, length);
+
+                if (positionIndex != null) {
+                    positionIndex.remove(position);
+                }
+
                 queryResult.add(position);
 
                 return true;
@@ -527,29 +2492,72 @@ public class YashoDB {
 
         });
 
+        long removed = queryResult.getCount();
+
         try {
-            decrementCount(queryResult.getCount());
+            decrementCount(removed);
+
+            if (mStartOffset != 1) {
+                notifyModified(getMemberOffset());
+            }
+            else if (mQueryResult == null) {
+                // Every member is gone.
+                notifyModified(-1);
+            }
+            else {
+                long recordCount = queryResult.getRecordCount();
+
+                for (long i = 0; i < recordCount; i++) {
+                    long position = queryResult.get(i);
+
+                    mQueryResult.onRemoved(position);
+
+                    notifyRemoved(position);
+                }
+            }
+
+            queryResult.close();
         } catch (IOException e) {
             throw new DBAccessException(e);
         }
 
-        // TODO Notify removed.
-
-        return queryResult.getCount();
+        return removed;
     }
 
     private long removeNestedObject(long startOffset) {
         try {
             if (mType == COLLECTION) {
-                mFileAccess.seek(startOffset - 1 - 8 - 1);
+                long position = startOffset - 1 - 8 - 1;
+
+                mFileAccess.seek(position);
+
+                if (mFileAccess.readByte() != NOT_DELETED) {
+                    return 0;
+                }
 
+                mFileAccess.seek(position);
                 mFileAccess.writeByte(DELETED);
 
-                if (mQueryResult == null) {
-                    decrementCount(1);
+                memberRemoved(position, mFileAccess.readLong());
+
+                PositionIndex positionIndex = mMetadata.getPositionIndex(mStartOffset);
+
+                if (positionIndex != null) {
+                    positionIndex.remove(position);
+                }
+
+                decrementCount(1);
+
+                if (mQueryResult != null) {
+                    mQueryResult.onRemoved(position);
                 }
 
-                // TODO Notify removed.
+                if (mStartOffset == 1) {
+                    notifyRemoved(position);
+                }
+                else {
+                    notifyModified(getMemberOffset());
+                }
 
                 return 1;
             }
@@ -562,11 +2570,27 @@ public class YashoDB {
                 if (c == NOT_DELETED) {
                     long keyValueLength = mFileAccess.readLong();
 
-                    if (mFileAccess.getFilePointer() + keyValueLength > startOffset) {
-                        mFileAccess.seek(mFileAccess.getFilePointer() - 8 - 1);
+                    if (contains(mFileAccess.getFilePointer(), keyValueLength, startOffset)) {
+                        long position = mFileAccess.getFilePointer() - 8 - 1;
+
+                        KeyDirectory keyDirectory = mMetadata.getKeyDirectory(mStartOffset);
+
+                        if (keyDirectory != null) {
+                            int keyLength = mFileAccess.readInt();
+
+                            byte[] keyBytes = new byte[keyLength];
+
+                            mFileAccess.readFully(keyBytes);
+
+                            keyDirectory.remove(KeyDirectory.hash(keyBytes, keyLength), position);
+                        }
+
+                        mFileAccess.seek(position);
                         mFileAccess.writeByte(DELETED);
 
-                        // TODO Notify removed.
+                        mMetadata.addDeadBytes(1 + 8 + keyValueLength);
+
+                        notifyModified(getMemberOffset());
 
                         return 1;
                     }
@@ -575,6 +2599,12 @@ public class YashoDB {
                 }
                 else if (c == DELETED) {
                     long keyValueLength = mFileAccess.readLong();
+
+                    if (contains(mFileAccess.getFilePointer(), keyValueLength, startOffset)) {
+                        // Removed already through another instance.
+                        return 0;
+                    }
+
                     mFileAccess.seek(mFileAccess.getFilePointer() + keyValueLength);
                 }
                 else if (c == HAS_TAIL) {
@@ -594,43 +2624,110 @@ public class YashoDB {
         }
     }
 
+    private static boolean contains(long start, long length, long offset) {
+        return offset >= start && offset < start + length;
+    }
+
+    private boolean isRecordDeleted(long position) {
+        try {
+            mFileAccess.seek(position);
+
+            return mFileAccess.readByte() == DELETED;
+        } catch (IOException e) {
+            throw new DBAccessException(e);
+        }
+    }
+
     public boolean remove(String key) {
         if (mType != OBJECT) {
             throw new DBUseException("Database type is not an object.");
         }
 
-        try {
-            mFileAccess.seek(mStartOffset);
+        synchronized (mFileAccess) {
+            checkValid();
 
-            long length = goToKey(key);
+            long memberOffset = getMemberOffset();
 
-            if (length == -1) {
-                return false;
-            }
+            indexMember(memberOffset, false);
 
-            mFileAccess.seek(mFileAccess.getFilePointer() - key.length() - 4 - 8 - 1);
-            mFileAccess.writeByte(DELETED);
+            try {
+                mFileAccess.seek(mStartOffset);
 
-            // TODO Notify changed.
+                long length = goToKey(key);
 
-            return true;
-        } catch (IOException e) {
-            throw new DBAccessException(e);
+                if (length == -1) {
+                    return false;
+                }
+
+                long position = mFileAccess.getFilePointer() - key.length() - 4 - 8 - 1;
+
+                mFileAccess.seek(position);
+                mFileAccess.writeByte(DELETED);
+
+                mMetadata.addDeadBytes(1 + 8 + 4 + key.length() + length);
+
+                KeyDirectory keyDirectory = mMetadata.getKeyDirectory(mStartOffset);
+
+                if (keyDirectory != null) {
+                    keyDirectory.remove(key.hashCode(), position);
+                }
+
+                notifyModified(memberOffset);
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            } finally {
+                indexMember(memberOffset, true);
+            }
         }
+
+        commit();
+
+        return true;
     }
 
     public long set(final String key, final Object value) {
-        if (mType == OBJECT) {
-            return setObjectKeyValue(key, value, true);
+        long changed;
+
+        synchronized (mFileAccess) {
+            checkValid();
+
+            if (mType == OBJECT) {
+                long memberOffset = getMemberOffset();
+
+                indexMember(memberOffset, false);
+
+                changed = setObjectKeyValue(key, value, true);
+
+                indexMember(memberOffset, true);
+            }
+            else {
+                changed = setMembersKeyValue(key, value);
+            }
         }
 
-        final QueryResult queryResult = new QueryResult(mFile);
+        commit();
+
+        return changed;
+    }
+
+    private long setMembersKeyValue(final String key, final Object value) {
+        final QueryResult queryResult = new QueryResult(mFile, mOptions.getQuerySpillThreshold());
 
         iterate(new Processor() {
 
             @Override
             public boolean process(long index, long length) throws IOException {
-                queryResult.add(mFileAccess.getFilePointer() - 8 - 1);
+                long position = mFileAccess.getFilePointer() - 8 - 1;
+
+                queryResult.add(position);
+
+                boolean indexed = mStartOffset == 1;
+
+                if (indexed) {
+                    indexMember(position, false);
+
+                    mFileAccess.seek(position + 1 + 8);
+                }
 
                 byte type = mFileAccess.readByte();
 
@@ -642,14 +2739,37 @@ public class YashoDB {
                     ).setObjectKeyValue(key, value, false);
                 }
 
+                if (indexed) {
+                    indexMember(position, true);
+                }
+
                 return true;
             }
 
         });
 
-        // TODO Notify changed.
+        long changed = queryResult.getCount();
+
+        try {
+            if (mStartOffset != 1) {
+                notifyModified(getMemberOffset());
+            }
+            else if (mQueryResult == null) {
+                // Every member has changed.
+                notifyModified(-1);
+            }
+            else {
+                for (long i = 0; i < changed; i++) {
+                    notifyModified(queryResult.get(i));
+                }
+            }
+
+            queryResult.close();
+        } catch (IOException e) {
+            throw new DBAccessException(e);
+        }
 
-        return queryResult.getCount();
+        return changed;
     }
 
     private long setObjectKeyValue(String key, Object value, boolean notify) {
@@ -658,9 +2778,52 @@ public class YashoDB {
 
             long length = goToKey(key);
 
+            KeyDirectory keyDirectory = mMetadata.getKeyDirectory(mStartOffset);
+
+            FreeSpaceMap freeSpace = mMetadata.getFreeSpace();
+
+            long valueLength = freeSpace == null ? -1 : measureValue(value);
+
+            if (length != -1 && valueLength != -1 && replaceInPlace(key, length, value, valueLength)) {
+                if (notify) {
+                    notifyModified(getMemberOffset());
+                }
+
+                return 1;
+            }
+
             if (length != -1) {
-                mFileAccess.seek(mFileAccess.getFilePointer() - key.length() - 4 - 8 - 1);
+                long position = mFileAccess.getFilePointer() - key.length() - 4 - 8 - 1;
+
+                mFileAccess.seek(position);
                 mFileAccess.writeByte(DELETED);
+
+                mMetadata.addDeadBytes(1 + 8 + 4 + key.length() + length);
+
+                if (keyDirectory != null) {
+                    keyDirectory.remove(key.hashCode(), position);
+                }
+
+                if (freeSpace != null && isRecordOfRootMember(position)) {
+                    freeSpace.add(position + 1 + 8, 4 + key.length() + length);
+                }
+            }
+
+            long offset = -1;
+
+            if (valueLength != -1) {
+                // Followed by the end of the object.
+                long needed = 1 + 8 + 4 + key.length() + valueLength + 1 + 8;
+
+                offset = freeSpace.take(needed);
+
+                if (offset != -1) {
+                    mMetadata.reuseDeadBytes(needed);
+                }
+            }
+
+            if (offset == -1) {
+                offset = mFileAccess.length();
             }
 
             seekToEnd();
@@ -668,18 +2831,24 @@ public class YashoDB {
             mFileAccess.seek(mFileAccess.getFilePointer() - 1);
             mFileAccess.writeByte(HAS_TAIL);
 
-            long offset = mFileAccess.length();
+            mMetadata.addDeadBytes(1 + 8);
 
             mFileAccess.writeLong(offset);
             mFileAccess.seek(offset);
 
             writeKeyValue(key, value);
 
+            if (keyDirectory != null) {
+                keyDirectory.add(key.hashCode(), offset);
+            }
+
+            mMetadata.setTail(mStartOffset, mFileAccess.getFilePointer());
+
             mFileAccess.writeByte(HAS_NOT_TAIL);
             mFileAccess.writeLong(0);
 
             if (notify) {
-                // TODO Notify changed.
+                notifyModified(getMemberOffset());
             }
 
             return 1;
@@ -688,17 +2857,78 @@ public class YashoDB {
         }
     }
 
+    /**
+     * @return true if this object is a member of the root collection and the record at the position
+     * was added to it after it was inserted. Nothing else that can be freed contains such a record.
+     * The records of nested objects are not freed since they may lie inside one.
+     */
+    private boolean isRecordOfRootMember(long position) {
+        if (mParent == null || mParent.mStartOffset != 1) {
+            return false;
+        }
+
+        return position < mStartOffset - 1 || position >= mStartOffset + mLength;
+    }
+
+    /**
+     * Writes the new value over the old one if the old one is not a collection or an object and the
+     * new record fits exactly or leaves room for a deleted record after it.
+     *
+     * @param length Length of the old value. The file pointer is at its beginning and is left there
+     *               if the value is not replaced.
+     */
+    private boolean replaceInPlace(String key, long length, Object value, long valueLength) throws IOException {
+        if (value instanceof YashON || value instanceof YashAN) {
+            return false;
+        }
+
+        long valueOffset = mFileAccess.getFilePointer();
+
+        byte type = mFileAccess.readByte();
+
+        mFileAccess.seek(valueOffset);
+
+        if (type == OBJECT || type == COLLECTION) {
+            return false;
+        }
+
+        long left = length - valueLength;
+
+        if (left != 0 && left < 1 + 8) {
+            return false;
+        }
+
+        long position = valueOffset - key.length() - 4 - 8 - 1;
+
+        mFileAccess.seek(position);
+
+        writeKeyValue(key, value);
+
+        if (left > 0) {
+            mFileAccess.writeByte(DELETED);
+            mFileAccess.writeLong(left - 1 - 8);
+        }
+
+        mMetadata.addDeadBytes(left);
+
+        return true;
+    }
+
     public YashON asYashON() {
         if (mType != OBJECT) {
             throw new DBUseException("DB type is not an object.");
         }
 
-        try {
-            mFileAccess.seek(mStartOffset);
+        synchronized (mFileAccess) {
+            checkValid();
 
-            return readObject();
-        } catch (IOException e) {
-            throw new DBAccessException(e);
+            try {
+                mFileAccess.seek(mStartOffset);
+
+                return readObject(mProjection);
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
         }
     }
 
@@ -707,25 +2937,61 @@ public class YashoDB {
             throw new DBUseException("DB type is not a collection.");
         }
 
-        long count = getCount();
+        synchronized (mFileAccess) {
+            checkValid();
 
-        if (count > Integer.MAX_VALUE) {
-            throw new RuntimeException("Requested collection is too big.");
+            long count = getCount();
+
+            if (count > Integer.MAX_VALUE) {
+                throw new RuntimeException("Requested collection is too big.");
+            }
+
+            final YashAN yashAN = new YashAN((int) count);
+
+            iterate(new Processor() {
+
+                @Override
+                public boolean process(long index, long length) throws IOException {
+                    yashAN.put(readValue(length, false, mProjection));
+                    return true;
+                }
+
+            });
+
+            return yashAN;
+        }
+    }
+
+    /**
+     * @return A forward only cursor over the members of the collection that reads one member at a
+     * time as it is asked for, so that a collection of any size can be gone through.
+     */
+    public Cursor cursor() {
+        if (mType != COLLECTION) {
+            throw new DBUseException("DB type is not a collection.");
         }
 
-        final YashAN yashAN = new YashAN((int) count);
+        synchronized (mFileAccess) {
+            checkValid();
 
-        iterate(new Processor() {
+            return new Cursor(null, 0, Long.MAX_VALUE, mProjection);
+        }
+    }
 
-            @Override
-            public boolean process(long index, long length) throws IOException {
-                yashAN.put(readValue(length, false));
-                return true;
-            }
+    /**
+     * @return A cursor over the members that pass the filter. The filter is applied as the members
+     * are asked for.
+     */
+    Cursor cursor(Filter filter, long skip, long limit, Projection projection) {
+        if (mType != COLLECTION) {
+            throw new DBUseException("Filter can only be applied on a collection.");
+        }
 
-        });
+        synchronized (mFileAccess) {
+            checkValid();
 
-        return yashAN;
+            return new Cursor(filter, skip, limit, projection != null ? projection : mProjection);
+        }
     }
 
     public void insertAll(List<YashON> yashonList) {
@@ -737,33 +3003,67 @@ public class YashoDB {
             throw new RuntimeException("Database type is not a collection.");
         }
 
-        try {
-            seekToEnd();
+        synchronized (mFileAccess) {
+            checkValid();
 
-            mFileAccess.seek(mFileAccess.getFilePointer() - 1);
-            mFileAccess.writeByte(HAS_TAIL);
+            try {
+                seekToEnd();
 
-            long fileEnd = mFileAccess.length();
+                mFileAccess.seek(mFileAccess.getFilePointer() - 1);
+                mFileAccess.writeByte(HAS_TAIL);
 
-            mFileAccess.writeLong(fileEnd);
+                countTailLink();
 
-            mFileAccess.seek(fileEnd);
+                long fileEnd = mFileAccess.length();
 
-            int size = yashonList.size();
+                mFileAccess.writeLong(fileEnd);
 
-            for (YashON yashon: yashonList) {
-                writeObject(yashon);
-            }
+                mFileAccess.seek(fileEnd);
 
-            mFileAccess.writeByte(HAS_NOT_TAIL);
-            mFileAccess.writeLong(0L);
+                int size = yashonList.size();
 
-            incrementCount(size);
+                PositionIndex positionIndex = mMetadata.getPositionIndex(mStartOffset);
 
-            // TODO Notify inserted.
-        } catch (IOException e) {
-            throw new DBAccessException(e);
+                long[] offsets = new long[size];
+                int index = 0;
+
+                for (YashON yashon: yashonList) {
+                    long offset = mFileAccess.getFilePointer();
+
+                    offsets[index++] = offset;
+
+                    if (positionIndex != null) {
+                        positionIndex.add(offset);
+                    }
+
+                    writeObject(yashon);
+                }
+
+                mMetadata.setTail(mStartOffset, mFileAccess.getFilePointer());
+
+                mFileAccess.writeByte(HAS_NOT_TAIL);
+                mFileAccess.writeLong(0L);
+
+                incrementCount(size);
+
+                if (mStartOffset == 1) {
+                    for (long offset: offsets) {
+                        indexMember(offset, true);
+                    }
+
+                    for (long offset: offsets) {
+                        notifyInserted(offset);
+                    }
+                }
+                else {
+                    notifyModified(getMemberOffset());
+                }
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
         }
+
+        commit();
     }
 
     public void insert(YashON yashon) {
@@ -775,39 +3075,65 @@ public class YashoDB {
             throw new DBUseException("Database type is not a collection.");
         }
 
-        try {
-            seekToEnd();
+        synchronized (mFileAccess) {
+            checkValid();
 
-            mFileAccess.seek(mFileAccess.getFilePointer() - 1);
-            mFileAccess.writeByte(HAS_TAIL);
+            try {
+                seekToEnd();
 
-            long fileEnd = mFileAccess.length();
+                mFileAccess.seek(mFileAccess.getFilePointer() - 1);
+                mFileAccess.writeByte(HAS_TAIL);
 
-            mFileAccess.writeLong(fileEnd);
+                countTailLink();
 
-            mFileAccess.seek(fileEnd);
+                long fileEnd = mFileAccess.length();
 
-            writeObject(yashon);
+                mFileAccess.writeLong(fileEnd);
 
-            mFileAccess.writeByte(HAS_NOT_TAIL);
-            mFileAccess.writeLong(0L);
+                mFileAccess.seek(fileEnd);
 
-            incrementCount(1);
+                PositionIndex positionIndex = mMetadata.getPositionIndex(mStartOffset);
 
-            // TODO Notify inserted.
-        } catch (IOException e) {
-            throw new DBAccessException(e);
+                if (positionIndex != null) {
+                    positionIndex.add(fileEnd);
+                }
+
+                writeObject(yashon);
+
+                mMetadata.setTail(mStartOffset, mFileAccess.getFilePointer());
+
+                mFileAccess.writeByte(HAS_NOT_TAIL);
+                mFileAccess.writeLong(0L);
+
+                incrementCount(1);
+
+                if (mStartOffset == 1) {
+                    indexMember(fileEnd, true);
+
+                    notifyInserted(fileEnd);
+                }
+                else {
+                    notifyModified(getMemberOffset());
+                }
+            } catch (IOException e) {
+                throw new DBAccessException(e);
+            }
         }
+
+        commit();
     }
 
-    private YashON readObject() throws IOException {
+    /**
+     * @param projection What to read of the object or null to read all of it.
+     */
+    private YashON readObject(Projection projection) throws IOException {
         YashON yashON = new YashON();
 
         byte c = mFileAccess.readByte();
 
         while (c != HAS_NOT_TAIL) {
             if (c == NOT_DELETED) {
-                readKeyValue(yashON);
+                readKeyValue(yashON, projection);
             }
             else if (c == DELETED) {
                 long length = mFileAccess.readLong();
@@ -829,7 +3155,7 @@ public class YashoDB {
         return yashON;
     }
 
-    private void readKeyValue(YashON yashON) throws IOException {
+    private void readKeyValue(YashON yashON, Projection projection) throws IOException {
         long keyValueLength = mFileAccess.readLong();
         int keyLength = mFileAccess.readInt();
 
@@ -839,13 +3165,35 @@ public class YashoDB {
 
         long valuePosition = mFileAccess.getFilePointer();
 
-        Object value = readValue(valueLength, false);
+        Projection valueProjection = projection == null ? null : projection.forKey(key);
 
-        yashON.put(key, value);
+        if (projection == null || (projection.isRead(key) && isProjected(valueProjection))) {
+            Object value = readValue(valueLength, false, valueProjection);
+
+            yashON.put(key, value);
+        }
 
         mFileAccess.seek(valuePosition + valueLength);
     }
 
+    /**
+     * @return false if the value at the file pointer is left out because only paths inside it are
+     * included while it is not an object or a collection. The file pointer does not move.
+     */
+    private boolean isProjected(Projection projection) throws IOException {
+        if (projection == null || !projection.isInclude()) {
+            return true;
+        }
+
+        long position = mFileAccess.getFilePointer();
+
+        byte type = mFileAccess.readByte();
+
+        mFileAccess.seek(position);
+
+        return type == OBJECT || type == COLLECTION;
+    }
+
     private String readKey(int keyLength) throws IOException {
         byte[] keyBytes = new byte[keyLength];
 
@@ -860,7 +3208,12 @@ public class YashoDB {
         return new String(keyChars);
     }
 
-    private Object readValue(long length, boolean asDataBase) throws IOException {
+    /**
+     * @param asDataBase If true collections and objects are returned as databases and numbers as
+     *                   the scratch number that is reused on the next read.
+     * @param projection What to read of objects that are not returned as databases.
+     */
+    private Object readValue(long length, boolean asDataBase, Projection projection) throws IOException {
         byte type = mFileAccess.readByte();
 
         if (type == OBJECT) {
@@ -868,7 +3221,7 @@ public class YashoDB {
                 return new YashoDB(this, mFileAccess.getFilePointer() - 1, length);
             }
 
-            return readObject();
+            return readObject(projection);
         }
         else if (type == NULL) {
             return null;
@@ -878,17 +3231,42 @@ public class YashoDB {
                 return new YashoDB(this, mFileAccess.getFilePointer() - 1, length);
             }
 
-            return readCollection();
+            return readCollection(projection);
         }
         else if (type == VALUE) {
-            return readStringValue(length - 1);
+            return asDataBase ? mScratchString.read(mFileAccess) : readStringValue(length - 1);
+        }
+        else if (type == INTEGER) {
+            long zigZag = readVarLong();
+            long value = (zigZag >>> 1) ^ -(zigZag & 1);
+
+            return asDataBase ? mScratchNumber.setLong(value) : (Object) value;
+        }
+        else if (type == LONG) {
+            long value = mFileAccess.readLong();
+
+            return asDataBase ? mScratchNumber.setLong(value) : (Object) value;
+        }
+        else if (type == DOUBLE) {
+            double value = mFileAccess.readDouble();
+
+            return asDataBase ? mScratchNumber.setDouble(value) : (Object) value;
+        }
+        else if (type == BOOLEAN) {
+            return mFileAccess.readByte() != 0;
+        }
+        else if (type == STRING) {
+            return new String(readBytesValue(), "UTF-8");
+        }
+        else if (type == BLOB) {
+            return readBytesValue();
         }
         else {
             throw new IllegalStateException("Expected a type character but encountered '" + type + "'.");
         }
     }
 
-    private YashAN readCollection() throws IOException {
+    private YashAN readCollection(Projection projection) throws IOException {
         long count = mFileAccess.readLong();
 
         if (count > Integer.MAX_VALUE) {
@@ -904,7 +3282,9 @@ public class YashoDB {
                 long objectLength = mFileAccess.readLong();
                 long objectPosition = mFileAccess.getFilePointer();
 
-                yashAN.put(readValue(objectLength, false));
+                if (isProjected(projection)) {
+                    yashAN.put(readValue(objectLength, false, projection));
+                }
 
                 mFileAccess.seek(objectPosition + objectLength);
             }
@@ -921,14 +3301,139 @@ public class YashoDB {
                 throw new IllegalStateException("State is lost or bad file format.");
             }
 
-            c = mFileAccess.readByte();
-        }
+            c = mFileAccess.readByte();
+        }
+
+        return yashAN;
+    }
+
+    private String readStringValue(long length) throws IOException {
+        return mFileAccess.readUTF();
+    }
+
+    private byte[] readBytesValue() throws IOException {
+        long length = mFileAccess.readLong();
+
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Value is too large to be read at once: " + length + " bytes. Use openInputStream().");
+        }
+
+        byte[] bytes = new byte[(int) length];
+
+        mFileAccess.readFully(bytes);
+
+        return bytes;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        int shift = 0;
+
+        while (true) {
+            byte b = mFileAccess.readByte();
+
+            value |= (long) (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+
+            shift += 7;
+        }
+    }
+
+    private int writeVarLong(long value) throws IOException {
+        int length = 1;
+
+        while ((value & ~0x7FL) != 0) {
+            mFileAccess.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+            length++;
+        }
+
+        mFileAccess.writeByte((int) value);
+
+        return length;
+    }
+
+    private void notifyInserted(long position) throws IOException {
+        if (mQueryCache != null) {
+            mQueryCache.onInserted(position, newMatcher());
+        }
+    }
+
+    private void notifyRemoved(long position) throws IOException {
+        if (mQueryCache != null) {
+            mQueryCache.onRemoved(position, newMatcher());
+        }
+    }
+
+    /**
+     * @param memberOffset Offset of the changed member of the root collection or -1 if it is not
+     *                     known, in which case every cached result is dropped.
+     */
+    private void notifyModified(long memberOffset) throws IOException {
+        if (mQueryCache == null) {
+            return;
+        }
+
+        if (memberOffset == -1) {
+            mQueryCache.clear();
+        }
+        else {
+            mQueryCache.onModified(memberOffset, newMatcher());
+        }
+    }
+
+    private QueryCache.Matcher newMatcher() {
+        return new QueryCache.Matcher() {
+
+            @Override
+            public boolean matches(Filter filter, long position) throws IOException {
+                long filePointer = mFileAccess.getFilePointer();
+
+                try {
+                    KeyPaths keyPaths = getKeyPaths(filter);
+
+                    mFileAccess.seek(position + 1 + 8);
+
+                    if (!filter.onNewMember()) {
+                        return false;
+                    }
+
+                    applyFilterOnMember(filter, keyPaths);
+
+                    return filter.onMemberReviewed(position);
+                } finally {
+                    mFileAccess.seek(filePointer);
+                }
+            }
+
+        };
+    }
+
+    /**
+     * Called after the member of this collection at the given offset is marked as deleted. Must
+     * only be called for a member that was not deleted before.
+     */
+    private void memberRemoved(long position, long length) {
+        mMetadata.addDeadBytes(1 + 8 + length);
+
+        FreeSpaceMap freeSpace = mMetadata.getFreeSpace();
 
-        return yashAN;
+        // Only members of the root collection. Any other record may be inside a range that has
+        // been reused already, and nothing is ever reused inside a live member of the root.
+        if (freeSpace != null && mStartOffset == 1) {
+            freeSpace.add(position + 1 + 8, length);
+        }
     }
 
-    private String readStringValue(long length) throws IOException {
-        return mFileAccess.readUTF();
+    private void countTailLink() {
+        // Links in the root collection are not counted so that inserts do not outdate a background
+        // compaction. They are removed by it all the same.
+        if (mStartOffset != 1) {
+            mMetadata.addDeadBytes(1 + 8);
+        }
     }
 
     private void incrementCount(int size) throws IOException {
@@ -966,6 +3471,9 @@ public class YashoDB {
     private long writeObjectValue(YashON yashon) throws IOException {
         long length = 0;
 
+        // The space may have been used by a structure that is gone now.
+        mMetadata.forget(mFileAccess.getFilePointer() + 1);
+
         mFileAccess.writeByte(OBJECT);
         length++;
 
@@ -1022,6 +3530,8 @@ public class YashoDB {
     private long writeArrayValue(YashAN yashan) throws IOException {
         long length = 0;
 
+        mMetadata.forget(mFileAccess.getFilePointer() + 1);
+
         mFileAccess.writeByte(COLLECTION);
         length++;
 
@@ -1072,14 +3582,201 @@ public class YashoDB {
             mFileAccess.writeByte(NULL);
             return 1L;
         }
+        else if (object instanceof Boolean) {
+            mFileAccess.writeByte(BOOLEAN);
+            mFileAccess.writeByte((Boolean) object ? 1 : 0);
+            return 2L;
+        }
+        else if (object instanceof Long || object instanceof Integer ||
+                object instanceof Short || object instanceof Byte) {
+            long value = ((Number) object).longValue();
+            long zigZag = (value << 1) ^ (value >> 63);
+
+            // Varints longer than 8 bytes are no smaller than the plain long.
+            if ((zigZag >>> 56) == 0) {
+                mFileAccess.writeByte(INTEGER);
+                return 1 + writeVarLong(zigZag);
+            }
+
+            mFileAccess.writeByte(LONG);
+            mFileAccess.writeLong(value);
+            return 9L;
+        }
+        else if (object instanceof Double || object instanceof Float) {
+            // Float through its decimal form so that it reads back as it was written.
+            double value = object instanceof Float ?
+                    Double.parseDouble(object.toString()) : (Double) object;
+
+            mFileAccess.writeByte(DOUBLE);
+            mFileAccess.writeDouble(value);
+            return 9L;
+        }
+        else if (object instanceof byte[]) {
+            byte[] value = (byte[]) object;
+
+            mFileAccess.writeByte(BLOB);
+            mFileAccess.writeLong(value.length);
+            mFileAccess.write(value);
+
+            return 1 + 8 + value.length;
+        }
+        else if (object instanceof InputStream) {
+            return writeStreamValue((InputStream) object);
+        }
         else {
             String value = object.toString();
 
+            int utfLength = measureUTF8Length(value);
+
+            if (utfLength - 2 > MAX_UTF_LENGTH) {
+                return writeLargeStringValue(value);
+            }
+
             mFileAccess.writeByte(VALUE);
             mFileAccess.writeUTF(value);
 
-            return 1 + measureUTF8Length(value);
+            return 1 + utfLength;
+        }
+    }
+
+    /**
+     * @return The number of bytes {@link #writeValue(Object)} writes for the value or -1 if it is
+     * not known ahead of writing.
+     */
+    private static long measureValue(Object object) {
+        if (object instanceof YashON) {
+            long length = 1;
+
+            for (Map.Entry<String, Object> entry: ((YashON) object).getAll().entrySet()) {
+                long valueLength = measureValue(entry.getValue());
+
+                if (valueLength == -1) {
+                    return -1;
+                }
+
+                length += 1 + 8 + 4 + entry.getKey().length() + valueLength;
+            }
+
+            return length + 1 + 8;
+        }
+        else if (object instanceof YashAN) {
+            long length = 1 + 8;
+
+            for (Object member: ((YashAN) object).getAll()) {
+                long memberLength = measureValue(member);
+
+                if (memberLength == -1) {
+                    return -1;
+                }
+
+                length += 1 + 8 + memberLength;
+            }
+
+            return length + 1 + 8;
+        }
+        else if (object == null) {
+            return 1;
+        }
+        else if (object instanceof Boolean) {
+            return 2;
+        }
+        else if (object instanceof Long || object instanceof Integer ||
+                object instanceof Short || object instanceof Byte) {
+            long value = ((Number) object).longValue();
+            long zigZag = (value << 1) ^ (value >> 63);
+
+            if ((zigZag >>> 56) == 0) {
+                int length = 1;
+
+                while ((zigZag & ~0x7FL) != 0) {
+                    zigZag >>>= 7;
+                    length++;
+                }
+
+                return 1 + length;
+            }
+
+            return 9;
+        }
+        else if (object instanceof Double || object instanceof Float) {
+            return 9;
+        }
+        else if (object instanceof byte[]) {
+            return 1 + 8 + ((byte[]) object).length;
+        }
+        else if (object instanceof InputStream) {
+            return -1;
+        }
+        else {
+            int utfLength = measureUTF8Length(object.toString());
+
+            // Large strings are not measured to save encoding them twice.
+            return utfLength - 2 > MAX_UTF_LENGTH ? -1 : 1 + utfLength;
+        }
+    }
+
+    private long writeLargeStringValue(String value) throws IOException {
+        mFileAccess.writeByte(STRING);
+
+        long lengthOffset = mFileAccess.getFilePointer();
+        mFileAccess.writeLong(0);
+
+        long length = 0;
+
+        int stringLength = value.length();
+        int start = 0;
+
+        while (start < stringLength) {
+            int end = Math.min(stringLength, start + STRING_CHUNK_LENGTH);
+
+            // Surrogate pairs must be encoded together.
+            if (end < stringLength && Character.isHighSurrogate(value.charAt(end - 1))) {
+                end--;
+            }
+
+            byte[] bytes = value.substring(start, end).getBytes("UTF-8");
+
+            mFileAccess.write(bytes);
+            length += bytes.length;
+
+            start = end;
+        }
+
+        long endOffset = mFileAccess.getFilePointer();
+
+        mFileAccess.seek(lengthOffset);
+        mFileAccess.writeLong(length);
+
+        mFileAccess.seek(endOffset);
+
+        return 1 + 8 + length;
+    }
+
+    private long writeStreamValue(InputStream input) throws IOException {
+        mFileAccess.writeByte(BLOB);
+
+        long lengthOffset = mFileAccess.getFilePointer();
+        mFileAccess.writeLong(0);
+
+        long length = 0;
+
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+        int read;
+
+        while ((read = input.read(buffer)) != -1) {
+            mFileAccess.write(buffer, 0, read);
+            length += read;
         }
+
+        long endOffset = mFileAccess.getFilePointer();
+
+        mFileAccess.seek(lengthOffset);
+        mFileAccess.writeLong(length);
+
+        mFileAccess.seek(endOffset);
+
+        return 1 + 8 + length;
     }
 
     /**
@@ -1087,6 +3784,16 @@ public class YashoDB {
      * @throws IOException
      */
     private void seekToEnd() throws IOException {
+        long tailOffset = mMetadata.getTail(mStartOffset);
+
+        if (tailOffset != -1) {
+            mFileAccess.seek(tailOffset);
+
+            if (mFileAccess.readByte() == HAS_NOT_TAIL) {
+                return;
+            }
+        }
+
         mFileAccess.seek(mStartOffset);
 
         if (mType == COLLECTION) {
@@ -1112,6 +3819,8 @@ public class YashoDB {
 
             c = mFileAccess.readByte();
         }
+
+        mMetadata.setTail(mStartOffset, mFileAccess.getFilePointer() - 1);
     }
 
     /**
@@ -1131,6 +3840,19 @@ public class YashoDB {
     }
 
     private void seekToRawPosition(long position) throws IOException {
+        PositionIndex positionIndex = getPositionIndex();
+
+        if (position < positionIndex.getCount()) {
+            mFileAccess.seek(positionIndex.get(position));
+
+            if (mFileAccess.readByte() == NOT_DELETED) {
+                return;
+            }
+        }
+
+        // The index is not to be trusted anymore.
+        mMetadata.removePositionIndex(mStartOffset);
+
         mFileAccess.seek(mStartOffset + 8);
 
         long index = -1;
@@ -1169,6 +3891,37 @@ public class YashoDB {
         }
     }
 
+    /**
+     * Returns the position index of this collection. Builds it if needed.
+     */
+    private PositionIndex getPositionIndex() throws IOException {
+        PositionIndex positionIndex = mMetadata.getPositionIndex(mStartOffset);
+
+        mFileAccess.seek(mStartOffset);
+
+        long count = mFileAccess.readLong();
+
+        if (positionIndex != null && positionIndex.getCount() == count) {
+            return positionIndex;
+        }
+
+        final PositionIndex newPositionIndex = new PositionIndex();
+
+        iterate(new Processor() {
+
+            @Override
+            public boolean process(long index, long length) throws IOException {
+                newPositionIndex.add(mFileAccess.getFilePointer() - 8 - 1);
+                return true;
+            }
+
+        });
+
+        mMetadata.setPositionIndex(mStartOffset, newPositionIndex);
+
+        return newPositionIndex;
+    }
+
     private void iterate(Processor processor) {
         try {
             long index = 0;
@@ -1254,6 +4007,277 @@ public class YashoDB {
         return encodedLength + 2;
     }
 
+    /**
+     * Goes through the members of a collection from where it was left each time, so that other
+     * operations can be done between the reads. Members that are inserted at the end of the
+     * collection meanwhile are reached too, unless an index has picked the members to filter. The
+     * cursor is not valid after the database is compacted.
+     */
+    public class Cursor implements Iterator<YashON> {
+
+        private int mCursorGeneration;
+
+        private Filter mFilter;
+        private KeyPaths mFilterKeyPaths = null;
+
+        // Offsets of the members an index picked for the filter.
+        private long[] mCandidates = null;
+
+        private long mSkip;
+        private long mLimit;
+
+        private Projection mCursorProjection;
+
+        private long mSkipped = 0;
+        private long mReturned = 0;
+
+        // Offset of the next record of the member chain or index of the next offset to go to.
+        private long mPosition;
+
+        private YashON mNext = null;
+
+        private Cursor(Filter filter, long skip, long limit, Projection projection) {
+            mCursorGeneration = mMetadata.getGeneration();
+
+            mFilter = filter;
+            mSkip = skip;
+            mLimit = limit;
+            mCursorProjection = projection;
+
+            if (filter != null) {
+                mFilterKeyPaths = getKeyPaths(filter);
+
+                try {
+                    mCandidates = selectCandidates(filter);
+                } catch (IOException e) {
+                    throw new DBAccessException(e);
+                }
+            }
+
+            mPosition = mQueryResult != null || mCandidates != null ? 0 : mStartOffset + 8;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (mNext == null) {
+                mNext = readNext();
+            }
+
+            return mNext != null;
+        }
+
+        @Override
+        public YashON next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            YashON next = mNext;
+
+            mNext = null;
+
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove members through the database.");
+        }
+
+        private YashON readNext() {
+            synchronized (mFileAccess) {
+                if (mCursorGeneration != mMetadata.getGeneration()) {
+                    throw new DBUseException("Database has been compacted since this cursor was obtained.");
+                }
+
+                try {
+                    while (mReturned < mLimit) {
+                        long length = moveToNext();
+
+                        if (length == -1) {
+                            return null;
+                        }
+
+                        long valuePosition = mFileAccess.getFilePointer();
+
+                        if (mFilter != null) {
+                            if (!mFilter.onNewMember()) {
+                                mLimit = mReturned;
+                                return null;
+                            }
+
+                            applyFilterOnMember(mFilter, mFilterKeyPaths);
+
+                            if (!mFilter.onMemberReviewed(valuePosition - 8 - 1)) {
+                                continue;
+                            }
+
+                            mFileAccess.seek(valuePosition);
+                        }
+
+                        if (mSkipped < mSkip) {
+                            mSkipped++;
+                            continue;
+                        }
+
+                        mReturned++;
+
+                        return readMember(length);
+                    }
+
+                    return null;
+                } catch (IOException e) {
+                    throw new DBAccessException(e);
+                }
+            }
+        }
+
+        /**
+         * Moves to the next member that is not removed.
+         *
+         * @return Length of the member with the file pointer at its value or -1 if there are no more.
+         */
+        private long moveToNext() throws IOException {
+            if (mQueryResult != null || mCandidates != null) {
+                long count = mCandidates != null ? mCandidates.length : mQueryResult.getRecordCount();
+
+                while (mPosition < count) {
+                    long offset = mCandidates != null ? mCandidates[(int) mPosition] : mQueryResult.get(mPosition);
+
+                    mPosition++;
+
+                    mFileAccess.seek(offset);
+
+                    if (mFileAccess.readByte() == NOT_DELETED) {
+                        return mFileAccess.readLong();
+                    }
+                }
+
+                return -1;
+            }
+
+            mFileAccess.seek(mPosition);
+
+            byte c = mFileAccess.readByte();
+
+            while (c != HAS_NOT_TAIL) {
+                if (c == NOT_DELETED) {
+                    long length = mFileAccess.readLong();
+
+                    mPosition = mFileAccess.getFilePointer() + length;
+
+                    return length;
+                }
+                else if (c == DELETED) {
+                    long length = mFileAccess.readLong();
+
+                    mFileAccess.seek(mFileAccess.getFilePointer() + length);
+                }
+                else if (c == HAS_TAIL) {
+                    long offset = mFileAccess.readLong();
+
+                    mFileAccess.seek(offset);
+                }
+                else {
+                    throw new DBFormatException();
+                }
+
+                mPosition = mFileAccess.getFilePointer();
+
+                c = mFileAccess.readByte();
+            }
+
+            // Stays on the end of the chain to go on from there if members are inserted.
+            return -1;
+        }
+
+        private YashON readMember(long length) throws IOException {
+            Object member = readValue(length, false, mCursorProjection);
+
+            if (!(member instanceof YashON)) {
+                throw new DBUseException("Cursor can only go through a collection of objects.");
+            }
+
+            return (YashON) member;
+        }
+
+    }
+
+    /**
+     * What the tasks of a parallel scan share.
+     */
+    private static class ScanState {
+
+        // Pages of the database cache that are newer than the file.
+        final Map<Long, byte[]> pages;
+        final long length;
+
+        final Filter filter;
+        final long needed;
+
+        final long[] candidates;
+        final PositionIndex positionIndex;
+
+        // Tasks of later ranges stop once an earlier range has accepted as many members as needed.
+        final AtomicInteger filledRange = new AtomicInteger(Integer.MAX_VALUE);
+
+        ScanState(Map<Long, byte[]> pages, long length, Filter filter, long needed, long[] candidates,
+                  PositionIndex positionIndex) {
+            this.pages = pages;
+            this.length = length;
+            this.filter = filter;
+            this.needed = needed;
+            this.candidates = candidates;
+            this.positionIndex = positionIndex;
+        }
+
+    }
+
+    private class ScanTask implements Callable<long[]> {
+
+        private ScanState mState;
+
+        private int mRange;
+        private long mStart;
+        private long mEnd;
+
+        ScanTask(ScanState state, int range, long start, long end) {
+            mState = state;
+            mRange = range;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public long[] call() throws IOException {
+            PageCache cache = mScanCaches.poll();
+
+            if (cache == null) {
+                DBOptions cacheOptions = new DBOptions()
+                        .setPageSize(mOptions.getPageSize())
+                        .setCacheSize(SCAN_CACHE_SIZE);
+
+                cache = new PageCache(new ScanStorage(mFileStorage, mOptions.getPageSize()), cacheOptions, false);
+            }
+
+            try {
+                // The file may have changed since the last scan.
+                ((ScanStorage) cache.getStorage()).setPages(mState.pages, mState.length);
+
+                cache.clear();
+
+                YashoDB reader = new YashoDB(YashoDB.this, new FileAccess(cache));
+
+                return reader.scanRange(mState, mRange, mStart, mEnd);
+            } finally {
+                ((ScanStorage) cache.getStorage()).setPages(Collections.<Long, byte[]>emptyMap(), 0);
+
+                mScanCaches.offer(cache);
+            }
+        }
+
+    }
+
     private interface Processor {
 
         /**